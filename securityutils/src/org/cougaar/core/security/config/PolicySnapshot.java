@@ -0,0 +1,393 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.cougaar.core.security.policy.SecurityPolicy;
+import org.cougaar.core.security.services.util.SecurityPropertiesService;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.LoggerFactory;
+
+/**
+ * A compiled form of the security policies parsed from a set of XML
+ * policy files for one role and security community, kept in a file
+ * beside the first policy file so that a node does not have to run the
+ * SAX handlers again on every start.
+ * <p>
+ * A snapshot records a digest of everything the parse depends on: the
+ * bytes of the source files, the role and community, the current values
+ * of the java properties the files refer to with <tt>${name}</tt>, and
+ * the attribute table. It is used only if that digest is unchanged and
+ * its MAC is correct; otherwise the policies are parsed again and the
+ * snapshot rewritten.
+ * <p>
+ * The snapshot lives beside the policy files, where others may be able
+ * to write, and deserializing it creates objects of whatever classes it
+ * names. It is therefore authenticated with an HMAC-SHA1 under a node
+ * secret, which by default is derived from the keystore password
+ * (<tt>org.cougaar.security.keystore.password</tt>), and nothing is
+ * deserialized before the MAC has been checked. Without a secret no
+ * snapshot is read or written.
+ * <p>
+ * Policy sets that cannot be serialized are not stored, and are parsed
+ * again on every start.
+ * <p>
+ * File format: magic, version, digest, serialized
+ * <code>SecurityPolicy[]</code>, HMAC-SHA1 of all preceding bytes.
+ * Setting <tt>org.cougaar.core.security.config.policySnapshot</tt> to
+ * false disables snapshots.
+ */
+public class PolicySnapshot {
+  public static final String ENABLED_PROP =
+    "org.cougaar.core.security.config.policySnapshot";
+  public static final String SUFFIX = ".snapshot";
+
+  private static final int MAGIC = 0x43505353; // "CPSS"
+  private static final byte VERSION = 2;
+  private static final String MAC = "HmacSHA1";
+
+  private static final Pattern JAVA_PROPERTY =
+    Pattern.compile("\\$\\{([^}]*)\\}");
+
+  private static final Logger log =
+    LoggerFactory.getInstance().createLogger(PolicySnapshot.class);
+
+  /** Parses the policies when there is no usable snapshot. */
+  public interface Parser {
+    SecurityPolicy[] parse() throws Exception;
+  }
+
+  private File[] _sources;
+  private String _role;
+  private String _community;
+  private Hashtable _attributes;
+  private File _file;
+  private SecretKeySpec _key;
+
+  /**
+   * Same as the five argument constructor, with the secret derived from
+   * the keystore password.
+   */
+  public PolicySnapshot(File[] sources, String role, String community,
+                        Hashtable attributes) {
+    this(sources, role, community, attributes, keystoreSecret());
+  }
+
+  /**
+   * @param sources    the policy files, in parsing order
+   * @param role       the role used to filter policy elements
+   * @param community  the security community used to filter them
+   * @param attributes the attribute table of the handlers, or null
+   * @param secret     the node secret authenticating the snapshot, or
+   *                   null to use no snapshot
+   */
+  public PolicySnapshot(File[] sources, String role, String community,
+                        Hashtable attributes, byte[] secret) {
+    _sources = sources;
+    _role = role;
+    _community = community;
+    _attributes = attributes;
+    if (secret != null && secret.length > 0) {
+      _key = new SecretKeySpec(secret, MAC);
+    }
+    _file = new File(sources[0].getPath() + "." +
+                     Integer.toHexString(hash(role) * 31 + hash(community)) +
+                     SUFFIX);
+  }
+
+  public File getFile() {
+    return _file;
+  }
+
+  public static boolean isEnabled() {
+    return Boolean.valueOf(System.getProperty(ENABLED_PROP, "true"))
+      .booleanValue();
+  }
+
+  /**
+   * Returns the policies from the snapshot if it is up to date, and
+   * otherwise from <code>parser</code>, storing them in a new snapshot.
+   */
+  public SecurityPolicy[] getPolicies(Parser parser) throws Exception {
+    if (!isEnabled()) {
+      return parser.parse();
+    }
+    if (_key == null) {
+      if (log.isDebugEnabled()) {
+        log.debug("No secret to authenticate " + _file + "; not used");
+      }
+      return parser.parse();
+    }
+    byte[] digest;
+    try {
+      digest = computeDigest();
+    }
+    catch (IOException e) {
+      if (log.isWarnEnabled()) {
+        log.warn("Unable to read policy files: " + e);
+      }
+      return parser.parse();
+    }
+    SecurityPolicy[] policies = load(digest);
+    if (policies != null) {
+      if (log.isInfoEnabled()) {
+        log.info("Using " + policies.length + " policies from " + _file);
+      }
+      return policies;
+    }
+    policies = parser.parse();
+    if (policies != null) {
+      store(digest, policies);
+    }
+    return policies;
+  }
+
+  /**
+   * Digest of the sources and of everything else the parsed policies
+   * depend on.
+   */
+  public byte[] computeDigest() throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA digest unavailable: " + e);
+    }
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(header);
+    out.writeByte(VERSION);
+    writeString(out, _role);
+    writeString(out, _community);
+    Map properties = new TreeMap();
+    for (int i = 0; i < _sources.length; i++) {
+      byte[] content = readFile(_sources[i]);
+      writeString(out, _sources[i].getPath());
+      out.writeInt(content.length);
+      md.update(content);
+      // ISO-8859-1 keeps every byte, which is all ${...} matching needs
+      Matcher m = JAVA_PROPERTY.matcher(new String(content, "ISO-8859-1"));
+      while (m.find()) {
+        String name = m.group(1);
+        properties.put(name, System.getProperty(name));
+      }
+    }
+    writeMap(out, properties);
+    Map attributes = new TreeMap();
+    if (_attributes != null) {
+      Enumeration keys = _attributes.keys();
+      while (keys.hasMoreElements()) {
+        Object key = keys.nextElement();
+        attributes.put(key.toString(), _attributes.get(key).toString());
+      }
+    }
+    writeMap(out, attributes);
+    out.flush();
+    md.update(header.toByteArray());
+    return md.digest();
+  }
+
+  /**
+   * @return the policies of the snapshot, or null if it does not exist,
+   *         was made from other sources or is damaged.
+   */
+  public SecurityPolicy[] load(byte[] digest) {
+    if (_key == null || !_file.exists()) {
+      return null;
+    }
+    try {
+      byte[] data = readFile(_file);
+      Mac mac = newMac();
+      int length = data.length - mac.getMacLength();
+      if (length < 0) {
+        throw new IOException("truncated");
+      }
+      mac.update(data, 0, length);
+      byte[] tag = new byte[mac.getMacLength()];
+      System.arraycopy(data, length, tag, 0, tag.length);
+      if (!MessageDigest.isEqual(mac.doFinal(), tag)) {
+        throw new IOException("bad MAC");
+      }
+      DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(data, 0, length));
+      if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+        throw new IOException("unknown format");
+      }
+      byte[] stored = new byte[in.readUnsignedByte()];
+      in.readFully(stored);
+      if (!MessageDigest.isEqual(stored, digest)) {
+        if (log.isDebugEnabled()) {
+          log.debug("Policy files changed since " + _file + " was written");
+        }
+        return null;
+      }
+      ObjectInputStream ois = new ObjectInputStream(in);
+      return (SecurityPolicy[]) ois.readObject();
+    }
+    catch (Exception e) {
+      if (log.isWarnEnabled()) {
+        log.warn("Ignoring policy snapshot " + _file + ": " + e);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Writes a snapshot. A temporary file is renamed so that a reader
+   * never sees a partial one; failures are only logged, since the
+   * snapshot is an optimization.
+   */
+  public void store(byte[] digest, SecurityPolicy[] policies) {
+    if (_key == null) {
+      return;
+    }
+    File tmp = new File(_file.getPath() + ".tmp");
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bos);
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeByte(digest.length);
+      out.write(digest);
+      ObjectOutputStream oos = new ObjectOutputStream(out);
+      oos.writeObject(policies);
+      oos.flush();
+      out.write(newMac().doFinal(bos.toByteArray()));
+      out.flush();
+
+      FileOutputStream fos = new FileOutputStream(tmp);
+      try {
+        bos.writeTo(fos);
+      }
+      finally {
+        fos.close();
+      }
+      // renameTo does not replace an existing file on every platform
+      _file.delete();
+      if (!tmp.renameTo(_file)) {
+        throw new IOException("unable to rename " + tmp);
+      }
+      if (log.isInfoEnabled()) {
+        log.info("Wrote " + policies.length + " policies to " + _file);
+      }
+    }
+    catch (NotSerializableException e) {
+      if (log.isDebugEnabled()) {
+        log.debug("Policies are not serializable, no snapshot written: " + e);
+      }
+    }
+    catch (Exception e) {
+      tmp.delete();
+      if (log.isWarnEnabled()) {
+        log.warn("Unable to write policy snapshot " + _file + ": " + e);
+      }
+    }
+  }
+
+  private Mac newMac() throws GeneralSecurityException {
+    Mac mac = Mac.getInstance(MAC);
+    mac.init(_key);
+    return mac;
+  }
+
+  /** @return a secret derived from the keystore password, or null */
+  private static byte[] keystoreSecret() {
+    String password =
+      System.getProperty(SecurityPropertiesService.KEYSTORE_PASSWORD);
+    if (password == null || password.length() == 0) {
+      return null;
+    }
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA");
+      md.update("policy snapshot".getBytes("UTF-8"));
+      return md.digest(password.getBytes("UTF-8"));
+    }
+    catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] data = new byte[(int) file.length()];
+      new DataInputStream(in).readFully(data);
+      return data;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+    throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static void writeMap(DataOutputStream out, Map map)
+    throws IOException {
+    out.writeInt(map.size());
+    Iterator it = map.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry entry = (Map.Entry) it.next();
+      writeString(out, (String) entry.getKey());
+      writeString(out, (String) entry.getValue());
+    }
+  }
+
+  private static int hash(String s) {
+    return (s == null) ? 0 : s.hashCode();
+  }
+}
@@ -0,0 +1,389 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.security.services.crypto.EncryptionService;
+import org.cougaar.core.security.services.crypto.KeyRingService;
+
+/**
+ * Protects messages with the <code>SecureMethodParam.AEAD</code>
+ * method: a single authenticated-encryption pass (AES/GCM or another
+ * AEAD mode of the policy's symmetric spec) under a pairwise session
+ * key.
+ * <p>
+ * The session key is created and wrapped with
+ * <code>encryptSecretKey</code> by a <code>SessionKeyCache</code>, and
+ * the sender signs the key exchange (wrapped key, source, target,
+ * specs and target certificate) with its own key, so the public-key
+ * operations are only paid when a session key is established. Every
+ * message carries the wrapped key and that signature. The receiver
+ * verifies the signature with the source's certificate the first time
+ * it sees a wrapped key, and from then on accepts the key only from
+ * that source; since nobody else knows the key, the authentication tag
+ * proves the source of every message. The source and target addresses
+ * are also encrypted together with the object and checked by the
+ * receiver.
+ * <p>
+ * AEAD does not give non-repudiation. Policies that require it fall
+ * back to SIGNENCRYPT (see
+ * <code>CryptoPolicy.getSecureMethodParam(String, String)</code>), and
+ * every method other than AEAD is handed to the
+ * <code>EncryptionService</code> unchanged, so callers can use this
+ * class for all messages.
+ */
+public class AeadProtector
+{
+  /** Cipher modes that authenticate as well as encrypt */
+  private static final String[] AEAD_MODES = { "GCM", "CCM", "EAX", "OCB" };
+
+  private EncryptionService _encryptService;
+  private KeyRingService _keyRing;
+  private SessionKeyCache _sessionKeys;
+
+  /**
+   * @param sessionKeys the cache of pairwise keys; may be null, in
+   * which case a private cache without invalidate listeners is used.
+   */
+  public AeadProtector(EncryptionService encryptService,
+                       KeyRingService keyRing,
+                       SessionKeyCache sessionKeys) {
+    _encryptService = encryptService;
+    _keyRing = keyRing;
+    _sessionKeys = (sessionKeys != null) ? sessionKeys :
+      new SessionKeyCache(encryptService, null);
+  }
+
+  /**
+   * @return whether the cipher mode of a symmetric spec authenticates
+   * the data, e.g. true for <tt>AES/GCM/NoPadding</tt>
+   */
+  public static boolean isAeadSpec(String symmSpec) {
+    if (symmSpec == null) {
+      return false;
+    }
+    int start = symmSpec.indexOf('/');
+    if (start < 0) {
+      return false;
+    }
+    int end = symmSpec.indexOf('/', start + 1);
+    String mode = (end < 0) ? symmSpec.substring(start + 1) :
+      symmSpec.substring(start + 1, end);
+    for (int i = 0 ; i < AEAD_MODES.length ; i++) {
+      if (AEAD_MODES[i].equalsIgnoreCase(mode)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public ProtectedObject protectObject(Serializable object,
+                                       MessageAddress source,
+                                       MessageAddress target,
+                                       SecureMethodParam policy)
+    throws GeneralSecurityException, IOException {
+    if (policy.secureMethod != SecureMethodParam.AEAD) {
+      return _encryptService.protectObject(object, source, target, policy);
+    }
+    if (!isAeadSpec(policy.symmSpec)) {
+      throw new GeneralSecurityException("Not an AEAD cipher: "
+                                         + policy.symmSpec);
+    }
+
+    if (policy.signSpec == null) {
+      throw new GeneralSecurityException("No signature spec to sign the key"
+                                         + " exchange: " + policy);
+    }
+    X509Certificate cert =
+      BatchProtector.findCertificate(_keyRing, target.toAddress(), null);
+    CertificateFingerprint targetCert = CertificateFingerprint.getInstance(cert);
+    SessionKeyCache.SessionKey sk =
+      _sessionKeys.getSessionKey(source.toAddress(), target.toAddress(),
+                                 cert, policy.symmSpec, policy.asymmSpec);
+    KeyProof proof = (KeyProof) sk.getKeyProof();
+    if (proof == null || !policy.signSpec.equals(proof._signSpec)) {
+      // once per session key; a race only signs it twice
+      proof = signKeyExchange(source.toAddress(), target.toAddress(), policy,
+                              sk.getWrappedKey(), targetCert);
+      sk.setKeyProof(proof);
+    }
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+    ObjectOutputStream oos = new ObjectOutputStream(buffer);
+    oos.writeUTF(source.toAddress());
+    oos.writeUTF(target.toAddress());
+    oos.writeObject(object);
+    oos.close();
+
+    Cipher cipher = _encryptService.getCipher(policy.symmSpec);
+    try {
+      // the provider picks a fresh random nonce for every message
+      cipher.init(Cipher.ENCRYPT_MODE, sk.getSecretKey());
+      byte[] content = cipher.doFinal(buffer.toByteArray());
+      AlgorithmParameters params = cipher.getParameters();
+      Envelope env =
+        new Envelope(content, params.getAlgorithm(), params.getEncoded(),
+                     sk.getWrappedKey(), targetCert, proof);
+      return new ProtectedObject(policy, env);
+    }
+    finally {
+      _encryptService.returnCipher(policy.symmSpec, cipher);
+    }
+  }
+
+  /**
+   * @param policy the policy the receiver expects, or null to accept
+   * the policy of the envelope. An AEAD envelope is rejected when the
+   * expected policy requires a signature.
+   */
+  public Object unprotectObject(MessageAddress source,
+                                MessageAddress target,
+                                ProtectedObject envelope,
+                                SecureMethodParam policy)
+    throws GeneralSecurityException, IOException {
+    SecureMethodParam smp = envelope.getSecureMethod();
+    if (smp.secureMethod != SecureMethodParam.AEAD) {
+      return _encryptService.unprotectObject(source, target, envelope,
+                                             (policy != null) ? policy : smp);
+    }
+    if (policy != null && (policy.secureMethod == SecureMethodParam.SIGN
+                           || policy.secureMethod ==
+                              SecureMethodParam.SIGNENCRYPT)) {
+      throw new GeneralSecurityException("Policy " + policy
+                                         + " requires a signature");
+    }
+    if (!isAeadSpec(smp.symmSpec)) {
+      throw new GeneralSecurityException("Not an AEAD cipher: "
+                                         + smp.symmSpec);
+    }
+    if (!(envelope.getObject() instanceof Envelope)) {
+      throw new GeneralSecurityException("Not an AEAD envelope: "
+                                         + envelope.getObject());
+    }
+    Envelope env = (Envelope) envelope.getObject();
+
+    if (env._keyProof == null || smp.signSpec == null) {
+      throw new GeneralSecurityException("AEAD envelope from " + source
+                                         + " has no signed key exchange");
+    }
+    X509Certificate cert =
+      BatchProtector.findCertificate(_keyRing, target.toAddress(),
+                                     env._targetCert);
+    SecretKey secretKey =
+      _sessionKeys.decryptSecretKey(smp.asymmSpec, env._wrappedKey,
+                                    BatchProtector.getKeyAlgorithm(smp.symmSpec),
+                                    cert, source.toAddress(),
+                                    new KeyExchangeVerifier(source, target,
+                                                            smp, env));
+    if (secretKey == null) {
+      throw new GeneralSecurityException("Unable to unwrap key for "
+                                         + target);
+    }
+
+    byte[] plain;
+    AlgorithmParameters params =
+      AlgorithmParameters.getInstance(env._paramsAlgorithm);
+    params.init(env._params);
+    Cipher cipher = _encryptService.getCipher(smp.symmSpec);
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, secretKey, params);
+      // fails unless the content and its tag are intact
+      plain = cipher.doFinal(env._content);
+    }
+    finally {
+      _encryptService.returnCipher(smp.symmSpec, cipher);
+    }
+
+    ObjectInputStream ois =
+      new ObjectInputStream(new ByteArrayInputStream(plain));
+    try {
+      String from = ois.readUTF();
+      String to = ois.readUTF();
+      if (!from.equals(source.toAddress()) || !to.equals(target.toAddress())) {
+        throw new GeneralSecurityException("Message from " + from + " to "
+                                           + to + " received as from "
+                                           + source.toAddress() + " to "
+                                           + target.toAddress());
+      }
+      return ois.readObject();
+    }
+    catch (ClassNotFoundException e) {
+      throw new IOException("Unable to read protected object: " + e);
+    }
+    finally {
+      ois.close();
+    }
+  }
+
+  private KeyProof signKeyExchange(String source, String target,
+                                   SecureMethodParam policy,
+                                   byte[] wrappedKey,
+                                   CertificateFingerprint targetCert)
+    throws GeneralSecurityException, IOException {
+    List keys = _keyRing.findPrivateKey(source);
+    if (keys == null || keys.isEmpty()) {
+      throw new GeneralSecurityException("No private key for " + source);
+    }
+    PrivateKeyCert pkc = (PrivateKeyCert) keys.get(0);
+    Signature signature = CryptoPrimitives.getSignature(policy.signSpec);
+    try {
+      signature.initSign(pkc.getPrivateKey());
+      signature.update(keyExchange(source, target, policy, wrappedKey,
+                                   targetCert));
+      return new KeyProof(signature.sign(), policy.signSpec,
+                          CertificateFingerprint.getInstance(
+                            pkc.getCertificateStatus().getCertificate()));
+    }
+    finally {
+      CryptoPrimitives.release(signature);
+    }
+  }
+
+  /** @return the signed description of a key exchange */
+  private static byte[] keyExchange(String source, String target,
+                                    SecureMethodParam policy,
+                                    byte[] wrappedKey,
+                                    CertificateFingerprint targetCert)
+    throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+    DataOutputStream out = new DataOutputStream(bos);
+    out.writeUTF("AEAD key exchange");
+    out.writeUTF(source);
+    out.writeUTF(target);
+    out.writeUTF(String.valueOf(policy.symmSpec));
+    out.writeUTF(String.valueOf(policy.asymmSpec));
+    out.writeUTF(String.valueOf(policy.signSpec));
+    out.writeUTF(targetCert.getAlgorithm());
+    byte[] digest = targetCert.getDigest();
+    out.writeShort(digest.length);
+    out.write(digest);
+    out.writeShort(wrappedKey.length);
+    out.write(wrappedKey);
+    out.flush();
+    return bos.toByteArray();
+  }
+
+  /** Verifies the sender's signature over a key exchange. */
+  private class KeyExchangeVerifier implements SessionKeyCache.KeyBinding {
+    private MessageAddress _source;
+    private MessageAddress _target;
+    private SecureMethodParam _smp;
+    private Envelope _env;
+
+    KeyExchangeVerifier(MessageAddress source, MessageAddress target,
+                        SecureMethodParam smp, Envelope env) {
+      _source = source;
+      _target = target;
+      _smp = smp;
+      _env = env;
+    }
+
+    public void verify() throws GeneralSecurityException {
+      X509Certificate signer =
+        BatchProtector.findCertificate(_keyRing, _source.toAddress(),
+                                       _env._keyProof._signerCert);
+      Signature signature = CryptoPrimitives.getVerifier(_smp.signSpec);
+      try {
+        signature.initVerify(signer.getPublicKey());
+        signature.update(keyExchange(_source.toAddress(), _target.toAddress(),
+                                     _smp, _env._wrappedKey,
+                                     _env._targetCert));
+        if (!signature.verify(_env._keyProof._signature)) {
+          throw new GeneralSecurityException("Key exchange from " + _source
+                                             + " is not signed by it");
+        }
+      }
+      catch (IOException e) {
+        throw new GeneralSecurityException("Unable to encode key exchange: "
+                                           + e);
+      }
+      finally {
+        CryptoPrimitives.releaseVerifier(signature);
+      }
+    }
+  }
+
+  /**
+   * The sender's signature over a key exchange and the fingerprint of
+   * the certificate to verify it with.
+   */
+  static final class KeyProof
+    implements Serializable
+  {
+    private byte[] _signature;
+    private String _signSpec;
+    private CertificateFingerprint _signerCert;
+
+    KeyProof(byte[] signature, String signSpec,
+             CertificateFingerprint signerCert) {
+      _signature = signature;
+      _signSpec = signSpec;
+      _signerCert = signerCert;
+    }
+  }
+
+  /**
+   * The protected form of an AEAD message.
+   */
+  public static final class Envelope
+    implements Serializable
+  {
+    private byte[] _content;
+    private String _paramsAlgorithm;
+    private byte[] _params;
+    private byte[] _wrappedKey;
+    private CertificateFingerprint _targetCert;
+    private KeyProof _keyProof;
+
+    Envelope(byte[] content, String paramsAlgorithm, byte[] params,
+             byte[] wrappedKey, CertificateFingerprint targetCert,
+             KeyProof keyProof) {
+      _content = content;
+      _paramsAlgorithm = paramsAlgorithm;
+      _params = params;
+      _wrappedKey = wrappedKey;
+      _targetCert = targetCert;
+      _keyProof = keyProof;
+    }
+  }
+}
@@ -0,0 +1,455 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.security.GeneralSecurityException;
+import java.security.SignedObject;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.crypto.SealedObject;
+import javax.crypto.SecretKey;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.security.services.crypto.EncryptionService;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.LoggerFactory;
+
+import EDU.oswego.cs.dl.util.concurrent.Callable;
+import EDU.oswego.cs.dl.util.concurrent.FutureResult;
+import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.Semaphore;
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedLong;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
+/**
+ * Runs <code>EncryptionService</code> operations on a dedicated pool of
+ * crypto threads, so the message transport and plugin threads that
+ * request them are not held up by public-key operations.
+ * <p>
+ * Each method returns a <code>FutureResult</code> holding the value the
+ * synchronous method would have returned, or the exception it threw
+ * (as the target of an <code>InvocationTargetException</code>).
+ * <code>waitFor</code> turns such a result back into a value or a
+ * checked exception, so synchronous callers can move to this class one
+ * at a time.
+ * <p>
+ * Operations submitted with the same ordering key run one at a time,
+ * in submission order: <code>protectObject</code> is ordered by target
+ * agent, <code>unprotectObject</code> by source agent and
+ * <code>sign</code> and <code>verify</code> by signer. Operations with
+ * different keys run in parallel on
+ * <tt>org.cougaar.core.security.crypto.async.threads</tt> threads
+ * (default: one per processor).
+ * <p>
+ * At most <tt>org.cougaar.core.security.crypto.async.maxPending</tt>
+ * operations (default 1024) may be queued or running. Submitting more
+ * blocks the caller until one completes; <code>attemptSubmit</code>
+ * gives up after a timeout instead.
+ */
+public class AsyncEncryptionService
+{
+  public static final String THREADS_PROP =
+    "org.cougaar.core.security.crypto.async.threads";
+  public static final String MAX_PENDING_PROP =
+    "org.cougaar.core.security.crypto.async.maxPending";
+
+  private static final Logger _log =
+    LoggerFactory.getInstance().createLogger(AsyncEncryptionService.class);
+
+  private EncryptionService _encryptService;
+  private PooledExecutor _executor;
+  private Semaphore _pending;
+  private int _maxPending;
+  private boolean _shutdown;
+
+  /**
+   * Ordering key to the tasks waiting for the running task with that
+   * key. A key is present for as long as one of its tasks is running.
+   */
+  private Map _queues = new HashMap();
+
+  private SynchronizedLong _submitted = new SynchronizedLong(0);
+  private SynchronizedLong _completed = new SynchronizedLong(0);
+  private SynchronizedLong _failed = new SynchronizedLong(0);
+  private SynchronizedLong _rejected = new SynchronizedLong(0);
+  private SynchronizedLong _queueTime = new SynchronizedLong(0);
+  private SynchronizedLong _runTime = new SynchronizedLong(0);
+  private SynchronizedLong _maxRunTime = new SynchronizedLong(0);
+  private SynchronizedLong _peakPending = new SynchronizedLong(0);
+
+  public AsyncEncryptionService(EncryptionService es) {
+    this(es, Integer.getInteger(THREADS_PROP,
+                                CryptoTaskGroup.getParallelism()).intValue(),
+         Integer.getInteger(MAX_PENDING_PROP, 1024).intValue());
+  }
+
+  public AsyncEncryptionService(EncryptionService es, int threads,
+                                int maxPending) {
+    if (threads <= 0 || maxPending <= 0) {
+      throw new IllegalArgumentException("threads and maxPending must be" +
+                                         " positive");
+    }
+    _encryptService = es;
+    _maxPending = maxPending;
+    _pending = new Semaphore(maxPending);
+    _executor = new PooledExecutor(new LinkedQueue(), threads);
+    _executor.setMinimumPoolSize(threads);
+    _executor.setKeepAliveTime(-1);
+    _executor.setThreadFactory(new ThreadFactory() {
+        private int _count;
+        public synchronized Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "AsyncEncryptionService-" + (++_count));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+  }
+
+  /** The synchronous service the operations are delegated to */
+  public EncryptionService getEncryptionService() {
+    return _encryptService;
+  }
+
+  public FutureResult sign(final String signerName,
+                           final String signAlgSpec,
+                           final Serializable object)
+    throws InterruptedException {
+    return submit(signerName, new Callable() {
+        public Object call() throws Exception {
+          return _encryptService.sign(signerName, signAlgSpec, object);
+        }
+      });
+  }
+
+  public FutureResult verify(final String signerName,
+                             final String signAlgSpec,
+                             final SignedObject signedObject,
+                             final boolean expiredOk)
+    throws InterruptedException {
+    return submit(signerName, new Callable() {
+        public Object call() throws Exception {
+          return _encryptService.verify(signerName, signAlgSpec,
+                                        signedObject, expiredOk);
+        }
+      });
+  }
+
+  public FutureResult symmEncrypt(final SecretKey secretKey,
+                                  final String cipherAlgSpec,
+                                  final Serializable object)
+    throws InterruptedException {
+    return submit(null, new Callable() {
+        public Object call() throws Exception {
+          return _encryptService.symmEncrypt(secretKey, cipherAlgSpec,
+                                             object);
+        }
+      });
+  }
+
+  public FutureResult symmDecrypt(final SecretKey secretKey,
+                                  final SealedObject sealedObject,
+                                  final String symmSpec)
+    throws InterruptedException {
+    return submit(null, new Callable() {
+        public Object call() throws Exception {
+          return _encryptService.symmDecrypt(secretKey, sealedObject,
+                                             symmSpec);
+        }
+      });
+  }
+
+  public FutureResult protectObject(final Serializable object,
+                                    final MessageAddress source,
+                                    final MessageAddress target,
+                                    final SecureMethodParam policy)
+    throws InterruptedException {
+    return submit(target.toAddress(), new Callable() {
+        public Object call() throws Exception {
+          return _encryptService.protectObject(object, source, target,
+                                               policy);
+        }
+      });
+  }
+
+  public FutureResult unprotectObject(final MessageAddress source,
+                                      final MessageAddress target,
+                                      final ProtectedObject envelope,
+                                      final SecureMethodParam policy)
+    throws InterruptedException {
+    return submit(source.toAddress(), new Callable() {
+        public Object call() throws Exception {
+          return _encryptService.unprotectObject(source, target, envelope,
+                                                 policy);
+        }
+      });
+  }
+
+  /**
+   * Runs any operation on the crypto threads, blocking while the
+   * maximum number of operations are pending.
+   *
+   * @param key  operations with equal keys run in submission order;
+   *             <code>null</code> for no ordering.
+   */
+  public FutureResult submit(Object key, Callable op)
+    throws InterruptedException {
+    _pending.acquire();
+    return enqueue(key, op);
+  }
+
+  /**
+   * Like <code>submit</code>, but waits at most <code>msecs</code>
+   * milliseconds for room in the queue.
+   *
+   * @return the result, or <code>null</code> if the queue stayed full.
+   */
+  public FutureResult attemptSubmit(Object key, Callable op, long msecs)
+    throws InterruptedException {
+    if (!_pending.attempt(msecs)) {
+      _rejected.increment();
+      return null;
+    }
+    return enqueue(key, op);
+  }
+
+  /**
+   * Waits for an operation and returns its value, rethrowing the
+   * exception of a failed operation.
+   */
+  public static Object waitFor(FutureResult result)
+    throws GeneralSecurityException, IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a crypto" +
+                                       " operation");
+    } catch (InvocationTargetException e) {
+      Throwable t = e.getTargetException();
+      if (t instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) t;
+      } else if (t instanceof IOException) {
+        throw (IOException) t;
+      } else if (t instanceof RuntimeException) {
+        throw (RuntimeException) t;
+      } else if (t instanceof Error) {
+        throw (Error) t;
+      }
+      GeneralSecurityException gse =
+        new GeneralSecurityException(t.toString());
+      gse.initCause(t);
+      throw gse;
+    }
+  }
+
+  /**
+   * Stops accepting operations. Operations already submitted still run.
+   */
+  public void shutdown() {
+    synchronized (_queues) {
+      _shutdown = true;
+    }
+    _executor.shutdownAfterProcessingCurrentlyQueuedTasks();
+  }
+
+  /** Operations queued or running */
+  public int getPending() {
+    return (int) (_maxPending - _pending.permits());
+  }
+
+  /** The largest number of operations ever pending at once */
+  public long getPeakPending() {
+    return _peakPending.get();
+  }
+
+  public int getMaxPending() {
+    return _maxPending;
+  }
+
+  /** Number of ordering keys with an operation running */
+  public int getActiveKeys() {
+    synchronized (_queues) {
+      return _queues.size();
+    }
+  }
+
+  public long getSubmitted() {
+    return _submitted.get();
+  }
+
+  public long getCompleted() {
+    return _completed.get();
+  }
+
+  /** Completed operations that threw an exception */
+  public long getFailed() {
+    return _failed.get();
+  }
+
+  /** Calls to <code>attemptSubmit</code> that timed out */
+  public long getRejected() {
+    return _rejected.get();
+  }
+
+  /** Average milliseconds between submission and start of execution */
+  public double getAverageQueueTime() {
+    long n = _completed.get();
+    return (n == 0) ? 0 : ((double) _queueTime.get()) / n;
+  }
+
+  /** Average milliseconds spent running an operation */
+  public double getAverageRunTime() {
+    long n = _completed.get();
+    return (n == 0) ? 0 : ((double) _runTime.get()) / n;
+  }
+
+  public long getMaxRunTime() {
+    return _maxRunTime.get();
+  }
+
+  public String toString() {
+    return "AsyncEncryptionService[pending=" + getPending() +
+      "/" + _maxPending + ", peak=" + getPeakPending() +
+      ", submitted=" + getSubmitted() + ", completed=" + getCompleted() +
+      ", failed=" + getFailed() + ", rejected=" + getRejected() +
+      ", avgQueueMs=" + getAverageQueueTime() +
+      ", avgRunMs=" + getAverageRunTime() +
+      ", maxRunMs=" + getMaxRunTime() + "]";
+  }
+
+  private FutureResult enqueue(Object key, Callable op)
+    throws InterruptedException {
+    Task task = new Task(key, op);
+    boolean run = true;
+    try {
+      synchronized (_queues) {
+        if (_shutdown) {
+          throw new IllegalStateException("AsyncEncryptionService is shut" +
+                                          " down");
+        }
+        if (key != null) {
+          LinkedList waiting = (LinkedList) _queues.get(key);
+          if (waiting == null) {
+            _queues.put(key, new LinkedList());
+          } else {
+            waiting.addLast(task);
+            run = false;
+          }
+        }
+      }
+      _submitted.increment();
+      long pending = getPending();
+      synchronized (_peakPending) {
+        if (pending > _peakPending.get()) {
+          _peakPending.set(pending);
+        }
+      }
+      if (run) {
+        _executor.execute(task);
+      }
+    } catch (InterruptedException e) {
+      _pending.release();
+      throw e;
+    } catch (RuntimeException e) {
+      _pending.release();
+      throw e;
+    }
+    return task._result;
+  }
+
+  /**
+   * Starts the next task waiting for the given key, or marks the key
+   * idle.
+   */
+  private void runNext(Object key) {
+    Task next;
+    synchronized (_queues) {
+      LinkedList waiting = (LinkedList) _queues.get(key);
+      if (waiting.isEmpty()) {
+        _queues.remove(key);
+        return;
+      }
+      next = (Task) waiting.removeFirst();
+    }
+    try {
+      _executor.execute(next);
+    } catch (InterruptedException e) {
+      // the queue is unbounded, so this only happens if the worker
+      // is interrupted; keep the ordering by running the task here.
+      Thread.currentThread().interrupt();
+      next.run();
+    }
+  }
+
+  private class Task
+    implements Runnable
+  {
+    private Object _key;
+    private Callable _op;
+    private FutureResult _result = new FutureResult();
+    private long _submitTime = System.currentTimeMillis();
+
+    Task(Object key, Callable op) {
+      _key = key;
+      _op = op;
+    }
+
+    public void run() {
+      long start = System.currentTimeMillis();
+      try {
+        _result.set(_op.call());
+      } catch (Throwable t) {
+        _failed.increment();
+        if (_log.isDebugEnabled()) {
+          _log.debug("Crypto operation failed", t);
+        }
+        _result.setException(t);
+      } finally {
+        long end = System.currentTimeMillis();
+        _queueTime.add(start - _submitTime);
+        _runTime.add(end - start);
+        synchronized (_maxRunTime) {
+          if (end - start > _maxRunTime.get()) {
+            _maxRunTime.set(end - start);
+          }
+        }
+        _completed.increment();
+        _pending.release();
+        if (_key != null) {
+          runNext(_key);
+        }
+      }
+    }
+  }
+}
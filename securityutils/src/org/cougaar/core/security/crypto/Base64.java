@@ -65,6 +65,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -195,6 +196,125 @@ static public byte[] decode(char[] data)
 }
 
 
+/**
+* Encodes the bytes remaining in <code>src</code> into <code>dst</code>,
+* writing one US-ASCII byte per base64 character.
+*
+* Only whole 3-byte groups are consumed, unless <code>endOfInput</code>
+* is set, in which case a trailing 1 or 2 byte group is written with
+* '=' padding. Encoding stops as soon as <code>dst</code> has no room
+* for another 4-character group. Both buffer positions are advanced
+* past what was processed, so callers can refill or drain the buffers
+* and call again.
+*
+* @param src bytes to encode
+* @param dst receives the base64 characters
+* @param endOfInput true if no more input will follow src
+* @return the number of characters written to dst.
+*/
+static public int encode(ByteBuffer src, ByteBuffer dst, boolean endOfInput)
+{
+    int start = dst.position();
+    while (src.remaining() >= 3 && dst.remaining() >= 4) {
+        int val = ((src.get() & 0xFF) << 16)
+            | ((src.get() & 0xFF) << 8)
+            | (src.get() & 0xFF);
+        dst.put(encodeTable[(val >> 18) & 0x3F]);
+        dst.put(encodeTable[(val >> 12) & 0x3F]);
+        dst.put(encodeTable[(val >> 6) & 0x3F]);
+        dst.put(encodeTable[val & 0x3F]);
+    }
+    int left = src.remaining();
+    if (endOfInput && left > 0 && left < 3 && dst.remaining() >= 4) {
+        int val = (src.get() & 0xFF) << 16;
+        if (left == 2) {
+            val |= (src.get() & 0xFF) << 8;
+        }
+        dst.put(encodeTable[(val >> 18) & 0x3F]);
+        dst.put(encodeTable[(val >> 12) & 0x3F]);
+        dst.put(left == 2 ? encodeTable[(val >> 6) & 0x3F] : PAD);
+        dst.put(PAD);
+    }
+    return dst.position() - start;
+}
+
+/**
+* Decodes the base64 characters remaining in <code>src</code> into
+* <code>dst</code> in a single pass.
+*
+* Characters outside the base64 alphabet (line breaks, white space)
+* are skipped. A group is only consumed once it is complete, i.e. it
+* has 4 characters or is terminated by '=' padding; an incomplete
+* trailing group is left in <code>src</code> for the next call, unless
+* <code>endOfInput</code> is set. Decoding also stops when
+* <code>dst</code> cannot hold the next group.
+*
+* @param src base64 characters, one US-ASCII byte each
+* @param dst receives the decoded bytes
+* @param endOfInput true if no more input will follow src
+* @return the number of bytes written to dst.
+*/
+static public int decode(ByteBuffer src, ByteBuffer dst, boolean endOfInput)
+{
+    int start = dst.position();
+    int mark = src.position();  // start of the group being collected
+    int accum = 0;
+    int count = 0;
+
+    while (src.hasRemaining()) {
+        int c = src.get() & 0xFF;
+        int value = codes[c];
+        if (value >= 0) {
+            accum = (accum << 6) | value;
+            if (++count < 4) {
+                continue;
+            }
+            if (dst.remaining() < 3) {
+                break;
+            }
+            dst.put((byte) (accum >> 16));
+            dst.put((byte) (accum >> 8));
+            dst.put((byte) accum);
+        }
+        else if (c == PAD && count > 0) {
+            // padding closes a short group
+            if (count > 1 && dst.remaining() < count - 1) {
+                break;
+            }
+            putPartial(dst, accum, count);
+        }
+        else if (count > 0) {
+            // junk inside a group
+            continue;
+        }
+        accum = 0;
+        count = 0;
+        mark = src.position();
+    }
+    if (count > 0 && endOfInput && !src.hasRemaining()
+        && dst.remaining() >= count - 1) {
+        putPartial(dst, accum, count);
+        mark = src.position();
+    }
+    src.position(mark);
+    return dst.position() - start;
+}
+
+/**
+* Writes the bytes held by a group of 2 or 3 characters. A lone
+* character carries less than a byte and is dropped.
+*/
+static private void putPartial(ByteBuffer dst, int accum, int count)
+{
+    if (count == 2) {
+        dst.put((byte) (accum >> 4));
+    }
+    else if (count == 3) {
+        dst.put((byte) (accum >> 10));
+        dst.put((byte) (accum >> 2));
+    }
+}
+
 //
 // code characters for values 0..63
 //
@@ -202,10 +322,19 @@ static private char[] alphabet =
     "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/="
         .toCharArray();
 
+//
+// the same characters as US-ASCII bytes, shared with the stream classes
+//
+static final byte PAD = (byte) '=';
+static final byte[] encodeTable = new byte[64];
+static {
+    for (int i = 0; i < 64; i++) encodeTable[i] = (byte) alphabet[i];
+}
+
 //
 // lookup table for converting base64 characters to value in range 0..63
 //
-static private byte[] codes = new byte[256];
+static final byte[] codes = new byte[256];
 static {
     for (int i=0; i<256; i++) codes[i] = -1;
     for (int i = 'A'; i <= 'Z'; i++) codes[i] = (byte)(     i - 'A');
@@ -0,0 +1,148 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that decodes base64 characters read from the
+ * underlying stream.
+ *
+ * The input is decoded in a single pass through fixed-size buffers, so
+ * arbitrarily large encoded data can be read with bounded memory.
+ * Line breaks, white space and other characters outside the base64
+ * alphabet are skipped. '=' padding ends the current group, which
+ * allows several concatenated encodings to be read back to back.
+ */
+public class Base64InputStream
+  extends FilterInputStream
+{
+  private static final int BUFFER_SIZE = 4096;
+
+  /** Encoded characters read from the underlying stream. */
+  private byte[] _raw = new byte[BUFFER_SIZE];
+
+  /** Decoded bytes not yet returned to the caller. */
+  private byte[] _decoded = new byte[(BUFFER_SIZE * 3) / 4 + 3];
+  private int _pos;
+  private int _limit;
+
+  /** Bits carried over between two reads of the underlying stream. */
+  private int _accum;
+  private int _shift;
+  private boolean _eof;
+
+  public Base64InputStream(InputStream in) {
+    super(in);
+  }
+
+  public int read() throws IOException {
+    if (_pos == _limit && !fill()) {
+      return -1;
+    }
+    return _decoded[_pos++] & 0xFF;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (_pos == _limit && !fill()) {
+      return -1;
+    }
+    int n = Math.min(len, _limit - _pos);
+    System.arraycopy(_decoded, _pos, b, off, n);
+    _pos += n;
+    return n;
+  }
+
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while (skipped < n) {
+      if (_pos == _limit && !fill()) {
+        break;
+      }
+      int k = (int) Math.min(n - skipped, _limit - _pos);
+      _pos += k;
+      skipped += k;
+    }
+    return skipped;
+  }
+
+  public int available() throws IOException {
+    return _limit - _pos;
+  }
+
+  public boolean markSupported() {
+    return false;
+  }
+
+  public void mark(int readlimit) {
+  }
+
+  public void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+
+  /**
+   * Decodes the next chunk of the underlying stream.
+   * @return false when the underlying stream is exhausted.
+   */
+  private boolean fill() throws IOException {
+    _pos = 0;
+    _limit = 0;
+    while (_limit == 0) {
+      if (_eof) {
+        return false;
+      }
+      int n = in.read(_raw, 0, _raw.length);
+      if (n == -1) {
+        _eof = true;
+        return false;
+      }
+      for (int i = 0 ; i < n ; i++) {
+        int value = Base64.codes[_raw[i] & 0xFF];
+        if (value >= 0) {
+          _accum = (_accum << 6) | value;
+          _shift += 6;
+          if (_shift >= 8) {
+            _shift -= 8;
+            _decoded[_limit++] = (byte) (_accum >> _shift);
+          }
+        }
+        else if (_raw[i] == Base64.PAD) {
+          // the remaining bits of a padded group are always zero
+          _accum = 0;
+          _shift = 0;
+        }
+      }
+    }
+    return true;
+  }
+}
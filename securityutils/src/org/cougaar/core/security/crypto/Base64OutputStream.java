@@ -0,0 +1,182 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that base64-encodes everything written to it before
+ * passing it on to the underlying stream.
+ *
+ * Data is encoded in whole 3-byte groups through a fixed-size buffer,
+ * so memory use does not depend on the amount of data written. Output
+ * is wrapped into lines of <code>lineLength</code> characters separated
+ * by '\n'. The final partial group and its '=' padding are only written
+ * by <code>finish()</code> or <code>close()</code>.
+ */
+public class Base64OutputStream
+  extends FilterOutputStream
+{
+  /** Line length used by PEM encoding. */
+  public static final int DEFAULT_LINE_LENGTH = 64;
+
+  private static final int BUFFER_SIZE = 4096;
+
+  private int _lineLength;
+  private int _column;
+  private boolean _finished;
+
+  /** Bytes of an incomplete 3-byte group. */
+  private byte[] _pending = new byte[3];
+  private int _pendingCount;
+
+  /** Encoded characters not yet written to the underlying stream. */
+  private byte[] _buf = new byte[BUFFER_SIZE];
+  private int _count;
+
+  public Base64OutputStream(OutputStream out) {
+    this(out, DEFAULT_LINE_LENGTH);
+  }
+
+  /**
+   * @param out        the underlying stream
+   * @param lineLength the number of characters per line. Zero or a
+   *                   negative value disables line wrapping.
+   */
+  public Base64OutputStream(OutputStream out, int lineLength) {
+    super(out);
+    _lineLength = lineLength;
+  }
+
+  public void write(int b) throws IOException {
+    if (_finished) {
+      throw new IOException("Stream already finished");
+    }
+    _pending[_pendingCount++] = (byte) b;
+    if (_pendingCount == 3) {
+      encodeGroup(_pending, 0);
+      _pendingCount = 0;
+    }
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (_finished) {
+      throw new IOException("Stream already finished");
+    }
+    // complete a group left over by a previous write
+    while (_pendingCount > 0 && len > 0) {
+      write(b[off++]);
+      len--;
+    }
+    int end = off + len - (len % 3);
+    for ( ; off < end ; off += 3) {
+      encodeGroup(b, off);
+    }
+    len %= 3;
+    for (int i = 0 ; i < len ; i++) {
+      _pending[_pendingCount++] = b[off + i];
+    }
+  }
+
+  /**
+   * Writes the last partial group with its padding and terminates the
+   * current line, without closing the underlying stream. No data may be
+   * written afterwards.
+   */
+  public void finish() throws IOException {
+    if (_finished) {
+      return;
+    }
+    _finished = true;
+    if (_pendingCount > 0) {
+      int val = (_pending[0] & 0xFF) << 16;
+      if (_pendingCount == 2) {
+        val |= (_pending[1] & 0xFF) << 8;
+      }
+      put(Base64.encodeTable[(val >> 18) & 0x3F]);
+      put(Base64.encodeTable[(val >> 12) & 0x3F]);
+      put(_pendingCount == 2 ? Base64.encodeTable[(val >> 6) & 0x3F]
+          : Base64.PAD);
+      put(Base64.PAD);
+      _pendingCount = 0;
+    }
+    if (_lineLength > 0 && _column > 0) {
+      ensureCapacity(1);
+      _buf[_count++] = '\n';
+      _column = 0;
+    }
+    flushBuffer();
+  }
+
+  /**
+   * Writes the encoded characters buffered so far. An incomplete group
+   * stays pending until more data arrives or the stream is finished.
+   */
+  public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  public void close() throws IOException {
+    finish();
+    super.close();
+  }
+
+  private void encodeGroup(byte[] b, int off) throws IOException {
+    int val = ((b[off] & 0xFF) << 16)
+      | ((b[off + 1] & 0xFF) << 8)
+      | (b[off + 2] & 0xFF);
+    put(Base64.encodeTable[(val >> 18) & 0x3F]);
+    put(Base64.encodeTable[(val >> 12) & 0x3F]);
+    put(Base64.encodeTable[(val >> 6) & 0x3F]);
+    put(Base64.encodeTable[val & 0x3F]);
+  }
+
+  private void put(byte c) throws IOException {
+    ensureCapacity(2);
+    _buf[_count++] = c;
+    if (_lineLength > 0 && ++_column == _lineLength) {
+      _buf[_count++] = '\n';
+      _column = 0;
+    }
+  }
+
+  private void ensureCapacity(int n) throws IOException {
+    if (_count + n > _buf.length) {
+      flushBuffer();
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (_count > 0) {
+      out.write(_buf, 0, _count);
+      _count = 0;
+    }
+  }
+}
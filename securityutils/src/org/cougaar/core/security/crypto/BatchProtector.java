@@ -0,0 +1,425 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.security.GeneralSecurityException;
+import java.security.SignatureException;
+import java.security.SignedObject;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SealedObject;
+import javax.crypto.SecretKey;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.security.services.crypto.EncryptionService;
+import org.cougaar.core.security.services.crypto.KeyRingService;
+
+/**
+ * Protects a batch of objects sent from one agent with a single
+ * signature and a single secret key per target.
+ * <p>
+ * Each object is serialized once, into a shared buffer. When the policy
+ * asks for a signature, the serialized objects are the leaves of a
+ * hash tree whose root is signed once with
+ * <code>EncryptionService.sign</code>; every envelope carries the signed
+ * root and the proof linking its object to it, so each envelope can be
+ * checked on its own. When the policy asks for encryption, one secret
+ * key is created (or taken from a <code>SessionKeyCache</code>) and
+ * wrapped per target, and shared by all envelopes for that target.
+ * <p>
+ * The result is one <code>ProtectedObject</code> per input object and
+ * target, holding an <code>Envelope</code>. These envelopes must be
+ * opened with <code>unprotectObjects</code>, not with
+ * <code>EncryptionService.unprotectObject</code>.
+ */
+public class BatchProtector
+{
+  /** digest used for the hash tree */
+  private static final String DIGEST = "SHA";
+
+  private EncryptionService _encryptService;
+  private KeyRingService _keyRing;
+  private SessionKeyCache _sessionKeys;
+
+  /**
+   * @param sessionKeys used to obtain and unwrap secret keys; may be
+   * null, in which case each batch gets fresh keys.
+   */
+  public BatchProtector(EncryptionService encryptService,
+                        KeyRingService keyRing,
+                        SessionKeyCache sessionKeys) {
+    _encryptService = encryptService;
+    _keyRing = keyRing;
+    _sessionKeys = sessionKeys;
+  }
+
+  /**
+   * Protects objects for a single target.
+   * @return a List of ProtectedObject, in the order of the objects
+   */
+  public List protectObjects(List objects, MessageAddress source,
+                             MessageAddress target,
+                             SecureMethodParam policy)
+    throws GeneralSecurityException, IOException {
+    List targets = new ArrayList(1);
+    targets.add(target);
+    return (List) protectObjects(objects, source, targets, policy).get(target);
+  }
+
+  /**
+   * Protects objects for several targets. Serialization and signing
+   * are done once for all targets.
+   *
+   * @param objects a List of Serializable
+   * @param targets a List of MessageAddress
+   * @return a Map from each target to its List of ProtectedObject, in
+   * the order of the objects
+   */
+  public Map protectObjects(List objects, MessageAddress source,
+                            List targets, SecureMethodParam policy)
+    throws GeneralSecurityException, IOException {
+    int method = policy.secureMethod;
+    boolean sign = (method == SecureMethodParam.SIGN
+                    || method == SecureMethodParam.SIGNENCRYPT);
+    boolean encrypt = (method == SecureMethodParam.ENCRYPT
+                       || method == SecureMethodParam.SIGNENCRYPT);
+    if (!sign && !encrypt && method != SecureMethodParam.PLAIN) {
+      throw new GeneralSecurityException("Unsupported secure method: "
+                                         + policy);
+    }
+
+    int count = objects.size();
+    byte[][] serialized = new byte[count][];
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+    for (int i = 0 ; i < count ; i++) {
+      buffer.reset();
+      ObjectOutputStream oos = new ObjectOutputStream(buffer);
+      oos.writeObject(objects.get(i));
+      oos.close();
+      serialized[i] = buffer.toByteArray();
+    }
+
+    SignedObject signedRoot = null;
+    byte[][][] levels = null;
+    if (sign) {
+      int[] lengths = new int[count];
+      for (int i = 0 ; i < count ; i++) {
+        lengths[i] = serialized[i].length;
+      }
+      byte[][] leaves = (count == 0) ? new byte[0][] :
+        MerkleDigest.hashChunks(DIGEST, serialized, lengths, count);
+      levels = MerkleDigest.levels(DIGEST, leaves);
+      signedRoot = _encryptService.sign(source.toAddress(), policy.signSpec,
+                                        MerkleDigest.root(DIGEST, leaves,
+                                                          count));
+    }
+
+    Map result = new LinkedHashMap();
+    for (Iterator it = targets.iterator() ; it.hasNext() ; ) {
+      MessageAddress target = (MessageAddress) it.next();
+      SecretKey secretKey = null;
+      byte[] wrappedKey = null;
+      CertificateFingerprint targetCert = null;
+      if (encrypt) {
+        X509Certificate cert = findCertificate(_keyRing, target.toAddress(),
+                                               null);
+        targetCert = CertificateFingerprint.getInstance(cert);
+        if (_sessionKeys != null) {
+          SessionKeyCache.SessionKey sk =
+            _sessionKeys.getSessionKey(source.toAddress(), target.toAddress(),
+                                       cert, policy.symmSpec,
+                                       policy.asymmSpec);
+          secretKey = sk.getSecretKey();
+          wrappedKey = sk.getWrappedKey();
+        }
+        else {
+          secretKey = _encryptService.createSecretKey(policy.symmSpec);
+          wrappedKey = _encryptService.encryptSecretKey(policy.asymmSpec,
+                                                        secretKey, cert);
+        }
+      }
+
+      List protectedObjects = new ArrayList(count);
+      for (int i = 0 ; i < count ; i++) {
+        Object content = serialized[i];
+        if (encrypt) {
+          content = _encryptService.symmEncrypt(secretKey, policy.symmSpec,
+                                                serialized[i]);
+        }
+        Envelope env = new Envelope(content, i, count,
+                                    sign ? MerkleDigest.proof(levels, i) : null,
+                                    signedRoot, wrappedKey, targetCert);
+        protectedObjects.add(new ProtectedObject(policy, env));
+      }
+      result.put(target, protectedObjects);
+    }
+    return result;
+  }
+
+  /**
+   * Opens envelopes created by <code>protectObjects</code>. Each
+   * distinct signed root is verified and each distinct wrapped key is
+   * unwrapped only once.
+   *
+   * @param envelopes a List of ProtectedObject
+   * @param policy    the expected policy, or null to accept the policy
+   *                  of each envelope
+   * @return a List of the original objects, in the order of the
+   * envelopes
+   */
+  public List unprotectObjects(MessageAddress source, MessageAddress target,
+                               List envelopes, SecureMethodParam policy)
+    throws GeneralSecurityException, IOException {
+    Map verifiedRoots = new HashMap();
+    Map secretKeys = new HashMap();
+    List objects = new ArrayList(envelopes.size());
+    for (Iterator it = envelopes.iterator() ; it.hasNext() ; ) {
+      ProtectedObject po = (ProtectedObject) it.next();
+      SecureMethodParam smp = po.getSecureMethod();
+      if (policy != null && smp.secureMethod != policy.secureMethod) {
+        throw new GeneralSecurityException("Envelope policy " + smp
+                                           + " does not match " + policy);
+      }
+      if (!(po.getObject() instanceof Envelope)) {
+        throw new GeneralSecurityException("Not a batch envelope: "
+                                           + po.getObject());
+      }
+      Envelope env = (Envelope) po.getObject();
+      int method = smp.secureMethod;
+      boolean sign = (method == SecureMethodParam.SIGN
+                      || method == SecureMethodParam.SIGNENCRYPT);
+      boolean encrypt = (method == SecureMethodParam.ENCRYPT
+                         || method == SecureMethodParam.SIGNENCRYPT);
+
+      byte[] serialized;
+      if (encrypt) {
+        if (!(env._content instanceof SealedObject)) {
+          throw new GeneralSecurityException("Envelope is not encrypted");
+        }
+        SecretKey secretKey = unwrap(target.toAddress(), env, smp, secretKeys);
+        Object o = _encryptService.symmDecrypt(secretKey,
+                                               (SealedObject) env._content,
+                                               smp.symmSpec);
+        if (!(o instanceof byte[])) {
+          throw new GeneralSecurityException("Unable to decrypt envelope");
+        }
+        serialized = (byte[]) o;
+      }
+      else if (env._content instanceof byte[]) {
+        serialized = (byte[]) env._content;
+      }
+      else {
+        throw new GeneralSecurityException("Envelope is encrypted");
+      }
+
+      if (sign) {
+        byte[] root = verifyRoot(source.toAddress(), smp.signSpec,
+                                 env._signedRoot, verifiedRoots);
+        byte[] leaf = MerkleDigest.leaf(DIGEST, serialized, serialized.length);
+        byte[] computed = MerkleDigest.rootFromProof(DIGEST, leaf, env._index,
+                                                     env._count, env._proof);
+        if (computed == null || !Arrays.equals(root, computed)) {
+          throw new SignatureException("Object " + env._index
+                                       + " does not match the signed batch");
+        }
+      }
+
+      ObjectInputStream ois =
+        new ObjectInputStream(new ByteArrayInputStream(serialized));
+      try {
+        objects.add(ois.readObject());
+      }
+      catch (ClassNotFoundException e) {
+        throw new IOException("Unable to read protected object: " + e);
+      }
+      finally {
+        ois.close();
+      }
+    }
+    return objects;
+  }
+
+  private byte[] verifyRoot(String source, String signSpec,
+                            SignedObject signedRoot, Map verified)
+    throws GeneralSecurityException {
+    if (signedRoot == null) {
+      throw new SignatureException("Envelope is not signed");
+    }
+    ByteArrayKey key = new ByteArrayKey(signedRoot.getSignature());
+    byte[] root = (byte[]) verified.get(key);
+    if (root == null) {
+      Object o = _encryptService.verify(source, signSpec, signedRoot);
+      if (!(o instanceof byte[])) {
+        throw new SignatureException("Batch signature of " + source
+                                     + " is not valid");
+      }
+      root = (byte[]) o;
+      verified.put(key, root);
+    }
+    return root;
+  }
+
+  private SecretKey unwrap(String target, Envelope env, SecureMethodParam smp,
+                           Map secretKeys)
+    throws GeneralSecurityException {
+    ByteArrayKey key = new ByteArrayKey(env._wrappedKey);
+    SecretKey secretKey = (SecretKey) secretKeys.get(key);
+    if (secretKey == null) {
+      X509Certificate cert = findCertificate(_keyRing, target,
+                                               env._targetCert);
+      String secretKeyAlg = getKeyAlgorithm(smp.symmSpec);
+      if (_sessionKeys != null) {
+        secretKey = _sessionKeys.decryptSecretKey(smp.asymmSpec,
+                                                  env._wrappedKey,
+                                                  secretKeyAlg, cert);
+      }
+      else {
+        secretKey = _encryptService.decryptSecretKey(smp.asymmSpec,
+                                                     env._wrappedKey,
+                                                     secretKeyAlg, cert);
+      }
+      if (secretKey == null) {
+        throw new GeneralSecurityException("Unable to unwrap key for "
+                                           + target);
+      }
+      secretKeys.put(key, secretKey);
+    }
+    return secretKey;
+  }
+
+  /**
+   * @return the certificate of the agent with the given fingerprint,
+   * or its first certificate if fp is null
+   */
+  static X509Certificate findCertificate(KeyRingService keyRing,
+                                         String name,
+                                         CertificateFingerprint fp)
+    throws CertificateException {
+    List certs = keyRing.findCert(name);
+    if (certs != null) {
+      for (Iterator it = certs.iterator() ; it.hasNext() ; ) {
+        X509Certificate cert =
+          ((CertificateStatus) it.next()).getCertificate();
+        if (fp == null) {
+          return cert;
+        }
+        try {
+          if (fp.equals(CertificateFingerprint.getInstance(cert))) {
+            return cert;
+          }
+        }
+        catch (GeneralSecurityException e) {
+          // not comparable; try the next one
+        }
+      }
+    }
+    throw new CertificateException("No certificate found for " + name);
+  }
+
+  /**
+   * @return the key algorithm of a symmetric spec, e.g. "AES" for
+   * <tt>AES#192/CBC/WithCTS{BC}</tt>
+   */
+  static String getKeyAlgorithm(String symmSpec) {
+    return CipherSpec.getInstance(symmSpec).getAlgorithm();
+  }
+
+  /**
+   * The protected form of one object of a batch.
+   */
+  public static final class Envelope
+    implements Serializable
+  {
+    /** serialized object, as byte[] or SealedObject */
+    private Object _content;
+    private int _index;
+    private int _count;
+    private byte[][] _proof;
+    private SignedObject _signedRoot;
+    private byte[] _wrappedKey;
+    private CertificateFingerprint _targetCert;
+
+    Envelope(Object content, int index, int count, byte[][] proof,
+             SignedObject signedRoot, byte[] wrappedKey,
+             CertificateFingerprint targetCert) {
+      _content = content;
+      _index = index;
+      _count = count;
+      _proof = proof;
+      _signedRoot = signedRoot;
+      _wrappedKey = wrappedKey;
+      _targetCert = targetCert;
+    }
+
+    /** @return the position of the object in its batch */
+    public int getIndex() {
+      return _index;
+    }
+
+    /** @return the number of objects in the batch */
+    public int getCount() {
+      return _count;
+    }
+  }
+
+  private static class ByteArrayKey {
+    private byte[] _bytes;
+    private int _hash;
+
+    ByteArrayKey(byte[] bytes) {
+      _bytes = bytes;
+      int h = 1;
+      for (int i = 0 ; i < bytes.length ; i++) {
+        h = 31 * h + bytes[i];
+      }
+      _hash = h;
+    }
+
+    public int hashCode() {
+      return _hash;
+    }
+
+    public boolean equals(Object o) {
+      return (o instanceof ByteArrayKey)
+        && Arrays.equals(_bytes, ((ByteArrayKey) o)._bytes);
+    }
+  }
+}
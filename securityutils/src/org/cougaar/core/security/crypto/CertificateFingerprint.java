@@ -0,0 +1,241 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The digest of the TBS (to be signed) part of a certificate, as used
+ * by <code>CertificateUtility.getUniqueIdentifier</code>.
+ *
+ * Fingerprints are immutable and carry a precomputed hash code, so they
+ * are cheap map keys. <code>getInstance</code> keeps the fingerprints of
+ * recently used certificates in a bounded cache. The cache compares
+ * certificates by identity and holds them weakly, so looking up a
+ * certificate never re-encodes or re-hashes it and never keeps it
+ * alive. The cache size defaults to 1024 and can be set with the
+ * <tt>org.cougaar.core.security.crypto.fingerprintCacheSize</tt>
+ * system property.
+ */
+public final class CertificateFingerprint
+  implements Serializable
+{
+  public static final String CACHE_SIZE_PROP =
+    "org.cougaar.core.security.crypto.fingerprintCacheSize";
+
+  private static final int CACHE_SIZE =
+    Integer.getInteger(CACHE_SIZE_PROP, 1024).intValue();
+
+  /** Certificates whose key was cleared by the garbage collector. */
+  private static final ReferenceQueue _cleared = new ReferenceQueue();
+
+  /** IdentityKey to CertificateFingerprint, least recently used first. */
+  private static final Map _cache = new LinkedHashMap(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+
+  /** The digest algorithm, e.g. SHA or MD5 */
+  private String _algorithm;
+  private byte[] _digest;
+  private int _hashCode;
+  private transient String _hashValue;
+
+  public CertificateFingerprint(String algorithm, byte[] digest) {
+    _algorithm = algorithm;
+    _digest = (byte[]) digest.clone();
+    int h = algorithm.hashCode();
+    for (int i = 0 ; i < _digest.length ; i++) {
+      h = 31 * h + _digest[i];
+    }
+    _hashCode = h;
+  }
+
+  /**
+   * Returns the fingerprint of a certificate, computing it only if the
+   * same certificate object has not been seen recently.
+   */
+  public static CertificateFingerprint getInstance(X509Certificate cert)
+    throws NoSuchAlgorithmException, CertificateEncodingException {
+    CertificateFingerprint fp;
+    synchronized (_cache) {
+      expungeCleared();
+      fp = (CertificateFingerprint) _cache.get(new IdentityKey(cert, null));
+    }
+    if (fp == null) {
+      fp = compute(cert);
+      synchronized (_cache) {
+        _cache.put(new IdentityKey(cert, _cleared), fp);
+      }
+    }
+    return fp;
+  }
+
+  /**
+   * Returns the fingerprints of several certificates, taking the cache
+   * lock once for the lookups and once for the new entries.
+   */
+  public static CertificateFingerprint[] getInstances(X509Certificate[] certs)
+    throws NoSuchAlgorithmException, CertificateEncodingException {
+    CertificateFingerprint[] fps = new CertificateFingerprint[certs.length];
+    boolean missing = false;
+    synchronized (_cache) {
+      expungeCleared();
+      for (int i = 0 ; i < certs.length ; i++) {
+        fps[i] = (CertificateFingerprint)
+          _cache.get(new IdentityKey(certs[i], null));
+        missing |= (fps[i] == null);
+      }
+    }
+    if (missing) {
+      boolean[] added = new boolean[certs.length];
+      for (int i = 0 ; i < certs.length ; i++) {
+        if (fps[i] == null) {
+          fps[i] = compute(certs[i]);
+          added[i] = true;
+        }
+      }
+      synchronized (_cache) {
+        for (int i = 0 ; i < certs.length ; i++) {
+          if (added[i]) {
+            _cache.put(new IdentityKey(certs[i], _cleared), fps[i]);
+          }
+        }
+      }
+    }
+    return fps;
+  }
+
+  /** Computes a fingerprint, bypassing the cache. */
+  public static CertificateFingerprint compute(X509Certificate cert)
+    throws NoSuchAlgorithmException, CertificateEncodingException {
+    String algorithm = CertificateUtility.getDigestAlgorithm(cert);
+    MessageDigest md = CryptoPrimitives.getMessageDigest(algorithm);
+    try {
+      return new CertificateFingerprint(algorithm,
+                                        md.digest(cert.getTBSCertificate()));
+    }
+    finally {
+      CryptoPrimitives.release(md);
+    }
+  }
+
+  /** Removes all cached fingerprints. */
+  public static void clearCache() {
+    synchronized (_cache) {
+      _cache.clear();
+    }
+  }
+
+  public String getAlgorithm() {
+    return _algorithm;
+  }
+
+  public byte[] getDigest() {
+    return (byte[]) _digest.clone();
+  }
+
+  /** @return the digest as a lower case hex string. */
+  public String getHashValue() {
+    if (_hashValue == null) {
+      _hashValue = CertificateUtility.toHex(_digest);
+    }
+    return _hashValue;
+  }
+
+  /** @return the algorithm and hex digest, e.g. SHA-0a1b... */
+  public String getUniqueIdentifier() {
+    return _algorithm + "-" + getHashValue();
+  }
+
+  public int hashCode() {
+    return _hashCode;
+  }
+
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof CertificateFingerprint)) {
+      return false;
+    }
+    CertificateFingerprint fp = (CertificateFingerprint) o;
+    return _hashCode == fp._hashCode
+      && _algorithm.equals(fp._algorithm)
+      && Arrays.equals(_digest, fp._digest);
+  }
+
+  public String toString() {
+    return getUniqueIdentifier();
+  }
+
+  private static void expungeCleared() {
+    Reference ref;
+    while ((ref = _cleared.poll()) != null) {
+      _cache.remove(ref);
+    }
+  }
+
+  /**
+   * A weak reference compared by the identity of its referent. A
+   * cleared key is only equal to itself.
+   */
+  private static class IdentityKey extends WeakReference {
+    private int _hash;
+
+    IdentityKey(Object o, ReferenceQueue q) {
+      super(o, q);
+      _hash = System.identityHashCode(o);
+    }
+
+    public int hashCode() {
+      return _hash;
+    }
+
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof IdentityKey)) {
+        return false;
+      }
+      Object referent = get();
+      return referent != null && referent == ((IdentityKey) o).get();
+    }
+  }
+}
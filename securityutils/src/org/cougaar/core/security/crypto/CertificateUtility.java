@@ -30,15 +30,14 @@ import org.cougaar.core.security.policy.CertificateAttributesPolicy;
 import org.cougaar.util.log.Logger;
 import org.cougaar.util.log.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.PushbackInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
@@ -49,10 +48,10 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.StringTokenizer;
+import java.util.List;
+
+import EDU.oswego.cs.dl.util.concurrent.FJTask;
 
-import sun.misc.BASE64Decoder;
-import sun.misc.BASE64Encoder;
 import sun.security.pkcs.PKCS7;
 import sun.security.util.ObjectIdentifier;
 import sun.security.x509.KeyUsageExtension;
@@ -82,68 +81,270 @@ public class CertificateUtility {
   static {
     _log = LoggerFactory.getInstance().createLogger(CertificateUtility.class);
   }
+  /** DER tag of a SEQUENCE. */
+  private static final int DER_SEQUENCE = 0x30;
+  /** DER tag of an OBJECT IDENTIFIER. */
+  private static final int DER_OID = 0x06;
+  /** Encoded value of the PKCS#7 content type arc, 1.2.840.113549.1.7 */
+  private static final byte[] PKCS7_OID_PREFIX = {
+    0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x07 };
+  /** Enough bytes to hold a SEQUENCE header and the content type OID. */
+  private static final int SNIFF_LENGTH = 2 + 4 + 2 + PKCS7_OID_PREFIX.length + 1;
+
+  /** Lists handed to a single fork-join task by parseAll. */
+  private static final int PARSE_BATCH = 8;
+
+  /**
+   * Parses an X.509 certificate, a PKCS#7 structure, or a sequence of
+   * PEM blocks holding either. The format is decided from the leading
+   * bytes, so the stream does not need to support mark/reset.
+   * <p>
+   * A DER element is read up to its encoded length and no further, so
+   * data following it (for instance another certificate) is left in
+   * <code>inputstream</code>. PEM input is read to the end.
+   *
+   * @return a collection of X509Certificate
+   */
   public static Collection parseX509orPKCS7Cert(InputStream inputstream)
     throws CertificateException
     {
       try {
-	inputstream.mark(inputstream.available());
-	X509CertImpl x509certimpl = new X509CertImpl(inputstream);
-	/*
-	  if (CryptoDebug.debug) {
-	  System.out.println("X509: " + x509certimpl);
-	  // Print DN
-	  System.out.println("DN: " + x509certimpl.getSubjectDN().toString());
-	  }
-	*/
-	return Arrays.asList(new X509Certificate[] {
-	  x509certimpl
-	});
+	PushbackInputStream in =
+	  new PushbackInputStream(inputstream, SNIFF_LENGTH);
+	byte[] head = new byte[SNIFF_LENGTH];
+	int n = readHead(in, head, 0, 2);
+	if (n == 0) {
+	  throw new CertificateException("No certificate data");
+	}
+	if ((head[0] & 0xFF) != DER_SEQUENCE) {
+	  in.unread(head, 0, n);
+	  return parsePemCertificates(in);
+	}
+	// Never read ahead past the end of the element: whatever is
+	// pushed back but not consumed would be lost to the caller.
+	int lenSize = derLengthSize(head, 1);
+	n = readHead(in, head, n, Math.min(1 + lenSize, SNIFF_LENGTH));
+	long total = derElementLength(head, n);
+	int limit = (total < 0 || total > SNIFF_LENGTH)
+	  ? SNIFF_LENGTH : (int) total;
+	n = readHead(in, head, n, limit);
+	in.unread(head, 0, n);
+	return parseDerCertificates(readDerElement(in, head, n));
       }
-      catch(CertificateException certificateexception) {
-         if (_log.isDebugEnabled()) {
-           _log.debug("Certificate exception: " + certificateexception);
-         }
+      catch(IOException ioexception) {
+	throw new CertificateException(ioexception.getMessage());
       }
-      catch(IOException ioexception1) {
-	throw new CertificateException(ioexception1.getMessage());
+    }
+
+  /**
+   * Reads into head[n..limit), stopping early at the end of the stream.
+   * @return the number of bytes now in head
+   */
+  private static int readHead(InputStream in, byte[] head, int n, int limit)
+    throws IOException
+    {
+      int r;
+      while (n < limit && (r = in.read(head, n, limit - n)) != -1) {
+	n += r;
       }
-      try {
-	inputstream.reset();
-	PKCS7 pkcs7 = new PKCS7(inputstream);
-	//System.out.println("PKCS7: " + pkcs7);
-
-	X509Certificate ax509certificate[] = pkcs7.getCertificates();
-	if(ax509certificate != null)
-	  return Arrays.asList(ax509certificate);
-	else
-	  return new ArrayList(0);
+      return n;
+    }
+
+  /**
+   * Parses a list of encoded certificates in parallel. Each element is
+   * a byte[] holding one DER encoded X.509 certificate or PKCS#7
+   * structure, or PEM text, as accepted by parseX509orPKCS7Cert.
+   *
+   * @return the certificates, in the order of the list.
+   */
+  public static List parseAll(List encodedCerts)
+    throws CertificateException
+    {
+      byte[][] input = new byte[encodedCerts.size()][];
+      encodedCerts.toArray(input);
+      Collection[] parsed = new Collection[input.length];
+      ParseTask task = new ParseTask(input, parsed, 0, input.length);
+      if (input.length <= PARSE_BATCH) {
+	task.run();
       }
-      catch(IOException ioexception) {
-	throw new CertificateException(ioexception.getMessage());
+      else {
+	try {
+	  CryptoTaskGroup.getGroup().invoke(task);
+	}
+	catch (InterruptedException ie) {
+	  throw new CertificateException("Interrupted while parsing certificates");
+	}
+      }
+      if (task.getError() != null) {
+	throw task.getError();
+      }
+      ArrayList certs = new ArrayList(input.length);
+      for (int i = 0 ; i < parsed.length ; i++) {
+	certs.addAll(parsed[i]);
+      }
+      return certs;
+    }
+
+  /** Splits a parseAll request until batches are small enough. */
+  private static class ParseTask extends FJTask {
+    private byte[][] _input;
+    private Collection[] _output;
+    private int _from;
+    private int _to;
+    private CertificateException _error;
+
+    ParseTask(byte[][] input, Collection[] output, int from, int to) {
+      _input = input;
+      _output = output;
+      _from = from;
+      _to = to;
+    }
+
+    CertificateException getError() {
+      return _error;
+    }
+
+    public void run() {
+      if (_to - _from > PARSE_BATCH) {
+	int mid = (_from + _to) >>> 1;
+	ParseTask left = new ParseTask(_input, _output, _from, mid);
+	ParseTask right = new ParseTask(_input, _output, mid, _to);
+	coInvoke(left, right);
+	_error = (left._error != null) ? left._error : right._error;
+	return;
+      }
+      for (int i = _from ; i < _to && _error == null ; i++) {
+	try {
+	  _output[i] = parseEncoded(_input[i]);
+	}
+	catch (CertificateException e) {
+	  _error = e;
+	}
+	catch (IOException e) {
+	  _error = new CertificateException(e.getMessage());
+	}
+	catch (RuntimeException e) {
+	  _error = new CertificateException(e.toString());
+	}
+      }
+    }
+  }
+
+  private static Collection parseEncoded(byte[] encoded)
+    throws IOException, CertificateException
+    {
+      if (encoded.length > 0 && (encoded[0] & 0xFF) == DER_SEQUENCE) {
+	return parseDerCertificates(encoded);
+      }
+      return parsePemCertificates(new ByteArrayInputStream(encoded));
+    }
+
+  /**
+   * Decodes every PEM block of a stream.
+   */
+  private static Collection parsePemCertificates(InputStream inputstream)
+    throws IOException, CertificateException
+    {
+      ArrayList certs = new ArrayList();
+      PemReader reader = new PemReader(inputstream);
+      PemReader.Block block;
+      while ((block = reader.readBlock()) != null) {
+	certs.addAll(parseDerCertificates(block.getEncoded()));
+      }
+      if (certs.isEmpty()) {
+	throw new CertificateException("No certificate found");
+      }
+      return certs;
+    }
+
+  /**
+   * Decodes a DER encoded X.509 certificate or PKCS#7 structure,
+   * telling them apart by the element that follows the outer SEQUENCE
+   * header: a SEQUENCE for a certificate, the PKCS#7 content type OID
+   * for a ContentInfo.
+   */
+  private static Collection parseDerCertificates(byte[] der)
+    throws IOException, CertificateException
+    {
+      if (!isPkcs7(der)) {
+	return Arrays.asList(new X509Certificate[] { new X509CertImpl(der) });
+      }
+      X509Certificate ax509certificate[] = new PKCS7(der).getCertificates();
+      if(ax509certificate != null)
+	return Arrays.asList(ax509certificate);
+      else
+	return new ArrayList(0);
+    }
+
+  private static boolean isPkcs7(byte[] der) {
+    int off = 1 + derLengthSize(der, 1);
+    if (off + 2 + PKCS7_OID_PREFIX.length > der.length
+	|| (der[off] & 0xFF) != DER_OID
+	|| der[off + 1] <= PKCS7_OID_PREFIX.length) {
+      return false;
+    }
+    off += 2;
+    for (int i = 0 ; i < PKCS7_OID_PREFIX.length ; i++) {
+      if (der[off + i] != PKCS7_OID_PREFIX[i]) {
+	return false;
       }
     }
+    return true;
+  }
 
-  private static String readLine(BufferedReader bufferedreader)
+  /** @return the number of bytes of the DER length at der[off] */
+  private static int derLengthSize(byte[] der, int off) {
+    if (off >= der.length || (der[off] & 0x80) == 0) {
+      return 1;
+    }
+    return 1 + (der[off] & 0x7F);
+  }
+
+  /**
+   * @return the total length of the DER element whose first n bytes are
+   *         in head, or -1 if it has an indefinite length or its length
+   *         is not in head.
+   */
+  private static long derElementLength(byte[] head, int n) {
+    int lenSize = derLengthSize(head, 1);
+    if (n > 1 && lenSize <= 5 && 1 + lenSize <= n && head[1] != (byte) 0x80) {
+      long len = (lenSize == 1) ? head[1] & 0x7F : 0;
+      for (int i = 2 ; i <= lenSize ; i++) {
+	len = (len << 8) | (head[i] & 0xFF);
+      }
+      return 1 + lenSize + len;
+    }
+    return -1;
+  }
+
+  /**
+   * Reads the DER element at the start of the stream, whose first n
+   * bytes are also in head, using its encoded length rather than
+   * available(). An indefinite length (BER) element
+   * is read up to the end of the stream. The element is read in pieces,
+   * so a forged length fails at the end of the stream instead of
+   * allocating a buffer of that size.
+   */
+  private static byte[] readDerElement(InputStream in, byte[] head, int n)
     throws IOException
     {
-      int defaultExpectedLineLength = 80;
-      StringBuffer stringbuffer = new StringBuffer(defaultExpectedLineLength);
-      int i;
-      do {
-	i = bufferedreader.read();
-	stringbuffer.append((char)i);
-      } while(i != -1 && i != 10 && i != 13);
-      if(i == -1)
-	return null;
-      if(i == 13) {
-	bufferedreader.mark(1);
-	int j = bufferedreader.read();
-	if(j == 10)
-	  stringbuffer.append((char)i);
-	else
-	  bufferedreader.reset();
+      long total = derElementLength(head, n);
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      long left = (total < 0) ? Long.MAX_VALUE : total;
+      while (left > 0) {
+	int r = in.read(buf, 0, (int) Math.min(buf.length, left));
+	if (r == -1) {
+	  if (total < 0) {
+	    break;
+	  }
+	  throw new EOFException("DER element truncated: " + total
+				 + " bytes expected");
+	}
+	bos.write(buf, 0, r);
+	left -= r;
       }
-      return stringbuffer.toString();
+      return bos.toByteArray();
     }
 
   public static String getBase64Block(String sbuf, String header, String trailer)
@@ -179,16 +380,18 @@ public class CertificateUtility {
   public static String base64encode(byte [] der, String header, String trailer)
     throws IOException
     {
-      ByteArrayOutputStream b = new ByteArrayOutputStream(500);
-      base64encode(b, der, header, trailer);
-      return b.toString("US-ASCII");
+      return PemWriter.toString(der, header, trailer);
     }
 
   public static void base64EncodeCertificates(OutputStream out, X509Certificate[] certs)
     throws CertificateEncodingException, IOException
     {
-      for (int i = 0 ; i < certs.length ; i++) {
-	base64encode(out, certs[i].getEncoded(), PKCS7HEADER, PKCS7TRAILER);
+      PemWriter w = getPemWriter(out);
+      try {
+	w.writeCertificates(certs);
+      }
+      finally {
+	w.reset((OutputStream) null);
       }
     }
 
@@ -196,126 +399,68 @@ public class CertificateUtility {
 				  String header, String trailer)
     throws IOException
     {
-      String h = header + "\n";
-      String t = trailer + "\n";
-
-      out.write(h.getBytes());
-      BASE64Encoder b64 = new BASE64Encoder();
-      b64.encodeBuffer(der, out);
-      out.write(t.getBytes());
+      PemWriter w = getPemWriter(out);
+      try {
+	w.write(der, header, trailer);
+	w.flush();
+      }
+      finally {
+	w.reset((OutputStream) null);
+      }
     }
 
+  /** One PemWriter (and its buffer) per thread. */
+  private static ThreadLocal _pemWriter = new ThreadLocal() {
+      protected Object initialValue() {
+	return new PemWriter((OutputStream) null);
+      }
+    };
+
+  private static PemWriter getPemWriter(OutputStream out) {
+    PemWriter w = (PemWriter) _pemWriter.get();
+    w.reset(out);
+    return w;
+  }
+
+  /**
+   * Checks whether the stream starts with a PEM BEGIN line, without
+   * consuming it. The stream must support mark/reset.
+   */
   public static boolean isBase64(InputStream inputstream)
     throws IOException
     {
-      if(inputstream.available() >= 10) {
-	inputstream.mark(10);
-	int i = inputstream.read();
-	int j = inputstream.read();
-	int k = inputstream.read();
-	int l = inputstream.read();
-	int i1 = inputstream.read();
-	int j1 = inputstream.read();
-	int k1 = inputstream.read();
-	int l1 = inputstream.read();
-	int i2 = inputstream.read();
-	int j2 = inputstream.read();
-	inputstream.reset();
-	return i == 45 && j == 45 && k == 45 && l == 45 && i1 == 45 && j1 == 66 && k1 == 69 && l1 == 71 && i2 == 73 && j2 == 78;
-      } else {
-	throw new IOException("Cannot determine encoding format");
-      }
+      return PemReader.isPem(inputstream);
     }
 
+  /**
+   * Decodes the first PEM block of the stream. The stream is left
+   * positioned just after the END line of that block, so that the next
+   * block can be read by another call. The stream is read byte by byte;
+   * use a buffered stream, or a <code>PemReader</code> to read several
+   * blocks in one pass.
+   */
   public static byte[] base64_to_binary(InputStream inputstream)
     throws IOException
     {
-      long l = 0L;
-      inputstream.mark(inputstream.available());
-      BufferedInputStream bufferedinputstream = new BufferedInputStream(inputstream);
-      BufferedReader bufferedreader = new BufferedReader(new InputStreamReader(bufferedinputstream));
-      String s;
-      if((s = readLine(bufferedreader)) == null || !s.startsWith("-----BEGIN"))
-	throw new IOException("Unsupported encoding");
-      l += s.length();
-      StringBuffer stringbuffer = new StringBuffer();
-      for(; (s = readLine(bufferedreader)) != null && !s.startsWith("-----END"); stringbuffer.append(s));
-      if(s == null) {
+      PemReader reader = new PemReader(inputstream, false);
+      PemReader.Block block = reader.readBlock();
+      if (block == null) {
 	throw new IOException("Unsupported encoding");
-      } else {
-	l += s.length();
-	l += stringbuffer.length();
-	inputstream.reset();
-	inputstream.skip(l);
-	BASE64Decoder base64decoder = new BASE64Decoder();
-	return base64decoder.decodeBuffer(stringbuffer.toString());
       }
+      return block.getEncoded();
     }
 
   public static String toHexinHTML(byte[] data)
     {
-      StringBuffer buff=new StringBuffer("");
-      buff.append("&nbsp;&nbsp;");
-      int blockcount=0;
-      int linecount=0;
-      for(int i = 0; i < data.length; i++) {
-	String digit = Integer.toHexString(data[i] & 0x00ff);
-	if(digit.length() < 2)buff.append("0");
-	buff.append(digit);
-	blockcount++;
-	if(blockcount>1)
-	  {
-	    buff.append("&nbsp;&nbsp;");
-	    blockcount=0;
-	    linecount++;
-	  }
-	if(linecount>7)
-	  {
-	    linecount=0;
-	    blockcount=0;
-	    buff.append("<br>");
-	    buff.append("&nbsp;&nbsp;");
-	  }
-      }
-      return buff.toString();
+      return Hex.toHTML(data);
     }
 
 
   public static String getX500Domain(String aDN, boolean setType,
 				     char separator, boolean keepOrder)
     {
-      String domain = "";
-
-      StringTokenizer parser = new StringTokenizer(aDN, ",=");
-      while(parser.hasMoreElements()) {
-	String tok1 = parser.nextToken().trim().toLowerCase();
-	String tok2 = parser.nextToken();
-	if (tok1.equals("dc")) {
-	  if (keepOrder) {
-	    if (domain.length() > 0) {
-	      domain = domain + separator;
-	    }
-	    if (setType) {
-	      domain = domain + tok1 + "=" + tok2;
-	    }
-	    else {
-	      domain = domain + tok2;
-	    }
-	  }
-	  else {
-	    if (domain.length() > 0) {
-	      domain = separator + domain;
-	    }
-	    if (setType) {
-	      domain = domain + tok1 + "=" + tok2;
-	    }
-	    else {
-	      domain = tok2 + domain;
-	    }
-	  }
-	}
-      }
-      return domain;
+      return ParsedDN.getInstance(aDN).getDomain(setType, separator,
+						 keepOrder);
     }
 
   public static void printCertificateDetails(PrintWriter out, X509Certificate  certimpl) {
@@ -367,45 +512,42 @@ public class CertificateUtility {
 		+ "</PRE>");
     out.println("<br>");
     // Fingerprint
-    out.println("<b>MD5 fingerprint &nbsp;&nbsp;:</b><PRE>"
-		+ getCertFingerPrint("MD5", certimpl)
-		+ "</PRE>");
-    out.println("<b>SHA1 fingerprint &nbsp;&nbsp;:</b><PRE>"
-		+ getCertFingerPrint("SHA1", certimpl)
-		+ "</PRE>");
+    out.print("<b>MD5 fingerprint &nbsp;&nbsp;:</b><PRE>");
+    printCertFingerPrint("MD5", certimpl, out);
+    out.println("</PRE>");
+    out.print("<b>SHA1 fingerprint &nbsp;&nbsp;:</b><PRE>");
+    printCertFingerPrint("SHA1", certimpl, out);
+    out.println("</PRE>");
     out.println("<br>");
   }
 
-  private static String getCertFingerPrint(String s, Certificate certificate) {
+  private static void printCertFingerPrint(String s, Certificate certificate,
+					   PrintWriter out) {
+    byte abyte1[];
+    MessageDigest messagedigest = null;
     try {
       byte abyte0[] = certificate.getEncoded();
-      MessageDigest messagedigest = MessageDigest.getInstance(s);
-      byte abyte1[] = messagedigest.digest(abyte0);
-      return CertificateUtility.toHexinHTML(abyte1);
+      messagedigest = CryptoPrimitives.getMessageDigest(s);
+      abyte1 = messagedigest.digest(abyte0);
     }
     catch (Exception  e) {
       //System.out.println("Unable to compute certificate fingerprint");
-      return "Unable to compute fingerprint";
+      out.print("Unable to compute fingerprint");
+      return;
+    }
+    finally {
+      CryptoPrimitives.release(messagedigest);
     }
+    Hex.writeHTML(abyte1, out);
   }
 
   public static String findAttribute(String dname, String attrib) {
-    attrib = attrib + "=";
-    StringTokenizer st = new StringTokenizer(dname, ",");
-    String title = null;
-    for (int i = 0 ; st.hasMoreTokens() ; i++) {
-      String s = st.nextToken().trim().toLowerCase();
-      if (s.startsWith(attrib)) {
-        title = s.substring(attrib.length(), s.length());
-        break;
-      }
-    }
-    return title;
+    return ParsedDN.getInstance(dname).getAttribute(attrib);
   }
 
   public static  X500Name getX500Name(String dname) {
     try {
-      return new X500Name(dname);
+      return ParsedDN.getInstance(dname).getX500Name();
     }
     catch (IOException iox) {
       if (_log.isDebugEnabled()) {
@@ -416,54 +558,49 @@ public class CertificateUtility {
   }
 
   public static String  parseDNforFilter(String aDN) {
-
-    StringBuffer filter = new StringBuffer("(&");
-    StringTokenizer parser = new StringTokenizer(aDN, ",=");
-    while(parser.hasMoreElements()) {
-      String tok1 = parser.nextToken().trim().toLowerCase();
-      if (tok1.equals("t"))
-	tok1 = "title";
-      String tok2 = parser.nextToken();
-
-      filter.append( "(" + tok1 + "=" + tok2 + ")");
-    }
-    filter.append(")");
-    return filter.toString();
+    return ParsedDN.getInstance(aDN).getLdapFilter();
   }
 
   public static String getX500DN(String commonName,String title , CertificateAttributesPolicy certAttribPolicy) {
-    StringBuffer dn=new StringBuffer("cn=" + commonName);
-    dn.append(", ou=" + certAttribPolicy.ou);
-    dn.append(",o=" + certAttribPolicy.o);
-    dn.append(",l=" + certAttribPolicy.l);
-    dn.append(",st=" + certAttribPolicy.st);
-    dn.append(",c=" + certAttribPolicy.c);
-    dn.append(",t=" + title);
+    StringBuffer dn=new StringBuffer(128);
+    dn.append("cn=").append(commonName);
+    dn.append(", ou=").append(certAttribPolicy.ou);
+    dn.append(",o=").append(certAttribPolicy.o);
+    dn.append(",l=").append(certAttribPolicy.l);
+    dn.append(",st=").append(certAttribPolicy.st);
+    dn.append(",c=").append(certAttribPolicy.c);
+    dn.append(",t=").append(title);
     return dn.toString();
   }
 
   public static  MessageDigest createDigest(String algorithm, byte[] data)
     throws NoSuchAlgorithmException   {
-    MessageDigest md = MessageDigest.getInstance(algorithm);
+    MessageDigest md = CryptoPrimitives.getMessageDigest(algorithm);
     // Create a digest
-    md.reset();
     md.update(data);
     md.digest();
-    return md;
+    // The caller keeps the digest, so hand out a copy when possible
+    // and keep the pooled instance.
+    try {
+      MessageDigest copy = (MessageDigest) md.clone();
+      CryptoPrimitives.release(md);
+      return copy;
+    }
+    catch (CloneNotSupportedException e) {
+      return md;
+    }
   }
 
   public static  String toHex(byte[] data) {
-    StringBuffer buff = new StringBuffer();
-    for(int i = 0; i < data.length; i++) {
-      String digit = Integer.toHexString(data[i] & 0x00ff);
-      if(digit.length() < 2)buff.append("0");
-      buff.append(digit);
-    }
-    return buff.toString();
+    return Hex.encode(data);
   }
 
   public static String getUniqueIdentifier(X509Certificate cert) {
-    return getDigestAlgorithm(cert) + "-" + getHashValue(cert);
+    CertificateFingerprint fp = getFingerprint(cert);
+    if (fp == null) {
+      return getDigestAlgorithm(cert) + "-" + null;
+    }
+    return fp.getUniqueIdentifier();
   }
 
   public static String getDigestAlgorithm(X509Certificate cert) {
@@ -472,34 +609,39 @@ public class CertificateUtility {
   }
 
   public static String getHashValue(X509Certificate cert) {
-    MessageDigest certDigest;
-    byte[] der = null;
-    String hash = null;
+    CertificateFingerprint fp = getFingerprint(cert);
+    return (fp == null) ? null : fp.getHashValue();
+  }
 
+  /**
+   * Returns the (cached) digest of the TBS part of the certificate,
+   * or null if it cannot be computed.
+   */
+  public static CertificateFingerprint getFingerprint(X509Certificate cert) {
     // Use the prefix of the signature algorithm for creating a DN
     // Acceptable values: SHA, MD2, MD4, MD5
     try {
-      certDigest = MessageDigest.getInstance(getDigestAlgorithm(cert));
-      der = cert.getTBSCertificate();
-      certDigest.reset();
-      certDigest.update(der);
-      hash = toHex(certDigest.digest());
+      return CertificateFingerprint.getInstance(cert);
     }
     catch(Exception ex) {
       if (_log.isWarnEnabled()) {
 	_log.warn("Unable to get message digest", ex);
       }
     }
-    return hash;
+    return null;
   }
 
   public static X509Certificate getX509Certificate(Certificate cert) throws 
     CertificateEncodingException,CertificateException, IOException {
     InputStream inStream = new ByteArrayInputStream(cert.getEncoded());
-    CertificateFactory cf = CertificateFactory.getInstance("X.509");
-    X509Certificate x509cert = (X509Certificate)cf.generateCertificate(inStream);
-    inStream.close();
-    return x509cert;
+    CertificateFactory cf = CryptoPrimitives.getCertificateFactory("X.509");
+    try {
+      return (X509Certificate)cf.generateCertificate(inStream);
+    }
+    finally {
+      CryptoPrimitives.release(cf);
+      inStream.close();
+    }
   }
 
 }
@@ -0,0 +1,427 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.LoggerFactory;
+
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+import EDU.oswego.cs.dl.util.concurrent.Semaphore;
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedLong;
+
+/**
+ * A pool of <code>Cipher</code> instances per symmetric spec, meant to
+ * back <code>EncryptionService.getCipher</code>,
+ * <code>returnCipher</code> and <code>createSecretKey</code>. Specs
+ * are parsed once through <code>CipherSpec</code>.
+ * <p>
+ * At most <tt>org.cougaar.core.security.crypto.cipherPool.capacity</tt>
+ * ciphers (default 64) of a spec may be borrowed at once. A caller
+ * that finds none left waits up to
+ * <tt>org.cougaar.core.security.crypto.cipherPool.borrowTimeout</tt>
+ * milliseconds (default 1000) and then gets an unpooled cipher, which
+ * is dropped when returned, so a full pool slows callers down but never
+ * fails them. Idle ciphers are kept in stripes chosen by thread, so
+ * concurrent callers rarely contend on the same lock.
+ * <p>
+ * A cipher that has been borrowed for longer than
+ * <tt>org.cougaar.core.security.crypto.cipherPool.leakTimeout</tt>
+ * seconds (default 60) is considered leaked: it is logged (with the
+ * stack of the borrower when debug logging is on) and its place in the
+ * pool is given back. <code>withCipher</code> returns the cipher
+ * itself, and is the preferred way to use the pool.
+ */
+public class CipherPool
+{
+  public static final String CAPACITY_PROP =
+    "org.cougaar.core.security.crypto.cipherPool.capacity";
+  public static final String BORROW_TIMEOUT_PROP =
+    "org.cougaar.core.security.crypto.cipherPool.borrowTimeout";
+  public static final String LEAK_TIMEOUT_PROP =
+    "org.cougaar.core.security.crypto.cipherPool.leakTimeout";
+
+  private static final Logger _log =
+    LoggerFactory.getInstance().createLogger(CipherPool.class);
+
+  /** Work done with a borrowed cipher, see <code>withCipher</code> */
+  public interface CipherTask {
+    Object run(Cipher cipher) throws GeneralSecurityException, IOException;
+  }
+
+  private int _capacity;
+  private int _stripes;
+  private long _borrowTimeout;
+  private long _leakTimeout;
+
+  /** spec string to SpecPool */
+  private Map _pools = new ConcurrentReaderHashMap();
+
+  private SynchronizedLong _borrows = new SynchronizedLong(0);
+  private SynchronizedLong _creates = new SynchronizedLong(0);
+  private SynchronizedLong _waits = new SynchronizedLong(0);
+  private SynchronizedLong _waitTime = new SynchronizedLong(0);
+  private SynchronizedLong _maxWaitTime = new SynchronizedLong(0);
+  private SynchronizedLong _overflows = new SynchronizedLong(0);
+  private SynchronizedLong _leaks = new SynchronizedLong(0);
+
+  public CipherPool() {
+    this(Integer.getInteger(CAPACITY_PROP, 64).intValue(),
+         CryptoTaskGroup.getParallelism(),
+         Integer.getInteger(BORROW_TIMEOUT_PROP, 1000).intValue(),
+         Integer.getInteger(LEAK_TIMEOUT_PROP, 60).intValue() * 1000L);
+  }
+
+  /**
+   * @param capacity      ciphers of one spec that may be borrowed at once
+   * @param stripes       number of idle lists per spec
+   * @param borrowTimeout milliseconds to wait for a free cipher
+   * @param leakTimeout   milliseconds after which a borrowed cipher is
+   *                      considered leaked
+   */
+  public CipherPool(int capacity, int stripes, long borrowTimeout,
+                    long leakTimeout) {
+    if (capacity <= 0 || stripes <= 0) {
+      throw new IllegalArgumentException("capacity and stripes must be" +
+                                         " positive");
+    }
+    _capacity = capacity;
+    _stripes = stripes;
+    _borrowTimeout = borrowTimeout;
+    _leakTimeout = leakTimeout;
+  }
+
+  /**
+   * Borrows a cipher for a spec. It must be given back with
+   * <code>returnCipher</code>, with the same spec.
+   */
+  public Cipher getCipher(String spec)
+    throws NoSuchAlgorithmException, NoSuchPaddingException,
+    NoSuchProviderException {
+    return getPool(spec).borrow();
+  }
+
+  public void returnCipher(String spec, Cipher cipher) {
+    if (cipher == null) {
+      return;
+    }
+    SpecPool pool = (SpecPool) _pools.get(spec);
+    if (pool != null) {
+      pool.giveBack(cipher);
+    }
+  }
+
+  /** Creates a secret key as described by the spec */
+  public SecretKey createSecretKey(String spec)
+    throws NoSuchAlgorithmException, NoSuchProviderException {
+    return CipherSpec.getInstance(spec).createSecretKey();
+  }
+
+  /**
+   * Runs a task with a borrowed cipher, and returns the cipher when the
+   * task is done, even if it fails.
+   *
+   * @return the value returned by the task
+   */
+  public Object withCipher(String spec, CipherTask task)
+    throws GeneralSecurityException, IOException {
+    Cipher cipher = getCipher(spec);
+    try {
+      return task.run(cipher);
+    }
+    finally {
+      returnCipher(spec, cipher);
+    }
+  }
+
+  /**
+   * Reclaims the places of all leaked ciphers now instead of when a
+   * caller has to wait.
+   *
+   * @return the number of leaked ciphers found
+   */
+  public int checkLeaks() {
+    List pools = new ArrayList(_pools.values());
+    int count = 0;
+    for (Iterator it = pools.iterator() ; it.hasNext() ; ) {
+      count += ((SpecPool) it.next()).reclaimLeaks();
+    }
+    return count;
+  }
+
+  /** Drops all idle ciphers. Borrowed ciphers may still be returned. */
+  public void clear() {
+    List pools = new ArrayList(_pools.values());
+    for (Iterator it = pools.iterator() ; it.hasNext() ; ) {
+      ((SpecPool) it.next()).clearIdle();
+    }
+  }
+
+  public long getBorrows() {
+    return _borrows.get();
+  }
+
+  /** Ciphers created because none was idle */
+  public long getCreates() {
+    return _creates.get();
+  }
+
+  /** Borrows that had to wait for a cipher to be returned */
+  public long getWaits() {
+    return _waits.get();
+  }
+
+  /** Average milliseconds spent waiting, over the borrows that waited */
+  public double getAverageWaitTime() {
+    long n = _waits.get();
+    return (n == 0) ? 0 : ((double) _waitTime.get()) / n;
+  }
+
+  public long getMaxWaitTime() {
+    return _maxWaitTime.get();
+  }
+
+  /** Borrows that timed out and got an unpooled cipher */
+  public long getOverflows() {
+    return _overflows.get();
+  }
+
+  /** Ciphers that were never returned */
+  public long getLeaks() {
+    return _leaks.get();
+  }
+
+  public String toString() {
+    return "CipherPool[borrows=" + getBorrows() + ", creates=" +
+      getCreates() + ", waits=" + getWaits() + ", avgWaitMs=" +
+      getAverageWaitTime() + ", maxWaitMs=" + getMaxWaitTime() +
+      ", overflows=" + getOverflows() + ", leaks=" + getLeaks() + "]";
+  }
+
+  private SpecPool getPool(String spec) {
+    SpecPool pool = (SpecPool) _pools.get(spec);
+    if (pool == null) {
+      synchronized (_pools) {
+        pool = (SpecPool) _pools.get(spec);
+        if (pool == null) {
+          pool = new SpecPool(CipherSpec.getInstance(spec));
+          _pools.put(spec, pool);
+        }
+      }
+    }
+    return pool;
+  }
+
+  private static int index(Object o, int n) {
+    return (System.identityHashCode(o) & 0x7FFFFFFF) % n;
+  }
+
+  /** A borrowed cipher */
+  private static class Borrow {
+    private long _time = System.currentTimeMillis();
+    private String _thread = Thread.currentThread().getName();
+    private Throwable _stack;
+  }
+
+  /** Idle ciphers, and borrowed ciphers to their Borrow */
+  private static class Stripe {
+    private LinkedList _idle = new LinkedList();
+    private Map _borrowed = new IdentityHashMap();
+  }
+
+  private class SpecPool {
+    private CipherSpec _spec;
+    private Semaphore _permits;
+    private Stripe[] _stripeList;
+    private int _maxIdle;
+
+    SpecPool(CipherSpec spec) {
+      _spec = spec;
+      _permits = new Semaphore(_capacity);
+      _stripeList = new Stripe[_stripes];
+      for (int i = 0 ; i < _stripes ; i++) {
+        _stripeList[i] = new Stripe();
+      }
+      _maxIdle = (_capacity + _stripes - 1) / _stripes;
+    }
+
+    Cipher borrow()
+      throws NoSuchAlgorithmException, NoSuchPaddingException,
+      NoSuchProviderException {
+      _borrows.increment();
+      boolean permit = takePermit();
+      Cipher cipher = takeIdle();
+      if (cipher == null) {
+        boolean created = false;
+        try {
+          cipher = _spec.createCipher();
+          created = true;
+        }
+        finally {
+          if (!created && permit) {
+            _permits.release();
+          }
+        }
+        _creates.increment();
+      }
+      if (permit) {
+        Borrow b = new Borrow();
+        if (_log.isDebugEnabled()) {
+          b._stack = new Throwable("Borrowed here");
+        }
+        Stripe s = _stripeList[index(cipher, _stripeList.length)];
+        synchronized (s) {
+          s._borrowed.put(cipher, b);
+        }
+      }
+      return cipher;
+    }
+
+    void giveBack(Cipher cipher) {
+      Stripe s = _stripeList[index(cipher, _stripeList.length)];
+      Object b;
+      synchronized (s) {
+        b = s._borrowed.remove(cipher);
+      }
+      if (b == null) {
+        // unpooled, reclaimed as leaked, or not from this pool
+        return;
+      }
+      Stripe home = _stripeList[index(Thread.currentThread(),
+                                      _stripeList.length)];
+      synchronized (home) {
+        if (home._idle.size() < _maxIdle) {
+          home._idle.addLast(cipher);
+        }
+      }
+      _permits.release();
+    }
+
+    private boolean takePermit() {
+      try {
+        if (_permits.attempt(0)) {
+          return true;
+        }
+        long start = System.currentTimeMillis();
+        _waits.increment();
+        boolean permit = (reclaimLeaks() > 0 && _permits.attempt(0))
+          || _permits.attempt(_borrowTimeout);
+        long wait = System.currentTimeMillis() - start;
+        _waitTime.add(wait);
+        synchronized (_maxWaitTime) {
+          if (wait > _maxWaitTime.get()) {
+            _maxWaitTime.set(wait);
+          }
+        }
+        if (permit) {
+          return true;
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      _overflows.increment();
+      if (_log.isWarnEnabled()) {
+        _log.warn("All " + _capacity + " ciphers for " + _spec +
+                  " are in use; using an unpooled cipher");
+      }
+      return false;
+    }
+
+    private Cipher takeIdle() {
+      int home = index(Thread.currentThread(), _stripeList.length);
+      for (int i = 0 ; i < _stripeList.length ; i++) {
+        Stripe s = _stripeList[(home + i) % _stripeList.length];
+        synchronized (s) {
+          if (!s._idle.isEmpty()) {
+            return (Cipher) s._idle.removeLast();
+          }
+        }
+      }
+      return null;
+    }
+
+    int reclaimLeaks() {
+      long limit = System.currentTimeMillis() - _leakTimeout;
+      int count = 0;
+      for (int i = 0 ; i < _stripeList.length ; i++) {
+        Stripe s = _stripeList[i];
+        List leaked = null;
+        synchronized (s) {
+          for (Iterator it = s._borrowed.values().iterator() ;
+               it.hasNext() ; ) {
+            Borrow b = (Borrow) it.next();
+            if (b._time < limit) {
+              it.remove();
+              if (leaked == null) {
+                leaked = new ArrayList();
+              }
+              leaked.add(b);
+            }
+          }
+        }
+        if (leaked == null) {
+          continue;
+        }
+        for (Iterator it = leaked.iterator() ; it.hasNext() ; ) {
+          Borrow b = (Borrow) it.next();
+          _leaks.increment();
+          _permits.release();
+          count++;
+          if (_log.isWarnEnabled()) {
+            _log.warn("Cipher for " + _spec + " borrowed by " + b._thread +
+                      " " + (System.currentTimeMillis() - b._time) +
+                      " ms ago was never returned", b._stack);
+          }
+        }
+      }
+      return count;
+    }
+
+    void clearIdle() {
+      for (int i = 0 ; i < _stripeList.length ; i++) {
+        synchronized (_stripeList[i]) {
+          _stripeList[i]._idle.clear();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * A parsed symmetric key spec, as accepted by
+ * <code>EncryptionService.createSecretKey</code> and
+ * <code>getCipher</code>.
+ * <p>
+ * A spec is a cipher transformation whose algorithm may be followed by
+ * a hash (#) and a key length, and which may end with a provider name
+ * in curly braces, e.g. <tt>AES#192/CBC/WithCTS{BC}</tt>: algorithm
+ * AES, 192 bit keys, transformation <tt>AES/CBC/WithCTS</tt>, provider
+ * BC.
+ * <p>
+ * <code>getInstance</code> keeps parsed specs in a bounded cache, so
+ * callers that pass the same spec on every message only parse it once.
+ * The cache size defaults to 256 and can be set with the
+ * <tt>org.cougaar.core.security.crypto.cipherSpecCacheSize</tt> system
+ * property.
+ */
+public final class CipherSpec
+{
+  public static final String CACHE_SIZE_PROP =
+    "org.cougaar.core.security.crypto.cipherSpecCacheSize";
+
+  private static final int CACHE_SIZE =
+    Integer.getInteger(CACHE_SIZE_PROP, 256).intValue();
+
+  /** spec string to CipherSpec, least recently used first */
+  private static final Map _cache = new LinkedHashMap(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+
+  private String _spec;
+  private String _algorithm;
+  private int _keyLength;
+  private String _transformation;
+  private String _mode;
+  private String _padding;
+  private String _provider;
+
+  private CipherSpec(String spec) {
+    _spec = spec;
+    String s = spec;
+    int brace = s.indexOf('{');
+    if (brace != -1) {
+      int close = s.indexOf('}', brace);
+      if (close == -1) {
+        throw new IllegalArgumentException("Malformed cipher spec: " + spec);
+      }
+      _provider = s.substring(brace + 1, close);
+      s = s.substring(0, brace);
+    }
+    int slash = s.indexOf('/');
+    String alg = (slash == -1) ? s : s.substring(0, slash);
+    String rest = (slash == -1) ? "" : s.substring(slash);
+    int hash = alg.indexOf('#');
+    if (hash != -1) {
+      try {
+        _keyLength = Integer.parseInt(alg.substring(hash + 1));
+      }
+      catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Malformed key length in " +
+                                           "cipher spec: " + spec);
+      }
+      alg = alg.substring(0, hash);
+    }
+    if (alg.length() == 0) {
+      throw new IllegalArgumentException("Malformed cipher spec: " + spec);
+    }
+    _algorithm = alg;
+    _transformation = alg + rest;
+    if (slash != -1) {
+      int slash2 = rest.indexOf('/', 1);
+      _mode = (slash2 == -1) ? rest.substring(1) : rest.substring(1, slash2);
+      if (slash2 != -1) {
+        _padding = rest.substring(slash2 + 1);
+      }
+    }
+  }
+
+  /**
+   * Returns the parsed form of a spec.
+   * @throws IllegalArgumentException if the spec is malformed
+   */
+  public static CipherSpec getInstance(String spec) {
+    synchronized (_cache) {
+      CipherSpec cs = (CipherSpec) _cache.get(spec);
+      if (cs == null) {
+        cs = new CipherSpec(spec);
+        _cache.put(spec, cs);
+      }
+      return cs;
+    }
+  }
+
+  public static void clearCache() {
+    synchronized (_cache) {
+      _cache.clear();
+    }
+  }
+
+  /** The spec string this was parsed from */
+  public String getSpec() {
+    return _spec;
+  }
+
+  /** The key algorithm, e.g. "AES" */
+  public String getAlgorithm() {
+    return _algorithm;
+  }
+
+  /** The key length in bits, or 0 for the provider's default */
+  public int getKeyLength() {
+    return _keyLength;
+  }
+
+  /** The transformation for <code>Cipher.getInstance</code> */
+  public String getTransformation() {
+    return _transformation;
+  }
+
+  /** The cipher mode, or null */
+  public String getMode() {
+    return _mode;
+  }
+
+  /** The padding, or null */
+  public String getPadding() {
+    return _padding;
+  }
+
+  /** The provider name, or null for the default providers */
+  public String getProvider() {
+    return _provider;
+  }
+
+  public Cipher createCipher()
+    throws NoSuchAlgorithmException, NoSuchPaddingException,
+    NoSuchProviderException {
+    if (_provider == null) {
+      return Cipher.getInstance(_transformation);
+    }
+    return Cipher.getInstance(_transformation, _provider);
+  }
+
+  public SecretKey createSecretKey()
+    throws NoSuchAlgorithmException, NoSuchProviderException {
+    KeyGenerator kg = (_provider == null) ?
+      KeyGenerator.getInstance(_algorithm) :
+      KeyGenerator.getInstance(_algorithm, _provider);
+    if (_keyLength > 0) {
+      kg.init(_keyLength);
+    }
+    return kg.generateKey();
+  }
+
+  public boolean equals(Object o) {
+    return (o instanceof CipherSpec) && _spec.equals(((CipherSpec) o)._spec);
+  }
+
+  public int hashCode() {
+    return _spec.hashCode();
+  }
+
+  public String toString() {
+    return _spec;
+  }
+}
@@ -0,0 +1,406 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.util.Map;
+
+import org.cougaar.core.adaptivity.OperatingMode;
+import org.cougaar.core.adaptivity.OperatingModeService;
+import org.cougaar.core.component.ServiceBroker;
+import org.cougaar.core.security.constants.AdaptiveMnROperatingModes;
+import org.cougaar.core.security.policy.CryptoPolicy;
+import org.cougaar.core.security.services.crypto.CryptoPolicyService;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.LoggerFactory;
+
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedLong;
+
+/**
+ * A <code>CryptoPolicyService</code> that remembers, per source and
+ * target agent, the answers of another one to
+ * <code>getSendPolicy</code>, <code>getReceivePolicy</code> and
+ * <code>isReceivePolicyValid</code>.
+ * <p>
+ * Agent names are interned to integer ids and a pair is keyed by a
+ * long packing both. A hit reads two volatile counters and a
+ * <code>ConcurrentReaderHashMap</code>, and counts itself in striped
+ * counters.
+ * <p>
+ * All cached decisions belong to a generation, and are dropped when
+ * the generation changes, which happens when
+ * <ul>
+ * <li><code>policyChanged</code> is called, which implementations of
+ *     <code>ConfigParserService.addSecurityPolicy</code> and
+ *     <code>updateSecurityPolicy</code> must do once the policy is
+ *     installed, as must a policy service that switches policies on an
+ *     operating mode change, once it has switched;</li>
+ * <li>the <code>AdaptiveMnROperatingModes.THREATCON_LEVEL</code>
+ *     operating mode is added or changed, when the cache was given a
+ *     <code>ServiceBroker</code> with an
+ *     <code>OperatingModeService</code>, or
+ *     <code>operatingModeChanged</code> is called for it;</li>
+ * <li>the rules of any <code>CryptoPolicy</code> change, as counted by
+ *     <code>CryptoPolicy.getGeneration</code>, which also covers
+ *     community membership changes.</li>
+ * </ul>
+ * The last two only add to the first: a decision computed between such
+ * a change and the installation of the policy it leads to is dropped by
+ * the <code>policyChanged</code> that follows.
+ * <p>
+ * At most <tt>org.cougaar.core.security.crypto.policyDecisionCache.size</tt>
+ * pairs (default 16384) are kept; when there are more the cache starts
+ * over. Only misses are timed, with <code>currentTimeMillis</code>; a hit
+ * takes well under a millisecond and counts as 0 in the average lookup
+ * time.
+ */
+public class CryptoPolicyDecisionCache
+  implements CryptoPolicyService
+{
+  public static final String SIZE_PROP =
+    "org.cougaar.core.security.crypto.policyDecisionCache.size";
+
+  private static final Logger _log =
+    LoggerFactory.getInstance().createLogger(CryptoPolicyDecisionCache.class);
+
+  private static volatile long _generation;
+
+  private CryptoPolicyService _policyService;
+  private int _size;
+
+  /** agent name to Integer id; ids start at 1 */
+  private Map _ids = new ConcurrentReaderHashMap();
+  private int _nextId = 1;
+  /** Long pair key to Decisions */
+  private Map _decisions = new ConcurrentReaderHashMap();
+
+  private final StripedCounter _lookups = new StripedCounter();
+  private final StripedCounter _hits = new StripedCounter();
+  private final SynchronizedLong _misses = new SynchronizedLong(0);
+  private final SynchronizedLong _missTime = new SynchronizedLong(0);
+
+  public CryptoPolicyDecisionCache(CryptoPolicyService policyService) {
+    this(policyService, null);
+  }
+
+  /**
+   * @param sb used to find the <code>OperatingModeService</code>; may be
+   *           null, in which case threat level changes must be reported
+   *           with <code>operatingModeChanged</code>.
+   */
+  public CryptoPolicyDecisionCache(CryptoPolicyService policyService,
+                                   ServiceBroker sb) {
+    this(policyService, sb, Integer.getInteger(SIZE_PROP, 16384).intValue());
+  }
+
+  public CryptoPolicyDecisionCache(CryptoPolicyService policyService,
+                                   ServiceBroker sb, int size) {
+    _policyService = policyService;
+    _size = size;
+    if (sb != null) {
+      listen(sb);
+    }
+  }
+
+  /**
+   * Invalidates the decisions of every cache. To be called whenever a
+   * security policy has been installed or updated, after the wrapped
+   * policy service answers with the new policy.
+   */
+  public static synchronized void policyChanged() {
+    _generation++;
+  }
+
+  /**
+   * Invalidates the decisions of every cache if the operating mode is
+   * one that policies depend on.
+   */
+  public static void operatingModeChanged(String modeName) {
+    if (AdaptiveMnROperatingModes.THREATCON_LEVEL.equals(modeName)) {
+      policyChanged();
+    }
+  }
+
+  /**
+   * The generation of the cached decisions. Both counters only grow,
+   * so their sum changes whenever either does.
+   */
+  public static long getGeneration() {
+    return _generation + CryptoPolicy.getGeneration();
+  }
+
+  public SecureMethodParam getSendPolicy(String source, String target) {
+    long generation = getGeneration();
+    Decisions d = getDecisions(source, target, generation);
+    SecureMethodParam smp = d._sendPolicy;
+    boolean hit = (smp != null);
+    if (!hit) {
+      long start = System.currentTimeMillis();
+      smp = _policyService.getSendPolicy(source, target);
+      d._sendPolicy = (smp == null) ? NONE : smp;
+      missed(start);
+    }
+    else if (smp == NONE) {
+      smp = null;
+    }
+    count(hit);
+    return copy(smp);
+  }
+
+  public SecureMethodParam getReceivePolicy(String source, String target) {
+    long generation = getGeneration();
+    Decisions d = getDecisions(source, target, generation);
+    SecureMethodParam smp = d._receivePolicy;
+    boolean hit = (smp != null);
+    if (!hit) {
+      long start = System.currentTimeMillis();
+      smp = _policyService.getReceivePolicy(source, target);
+      d._receivePolicy = (smp == null) ? NONE : smp;
+      missed(start);
+    }
+    else if (smp == NONE) {
+      smp = null;
+    }
+    count(hit);
+    return copy(smp);
+  }
+
+  /**
+   * Remembers the answer for the last policy checked for each pair,
+   * which is the common case of a pair whose messages all use the same
+   * method.
+   */
+  public int isReceivePolicyValid(String source, String target,
+                                  SecureMethodParam policy,
+                                  boolean ignoreEncryption,
+                                  boolean ignoreSignature) {
+    long generation = getGeneration();
+    Decisions d = getDecisions(source, target, generation);
+    Validity v = d._validity;
+    boolean hit = (v != null && v.matches(policy, ignoreEncryption,
+                                          ignoreSignature));
+    int code;
+    if (hit) {
+      code = v._code;
+    }
+    else {
+      long start = System.currentTimeMillis();
+      code = _policyService.isReceivePolicyValid(source, target, policy,
+                                                 ignoreEncryption,
+                                                 ignoreSignature);
+      if (policy != null) {
+        d._validity = new Validity(policy, ignoreEncryption,
+                                   ignoreSignature, code);
+      }
+      missed(start);
+    }
+    count(hit);
+    return code;
+  }
+
+  public CryptoPolicy getDataProtectionPolicy(String source) {
+    return _policyService.getDataProtectionPolicy(source);
+  }
+
+  /** Drops the decisions of this cache only. */
+  public void clear() {
+    _decisions.clear();
+  }
+
+  public long getLookups() {
+    return _lookups.get();
+  }
+
+  public long getHits() {
+    return _hits.get();
+  }
+
+  public double getHitRate() {
+    long n = _lookups.get();
+    return (n == 0) ? 0 : ((double) _hits.get()) / n;
+  }
+
+  /** Average milliseconds per lookup, hits counting as 0 */
+  public double getAverageLookupTime() {
+    long n = _lookups.get();
+    return (n == 0) ? 0 : ((double) _missTime.get()) / n;
+  }
+
+  /** Average milliseconds per lookup answered by the policy service */
+  public double getAverageMissTime() {
+    long n = _misses.get();
+    return (n == 0) ? 0 : ((double) _missTime.get()) / n;
+  }
+
+  public String toString() {
+    return "CryptoPolicyDecisionCache[pairs=" + _decisions.size() +
+      ", generation=" + getGeneration() + ", lookups=" + getLookups() +
+      ", hitRate=" + getHitRate() + ", avgLookupMs=" +
+      getAverageLookupTime() + ", avgMissMs=" + getAverageMissTime() + "]";
+  }
+
+  /** marks a cached null policy */
+  private static final SecureMethodParam NONE = new SecureMethodParam();
+
+  private Decisions getDecisions(String source, String target,
+                                 long generation) {
+    Long key = new Long((((long) intern(source)) << 32) |
+                        (intern(target) & 0xFFFFFFFFL));
+    Decisions d = (Decisions) _decisions.get(key);
+    if (d == null || d._generation != generation) {
+      if (_decisions.size() >= _size) {
+        _decisions.clear();
+      }
+      // decisions computed while the generation changes are stored
+      // under the old generation, and so never used
+      d = new Decisions(generation);
+      _decisions.put(key, d);
+    }
+    return d;
+  }
+
+  private int intern(String name) {
+    if (name == null) {
+      return 0;
+    }
+    Integer id = (Integer) _ids.get(name);
+    if (id == null) {
+      synchronized (_ids) {
+        id = (Integer) _ids.get(name);
+        if (id == null) {
+          id = new Integer(_nextId++);
+          _ids.put(name, id);
+        }
+      }
+    }
+    return id.intValue();
+  }
+
+  private void count(boolean hit) {
+    _lookups.increment();
+    if (hit) {
+      _hits.increment();
+    }
+  }
+
+  private void missed(long start) {
+    _misses.increment();
+    _missTime.add(System.currentTimeMillis() - start);
+  }
+
+  private void listen(ServiceBroker sb) {
+    OperatingModeService oms = (OperatingModeService)
+      sb.getService(this, OperatingModeService.class, null);
+    if (oms == null) {
+      if (_log.isWarnEnabled()) {
+        _log.warn("No OperatingModeService; threat level changes will "
+                  + "not invalidate cached crypto decisions");
+      }
+      return;
+    }
+    oms.addListener(new ThreatConListener());
+    sb.releaseService(this, OperatingModeService.class, oms);
+  }
+
+  private static SecureMethodParam copy(SecureMethodParam smp) {
+    if (smp == null) {
+      return null;
+    }
+    SecureMethodParam c = new SecureMethodParam(smp.secureMethod);
+    c.symmSpec = smp.symmSpec;
+    c.asymmSpec = smp.asymmSpec;
+    c.signSpec = smp.signSpec;
+    return c;
+  }
+
+  private static boolean same(String a, String b) {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+
+  /** Invalidates all caches when the threat level mode appears or changes */
+  private static class ThreatConListener
+    extends OperatingModeService.ListenerAdapter {
+    public boolean wantAdds() {
+      return true;
+    }
+
+    public boolean wantChanges() {
+      return true;
+    }
+
+    public void operatingModeAdded(OperatingMode om) {
+      operatingModeChanged(om);
+    }
+
+    public void operatingModeChanged(OperatingMode om) {
+      CryptoPolicyDecisionCache.operatingModeChanged(om.getName());
+    }
+  }
+
+  /** The decisions for one pair; fields are filled in as needed */
+  private static class Decisions {
+    private final long _generation;
+    private volatile SecureMethodParam _sendPolicy;
+    private volatile SecureMethodParam _receivePolicy;
+    private volatile Validity _validity;
+
+    Decisions(long generation) {
+      _generation = generation;
+    }
+  }
+
+  private static class Validity {
+    private final int _method;
+    private final String _symmSpec;
+    private final String _asymmSpec;
+    private final String _signSpec;
+    private final boolean _ignoreEncryption;
+    private final boolean _ignoreSignature;
+    private final int _code;
+
+    Validity(SecureMethodParam policy, boolean ignoreEncryption,
+             boolean ignoreSignature, int code) {
+      _method = policy.secureMethod;
+      _symmSpec = policy.symmSpec;
+      _asymmSpec = policy.asymmSpec;
+      _signSpec = policy.signSpec;
+      _ignoreEncryption = ignoreEncryption;
+      _ignoreSignature = ignoreSignature;
+      _code = code;
+    }
+
+    boolean matches(SecureMethodParam policy, boolean ignoreEncryption,
+                    boolean ignoreSignature) {
+      return policy != null && policy.secureMethod == _method
+        && ignoreEncryption == _ignoreEncryption
+        && ignoreSignature == _ignoreSignature
+        && same(policy.symmSpec, _symmSpec)
+        && same(policy.asymmSpec, _asymmSpec)
+        && same(policy.signSpec, _signSpec);
+    }
+  }
+}
@@ -0,0 +1,344 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Signature;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedLong;
+
+/**
+ * Hands out <code>MessageDigest</code>, <code>Signature</code> and
+ * <code>CertificateFactory</code> instances without going through the
+ * provider lookup of <code>getInstance</code> every time.
+ * <p>
+ * Each thread keeps the last released instance of every algorithm, so
+ * a thread that repeatedly acquires and releases the same algorithm
+ * never takes a lock. Further released instances go to a shared pool
+ * holding at most <tt>org.cougaar.core.security.crypto.primitivePoolSize</tt>
+ * (default 16) instances per algorithm and provider.
+ * <p>
+ * An instance belongs to the caller until it is passed to
+ * <code>release</code>, and must not be used after that. Digests are
+ * reset when released. Only signatures used for verification are
+ * pooled, through <code>getVerifier</code> and
+ * <code>releaseVerifier</code>: a signing instance would keep the
+ * caller's private key reachable from whoever acquires it next, and a
+ * pooled instance is bound to the provider that handled an earlier
+ * public key, which may not handle the caller's private key.
+ * <code>getSignature</code> therefore always returns a new instance,
+ * and <code>release(Signature)</code> lets it go. Callers must always
+ * call <code>initVerify</code> on a verifier. Instances that are never
+ * released are simply garbage collected.
+ */
+public final class CryptoPrimitives
+{
+  public static final String POOL_SIZE_PROP =
+    "org.cougaar.core.security.crypto.primitivePoolSize";
+
+  private static final int POOL_SIZE =
+    Integer.getInteger(POOL_SIZE_PROP, 16).intValue();
+
+  private static final char DIGEST = 'D';
+  private static final char SIGNATURE = 'S';
+  private static final char FACTORY = 'F';
+
+  /**
+   * Per-thread map from pool key to a released instance, and from
+   * "type/algorithm" to the name of the default provider.
+   */
+  private static final ThreadLocal _local = new ThreadLocal() {
+      protected Object initialValue() {
+        return new HashMap();
+      }
+    };
+
+  /** copy buffer for digesting direct buffers */
+  private static final ThreadLocal _block = new ThreadLocal() {
+      protected Object initialValue() {
+        return new byte[8192];
+      }
+    };
+
+  /** pool key to LinkedList of released instances */
+  private static final Map _shared = new HashMap();
+
+  /** "type/algorithm" to the name of the default provider */
+  private static final Map _defaultProviders = new HashMap();
+
+  private static final SynchronizedLong _hits = new SynchronizedLong(0);
+  private static final SynchronizedLong _misses = new SynchronizedLong(0);
+
+  private CryptoPrimitives() {
+  }
+
+  public static MessageDigest getMessageDigest(String algorithm)
+    throws NoSuchAlgorithmException {
+    MessageDigest md = (MessageDigest) acquire(DIGEST, algorithm, null);
+    if (md == null) {
+      md = MessageDigest.getInstance(algorithm);
+      setDefaultProvider(DIGEST, algorithm, md.getProvider().getName());
+    }
+    return md;
+  }
+
+  public static MessageDigest getMessageDigest(String algorithm,
+                                               String provider)
+    throws NoSuchAlgorithmException, NoSuchProviderException {
+    MessageDigest md = (MessageDigest) acquire(DIGEST, algorithm, provider);
+    if (md == null) {
+      md = MessageDigest.getInstance(algorithm, provider);
+    }
+    return md;
+  }
+
+  public static void release(MessageDigest md) {
+    if (md != null) {
+      md.reset();
+      release(DIGEST, md.getAlgorithm(), md.getProvider().getName(), md);
+    }
+  }
+
+  /**
+   * Returns a new signature instance, for signing or verifying, which
+   * picks its provider from the key it is initialized with.
+   */
+  public static Signature getSignature(String algorithm)
+    throws NoSuchAlgorithmException {
+    _misses.increment();
+    return Signature.getInstance(algorithm);
+  }
+
+  public static Signature getSignature(String algorithm, String provider)
+    throws NoSuchAlgorithmException, NoSuchProviderException {
+    _misses.increment();
+    return Signature.getInstance(algorithm, provider);
+  }
+
+  /**
+   * Returns a signature to be used only with <code>initVerify</code>
+   * and given back with <code>releaseVerifier</code>. Verifiers are
+   * pooled under the provider they were bound to when initialized.
+   * Without a provider, the instance comes from the pool of the
+   * provider the first released verifier of that algorithm was bound
+   * to.
+   */
+  public static Signature getVerifier(String algorithm)
+    throws NoSuchAlgorithmException {
+    Signature sig = (Signature) acquire(SIGNATURE, algorithm, null);
+    if (sig == null) {
+      sig = Signature.getInstance(algorithm);
+    }
+    return sig;
+  }
+
+  public static Signature getVerifier(String algorithm, String provider)
+    throws NoSuchAlgorithmException, NoSuchProviderException {
+    Signature sig = (Signature) acquire(SIGNATURE, algorithm, provider);
+    if (sig == null) {
+      sig = Signature.getInstance(algorithm, provider);
+    }
+    return sig;
+  }
+
+  /**
+   * Gives up a signature without pooling it. To be used for signatures
+   * from <code>getSignature</code>.
+   */
+  public static void release(Signature sig) {
+    // signers are never pooled
+  }
+
+  /**
+   * Returns a signature from <code>getVerifier</code>, only ever
+   * initialized with <code>initVerify</code>, to the pool of the
+   * provider it is bound to.
+   */
+  public static void releaseVerifier(Signature sig) {
+    if (sig != null) {
+      String algorithm = sig.getAlgorithm();
+      String provider = sig.getProvider().getName();
+      setDefaultProviderIfAbsent(SIGNATURE, algorithm, provider);
+      release(SIGNATURE, algorithm, provider, sig);
+    }
+  }
+
+  public static CertificateFactory getCertificateFactory(String type)
+    throws CertificateException {
+    CertificateFactory cf = (CertificateFactory) acquire(FACTORY, type, null);
+    if (cf == null) {
+      cf = CertificateFactory.getInstance(type);
+      setDefaultProvider(FACTORY, type, cf.getProvider().getName());
+    }
+    return cf;
+  }
+
+  public static CertificateFactory getCertificateFactory(String type,
+                                                         String provider)
+    throws CertificateException, NoSuchProviderException {
+    CertificateFactory cf =
+      (CertificateFactory) acquire(FACTORY, type, provider);
+    if (cf == null) {
+      cf = CertificateFactory.getInstance(type, provider);
+    }
+    return cf;
+  }
+
+  public static void release(CertificateFactory cf) {
+    if (cf != null) {
+      release(FACTORY, cf.getType(), cf.getProvider().getName(), cf);
+    }
+  }
+
+  /**
+   * Adds the remaining bytes of a buffer to a digest and moves the
+   * buffer's position to its limit. Heap buffers are read in place;
+   * direct and mapped buffers are copied through a per-thread block.
+   */
+  public static void update(MessageDigest md, ByteBuffer data) {
+    int len = data.remaining();
+    if (data.hasArray()) {
+      md.update(data.array(), data.arrayOffset() + data.position(), len);
+      data.position(data.limit());
+      return;
+    }
+    byte[] block = (byte[]) _block.get();
+    while (len > 0) {
+      int n = Math.min(len, block.length);
+      data.get(block, 0, n);
+      md.update(block, 0, n);
+      len -= n;
+    }
+  }
+
+  /** @return the number of requests served from a cache or the pool */
+  public static long getHits() {
+    return _hits.get();
+  }
+
+  /** @return the number of requests that needed a getInstance call */
+  public static long getMisses() {
+    return _misses.get();
+  }
+
+  /** Drops all instances held in the shared pool. */
+  public static void clearPool() {
+    synchronized (_shared) {
+      _shared.clear();
+    }
+  }
+
+  private static Object acquire(char type, String algorithm,
+                                String provider) {
+    Map local = (Map) _local.get();
+    if (provider == null) {
+      String typeAlg = type + algorithm;
+      provider = (String) local.get(typeAlg);
+      if (provider == null) {
+        synchronized (_defaultProviders) {
+          provider = (String) _defaultProviders.get(typeAlg);
+        }
+        if (provider == null) {
+          _misses.increment();
+          return null;
+        }
+        local.put(typeAlg, provider);
+      }
+    }
+    String key = poolKey(type, algorithm, provider);
+    Object o = local.remove(key);
+    if (o == null) {
+      synchronized (_shared) {
+        LinkedList pool = (LinkedList) _shared.get(key);
+        if (pool != null && !pool.isEmpty()) {
+          o = pool.removeLast();
+        }
+      }
+    }
+    if (o == null) {
+      _misses.increment();
+    }
+    else {
+      _hits.increment();
+    }
+    return o;
+  }
+
+  private static void release(char type, String algorithm,
+                              String provider, Object o) {
+    String key = poolKey(type, algorithm, provider);
+    Map local = (Map) _local.get();
+    if (!local.containsKey(key)) {
+      local.put(key, o);
+      return;
+    }
+    synchronized (_shared) {
+      LinkedList pool = (LinkedList) _shared.get(key);
+      if (pool == null) {
+        pool = new LinkedList();
+        _shared.put(key, pool);
+      }
+      if (pool.size() < POOL_SIZE) {
+        pool.addLast(o);
+      }
+    }
+  }
+
+  private static void setDefaultProvider(char type, String algorithm,
+                                         String provider) {
+    synchronized (_defaultProviders) {
+      _defaultProviders.put(type + algorithm, provider);
+    }
+  }
+
+  private static void setDefaultProviderIfAbsent(char type, String algorithm,
+                                                 String provider) {
+    synchronized (_defaultProviders) {
+      if (!_defaultProviders.containsKey(type + algorithm)) {
+        _defaultProviders.put(type + algorithm, provider);
+      }
+    }
+  }
+
+  private static String poolKey(char type, String algorithm,
+                                String provider) {
+    StringBuffer sb = new StringBuffer(algorithm.length() + 24);
+    sb.append(type).append(algorithm).append('/');
+    if (provider != null) {
+      sb.append(provider);
+    }
+    return sb.toString();
+  }
+}
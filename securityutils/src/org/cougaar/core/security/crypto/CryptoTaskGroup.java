@@ -0,0 +1,63 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import EDU.oswego.cs.dl.util.concurrent.FJTaskRunnerGroup;
+
+/**
+ * The fork-join worker group shared by the bulk cryptographic operations
+ * of this package (certificate parsing, chunked digests).
+ *
+ * The group is created on first use with one worker per available
+ * processor, or the number given by the
+ * <tt>org.cougaar.core.security.crypto.parallelism</tt> system property.
+ */
+final class CryptoTaskGroup
+{
+  public static final String PARALLELISM_PROP =
+    "org.cougaar.core.security.crypto.parallelism";
+
+  private static FJTaskRunnerGroup _group;
+
+  private CryptoTaskGroup() {
+  }
+
+  static synchronized FJTaskRunnerGroup getGroup() {
+    if (_group == null) {
+      _group = new FJTaskRunnerGroup(getParallelism());
+    }
+    return _group;
+  }
+
+  static int getParallelism() {
+    int n = Integer.getInteger(PARALLELISM_PROP, 0).intValue();
+    if (n <= 0) {
+      n = Runtime.getRuntime().availableProcessors();
+    }
+    return n;
+  }
+}
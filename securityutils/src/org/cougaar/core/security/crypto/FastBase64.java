@@ -0,0 +1,208 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+/**
+ * Table-driven base64 codec working on US-ASCII <code>byte[]</code>.
+ *
+ * Encoding looks up each 12-bit half of a 24-bit group in a 4096-entry
+ * table, so a group costs two lookups per output pair and no branches.
+ * Decoding ORs four pre-shifted 256-entry tables together; invalid
+ * characters set a flag bit that is checked once per call rather than
+ * once per group.
+ *
+ * Unlike <code>Base64</code>, the decoder is strict: the input must not
+ * contain line breaks or white space. Use <code>Base64InputStream</code>
+ * for wrapped input.
+ */
+public final class FastBase64
+{
+  /** Marks a character outside the base64 alphabet. */
+  private static final int BAD = 0x01000000;
+
+  private static final byte[] ENC_HI = new byte[4096];
+  private static final byte[] ENC_LO = new byte[4096];
+
+  private static final int[] DEC0 = new int[256];
+  private static final int[] DEC1 = new int[256];
+  private static final int[] DEC2 = new int[256];
+  private static final int[] DEC3 = new int[256];
+
+  static {
+    for (int i = 0 ; i < 4096 ; i++) {
+      ENC_HI[i] = Base64.encodeTable[i >> 6];
+      ENC_LO[i] = Base64.encodeTable[i & 0x3F];
+    }
+    for (int i = 0 ; i < 256 ; i++) {
+      int v = Base64.codes[i];
+      if (v < 0) {
+        DEC0[i] = DEC1[i] = DEC2[i] = DEC3[i] = BAD;
+      }
+      else {
+        DEC0[i] = v << 18;
+        DEC1[i] = v << 12;
+        DEC2[i] = v << 6;
+        DEC3[i] = v;
+      }
+    }
+  }
+
+  private FastBase64() {
+  }
+
+  /**
+   * @return the number of characters needed to encode len bytes.
+   */
+  public static int encodedLength(int len) {
+    return ((len + 2) / 3) * 4;
+  }
+
+  public static byte[] encode(byte[] src) {
+    byte[] dst = new byte[encodedLength(src.length)];
+    encodeInto(src, 0, src.length, dst, 0);
+    return dst;
+  }
+
+  /**
+   * Encodes <code>src[off..off+len)</code> into <code>dst</code>,
+   * starting at <code>dstOff</code>. The output is padded with '='.
+   *
+   * @return the number of characters written.
+   */
+  public static int encodeInto(byte[] src, int off, int len,
+                               byte[] dst, int dstOff) {
+    int outLen = encodedLength(len);
+    if (dstOff + outLen > dst.length) {
+      throw new IndexOutOfBoundsException("Destination too small: need "
+                                          + outLen + " bytes");
+    }
+    int end = off + len - (len % 3);
+    int o = dstOff;
+    for (int i = off ; i < end ; i += 3) {
+      int v = ((src[i] & 0xFF) << 16)
+        | ((src[i + 1] & 0xFF) << 8)
+        | (src[i + 2] & 0xFF);
+      int hi = v >>> 12;
+      int lo = v & 0xFFF;
+      dst[o] = ENC_HI[hi];
+      dst[o + 1] = ENC_LO[hi];
+      dst[o + 2] = ENC_HI[lo];
+      dst[o + 3] = ENC_LO[lo];
+      o += 4;
+    }
+    int left = len % 3;
+    if (left > 0) {
+      int v = (src[end] & 0xFF) << 16;
+      if (left == 2) {
+        v |= (src[end + 1] & 0xFF) << 8;
+      }
+      int hi = v >>> 12;
+      dst[o] = ENC_HI[hi];
+      dst[o + 1] = ENC_LO[hi];
+      dst[o + 2] = (left == 2) ? ENC_HI[v & 0xFFF] : Base64.PAD;
+      dst[o + 3] = Base64.PAD;
+      o += 4;
+    }
+    return o - dstOff;
+  }
+
+  /**
+   * @return the number of bytes encoded by <code>src[off..off+len)</code>,
+   * taking trailing padding into account.
+   */
+  public static int decodedLength(byte[] src, int off, int len) {
+    int pad = 0;
+    if (len > 0 && src[off + len - 1] == Base64.PAD) {
+      pad++;
+      if (len > 1 && src[off + len - 2] == Base64.PAD) {
+        pad++;
+      }
+    }
+    int chars = len - pad;
+    return (chars / 4) * 3 + ((chars % 4) * 3) / 4;
+  }
+
+  public static byte[] decode(byte[] src) {
+    byte[] dst = new byte[decodedLength(src, 0, src.length)];
+    decodeInto(src, 0, src.length, dst, 0);
+    return dst;
+  }
+
+  /**
+   * Decodes <code>src[off..off+len)</code> into <code>dst</code>,
+   * starting at <code>dstOff</code>. Trailing padding is optional.
+   *
+   * @return the number of bytes written.
+   * @throws IllegalArgumentException if the input contains characters
+   * outside the base64 alphabet or has an impossible length.
+   */
+  public static int decodeInto(byte[] src, int off, int len,
+                               byte[] dst, int dstOff) {
+    int outLen = decodedLength(src, off, len);
+    if (dstOff + outLen > dst.length) {
+      throw new IndexOutOfBoundsException("Destination too small: need "
+                                          + outLen + " bytes");
+    }
+    int chars = len;
+    while (chars > 0 && src[off + chars - 1] == Base64.PAD) {
+      chars--;
+    }
+    if (chars % 4 == 1 || len - chars > 2) {
+      throw new IllegalArgumentException("Invalid base64 length: " + len);
+    }
+    int end = off + chars - (chars % 4);
+    int o = dstOff;
+    int check = 0;
+    for (int i = off ; i < end ; i += 4) {
+      int v = DEC0[src[i] & 0xFF]
+        | DEC1[src[i + 1] & 0xFF]
+        | DEC2[src[i + 2] & 0xFF]
+        | DEC3[src[i + 3] & 0xFF];
+      check |= v;
+      dst[o] = (byte) (v >> 16);
+      dst[o + 1] = (byte) (v >> 8);
+      dst[o + 2] = (byte) v;
+      o += 3;
+    }
+    int left = chars % 4;
+    if (left > 0) {
+      int v = DEC0[src[end] & 0xFF] | DEC1[src[end + 1] & 0xFF];
+      if (left == 3) {
+        v |= DEC2[src[end + 2] & 0xFF];
+      }
+      check |= v;
+      dst[o++] = (byte) (v >> 16);
+      if (left == 3) {
+        dst[o++] = (byte) (v >> 8);
+      }
+    }
+    if ((check & BAD) != 0) {
+      throw new IllegalArgumentException("Invalid base64 character");
+    }
+    return o - dstOff;
+  }
+}
@@ -0,0 +1,187 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Table-driven hexadecimal codec.
+ *
+ * Every byte value maps to a precomputed pair of lower case digits, so
+ * encoding copies two characters per byte without creating strings.
+ * Decoding accepts upper and lower case digits.
+ */
+public final class Hex
+{
+  private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+  /** byte value to its two hex digits */
+  private static final char[][] PAIRS = new char[256][];
+
+  /** character to its digit value, or -1 */
+  private static final byte[] VALUES = new byte[128];
+
+  private static final char[] HTML_SPACE = "&nbsp;&nbsp;".toCharArray();
+  private static final char[] HTML_BREAK = "<br>".toCharArray();
+
+  static {
+    for (int i = 0 ; i < 256 ; i++) {
+      PAIRS[i] = new char[] { DIGITS[i >> 4], DIGITS[i & 0x0F] };
+    }
+    for (int i = 0 ; i < VALUES.length ; i++) {
+      VALUES[i] = -1;
+    }
+    for (int i = 0 ; i < 16 ; i++) {
+      VALUES[DIGITS[i]] = (byte) i;
+      VALUES[Character.toUpperCase(DIGITS[i])] = (byte) i;
+    }
+  }
+
+  private Hex() {
+  }
+
+  public static String encode(byte[] data) {
+    char[] out = new char[data.length * 2];
+    encode(data, 0, data.length, out, 0);
+    return new String(out);
+  }
+
+  /**
+   * Encodes len bytes into dst, which must have room for 2 * len
+   * characters starting at dstOff.
+   * @return the number of characters written
+   */
+  public static int encode(byte[] src, int off, int len,
+                           char[] dst, int dstOff) {
+    if (dstOff < 0 || dst.length - dstOff < len * 2) {
+      throw new IndexOutOfBoundsException("Destination too small");
+    }
+    int end = off + len;
+    for (int i = off ; i < end ; i++) {
+      char[] pair = PAIRS[src[i] & 0xFF];
+      dst[dstOff++] = pair[0];
+      dst[dstOff++] = pair[1];
+    }
+    return len * 2;
+  }
+
+  public static void encode(byte[] src, int off, int len, StringBuffer sb) {
+    sb.ensureCapacity(sb.length() + len * 2);
+    int end = off + len;
+    for (int i = off ; i < end ; i++) {
+      sb.append(PAIRS[src[i] & 0xFF]);
+    }
+  }
+
+  public static void encode(byte[] src, int off, int len, Writer out)
+    throws IOException {
+    int end = off + len;
+    for (int i = off ; i < end ; i++) {
+      out.write(PAIRS[src[i] & 0xFF], 0, 2);
+    }
+  }
+
+  /**
+   * @throws IllegalArgumentException if the string has an odd length
+   * or contains a character that is not a hex digit.
+   */
+  public static byte[] decode(String hex) {
+    return decode(hex.toCharArray(), 0, hex.length());
+  }
+
+  public static byte[] decode(char[] src, int off, int len) {
+    if ((len & 1) != 0) {
+      throw new IllegalArgumentException("Odd number of hex digits: " + len);
+    }
+    byte[] out = new byte[len / 2];
+    for (int i = 0 ; i < out.length ; i++) {
+      int hi = value(src[off++]);
+      int lo = value(src[off++]);
+      out[i] = (byte) ((hi << 4) | lo);
+    }
+    return out;
+  }
+
+  /**
+   * Writes the data as groups of two bytes separated by non-breaking
+   * spaces, sixteen bytes per line.
+   */
+  public static void writeHTML(byte[] data, PrintWriter out) {
+    out.write(HTML_SPACE);
+    int blockcount = 0;
+    int linecount = 0;
+    for (int i = 0 ; i < data.length ; i++) {
+      out.write(PAIRS[data[i] & 0xFF], 0, 2);
+      if (++blockcount > 1) {
+        out.write(HTML_SPACE);
+        blockcount = 0;
+        if (++linecount > 7) {
+          linecount = 0;
+          out.write(HTML_BREAK);
+          out.write(HTML_SPACE);
+        }
+      }
+    }
+  }
+
+  /**
+   * Same output as <code>writeHTML</code>, as a string.
+   */
+  public static String toHTML(byte[] data) {
+    int pairs = data.length / 2;
+    int lines = pairs / 8;
+    StringBuffer sb = new StringBuffer(data.length * 2
+                                       + (pairs + lines + 1) * HTML_SPACE.length
+                                       + lines * HTML_BREAK.length);
+    sb.append(HTML_SPACE);
+    int blockcount = 0;
+    int linecount = 0;
+    for (int i = 0 ; i < data.length ; i++) {
+      sb.append(PAIRS[data[i] & 0xFF]);
+      if (++blockcount > 1) {
+        sb.append(HTML_SPACE);
+        blockcount = 0;
+        if (++linecount > 7) {
+          linecount = 0;
+          sb.append(HTML_BREAK);
+          sb.append(HTML_SPACE);
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  private static int value(char c) {
+    int v = (c < 128) ? VALUES[c] : -1;
+    if (v < 0) {
+      throw new IllegalArgumentException("Invalid hex digit: " + c);
+    }
+    return v;
+  }
+}
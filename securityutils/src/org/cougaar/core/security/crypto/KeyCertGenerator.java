@@ -148,9 +148,10 @@ public final class KeyCertGenerator
     throws CertificateException, InvalidKeyException, SignatureException,
     NoSuchAlgorithmException, NoSuchProviderException
   {
+    Signature signature = CryptoPrimitives.getSignature(sigAlg);
     try
       {
-	X500Signer x500signer = getSigner(x500name);
+	X500Signer x500signer = getSigner(x500name, signature);
 	Date date = new Date();
 	Date date1 = new Date();
         date.setTime(date.getTime() - envelope * 1000L);
@@ -190,15 +191,21 @@ public final class KeyCertGenerator
       {
 	throw new CertificateEncodingException("getSelfCert: " + ioexception.getMessage());
       }
+    finally
+      {
+	CryptoPrimitives.release(signature);
+      }
   }
 
   public PKCS10 getCertRequest(X500Name x500name)
     throws InvalidKeyException, SignatureException
   {
     PKCS10 pkcs10 = new PKCS10(publicKey);
+    Signature signature = null;
     try
       {
-	pkcs10.encodeAndSign(getSigner(x500name));
+	signature = CryptoPrimitives.getSignature(sigAlg);
+	pkcs10.encodeAndSign(getSigner(x500name, signature));
       }
     catch(CertificateException certificateexception)
       {
@@ -212,13 +219,16 @@ public final class KeyCertGenerator
       {
 	throw new SignatureException(sigAlg + " unavailable?");
       }
+    finally
+      {
+	CryptoPrimitives.release(signature);
+      }
     return pkcs10;
   }
 
-  private X500Signer getSigner(X500Name x500name)
-    throws InvalidKeyException, NoSuchAlgorithmException
+  private X500Signer getSigner(X500Name x500name, Signature signature)
+    throws InvalidKeyException
   {
-    Signature signature = Signature.getInstance(sigAlg);
     signature.initSign(privateKey);
     return new X500Signer(signature, x500name);
   }
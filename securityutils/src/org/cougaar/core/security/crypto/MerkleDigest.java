@@ -0,0 +1,397 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import EDU.oswego.cs.dl.util.concurrent.FJTask;
+
+/**
+ * Hash tree shared by <code>MerkleSignatureOutputStream</code>,
+ * <code>MerkleSignatureInputStream</code> and the per-object proofs
+ * of <code>BatchProtector</code>.
+ *
+ * The stream format is:
+ * <pre>
+ *   int    MAGIC
+ *   byte   VERSION
+ *   UTF    digest algorithm
+ *   int    chunk size
+ *   int    maximum number of chunks per window
+ *   window*
+ *   int    0
+ *   short  signature length, signature of the root of all chunks
+ * </pre>
+ * where a window is
+ * <pre>
+ *   int    number of chunks (n &gt; 0)
+ *   n * (int length, length bytes of data)
+ *   short  signature length, signature of the window link
+ * </pre>
+ * Leaves are H(0 | chunk), inner nodes H(1 | left | right); a node
+ * without a sibling is carried up unchanged. The link of a window is
+ * H(2 | previous link | root of the window's leaves), so windows cannot
+ * be reordered or dropped. The chain starts from H(3 | header), the
+ * header being every field before the first window, so the digest
+ * algorithm and sizes are signed as well. The final signature covers
+ * H(2 | H(3 | header) | root of all chunks). The trailer has the same
+ * length-prefixed form as the one written by
+ * <code>SignatureOutputStream</code>.
+ */
+final class MerkleDigest
+{
+  static final int MAGIC = 0x434d4b31; // "CMK1"
+  static final int VERSION = 2;
+
+  static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+  /**
+   * Largest window a reader buffers. The sizes come from the header
+   * before anything is verified, so they must not allow a large
+   * allocation.
+   */
+  static final int MAX_WINDOW_BYTES = 8 * 1024 * 1024;
+  static final int MAX_CHUNK_SIZE = MAX_WINDOW_BYTES;
+  static final int MAX_WINDOW_CHUNKS = 1024;
+
+  private static final byte LEAF = 0;
+  private static final byte NODE = 1;
+  private static final byte LINK = 2;
+  private static final byte HEADER = 3;
+
+  private MerkleDigest() {
+  }
+
+  /** @return the number of chunks per window to use by default */
+  static int getDefaultWindow() {
+    return Math.min(4 * CryptoTaskGroup.getParallelism(),
+                    MAX_WINDOW_BYTES / DEFAULT_CHUNK_SIZE);
+  }
+
+  /** @return whether a reader accepts these sizes */
+  static boolean isValidWindow(int chunkSize, int windowChunks) {
+    return chunkSize > 0 && chunkSize <= MAX_CHUNK_SIZE
+      && windowChunks > 0 && windowChunks <= MAX_WINDOW_CHUNKS
+      && (long) chunkSize * windowChunks <= MAX_WINDOW_BYTES;
+  }
+
+  /**
+   * @return true if the stream starts with the chunked header. The
+   * stream must support mark/reset and is left where it was.
+   */
+  static boolean startsWithMagic(InputStream in) throws IOException {
+    in.mark(4);
+    try {
+      int magic = 0;
+      for (int i = 0 ; i < 4 ; i++) {
+        int b = in.read();
+        if (b == -1) {
+          return false;
+        }
+        magic = (magic << 8) | b;
+      }
+      return magic == MAGIC;
+    }
+    finally {
+      in.reset();
+    }
+  }
+
+  /**
+   * Computes the leaf hashes of count chunks, in parallel when there
+   * is more than one.
+   */
+  static byte[][] hashChunks(String algorithm, byte[][] chunks,
+                             int[] lengths, int count)
+    throws IOException {
+    byte[][] hashes = new byte[count][];
+    HashTask task = new HashTask(algorithm, chunks, lengths, hashes,
+                                 0, count);
+    if (count == 1) {
+      task.run();
+    }
+    else {
+      try {
+        CryptoTaskGroup.getGroup().invoke(task);
+      }
+      catch (InterruptedException ie) {
+        throw new IOException("Interrupted while hashing chunks");
+      }
+    }
+    if (task.getError() != null) {
+      throw new IOException("Unable to hash chunk: " + task.getError());
+    }
+    return hashes;
+  }
+
+  /** @return the root over a list of leaf hashes (byte[]) */
+  static byte[] root(String algorithm, List leaves)
+    throws NoSuchAlgorithmException {
+    byte[][] level = (byte[][]) leaves.toArray(new byte[leaves.size()][]);
+    return root(algorithm, level, level.length);
+  }
+
+  static byte[] root(String algorithm, byte[][] level, int count)
+    throws NoSuchAlgorithmException {
+    MessageDigest md = CryptoPrimitives.getMessageDigest(algorithm);
+    try {
+      if (count == 0) {
+        md.update(LEAF);
+        return md.digest();
+      }
+      byte[][] next = new byte[(count + 1) / 2][];
+      while (count > 1) {
+        int n = 0;
+        for (int i = 0 ; i < count ; i += 2) {
+          if (i + 1 < count) {
+            md.update(NODE);
+            md.update(level[i]);
+            md.update(level[i + 1]);
+            next[n++] = md.digest();
+          }
+          else {
+            next[n++] = level[i];
+          }
+        }
+        level = next;
+        count = n;
+      }
+      return level[0];
+    }
+    finally {
+      CryptoPrimitives.release(md);
+    }
+  }
+
+  /** @return the leaf hash of some data */
+  static byte[] leaf(String algorithm, byte[] data, int len)
+    throws NoSuchAlgorithmException {
+    MessageDigest md = CryptoPrimitives.getMessageDigest(algorithm);
+    try {
+      md.update(LEAF);
+      md.update(data, 0, len);
+      return md.digest();
+    }
+    finally {
+      CryptoPrimitives.release(md);
+    }
+  }
+
+  /**
+   * @return every level of the tree over the given leaves, from the
+   * leaves themselves to the single root
+   */
+  static byte[][][] levels(String algorithm, byte[][] leaves)
+    throws NoSuchAlgorithmException {
+    List levels = new ArrayList();
+    byte[][] level = leaves;
+    levels.add(level);
+    MessageDigest md = CryptoPrimitives.getMessageDigest(algorithm);
+    try {
+      while (level.length > 1) {
+        byte[][] next = new byte[(level.length + 1) / 2][];
+        for (int i = 0 ; i < level.length ; i += 2) {
+          if (i + 1 < level.length) {
+            md.update(NODE);
+            md.update(level[i]);
+            md.update(level[i + 1]);
+            next[i / 2] = md.digest();
+          }
+          else {
+            next[i / 2] = level[i];
+          }
+        }
+        level = next;
+        levels.add(level);
+      }
+    }
+    finally {
+      CryptoPrimitives.release(md);
+    }
+    return (byte[][][]) levels.toArray(new byte[levels.size()][][]);
+  }
+
+  /**
+   * @return the siblings needed to recompute the root from a leaf,
+   * bottom up. Levels where the node has no sibling contribute nothing.
+   */
+  static byte[][] proof(byte[][][] levels, int index) {
+    List proof = new ArrayList();
+    for (int l = 0 ; l < levels.length - 1 ; l++) {
+      int sibling = index ^ 1;
+      if (sibling < levels[l].length) {
+        proof.add(levels[l][sibling]);
+      }
+      index >>= 1;
+    }
+    return (byte[][]) proof.toArray(new byte[proof.size()][]);
+  }
+
+  /**
+   * Recomputes the root from a leaf hash and its proof.
+   * @return the root, or null if the proof does not fit a tree of
+   * count leaves
+   */
+  static byte[] rootFromProof(String algorithm, byte[] leaf, int index,
+                              int count, byte[][] proof)
+    throws NoSuchAlgorithmException {
+    if (index < 0 || index >= count) {
+      return null;
+    }
+    MessageDigest md = CryptoPrimitives.getMessageDigest(algorithm);
+    try {
+      byte[] node = leaf;
+      int p = 0;
+      while (count > 1) {
+        int sibling = index ^ 1;
+        if (sibling < count) {
+          if (p == proof.length) {
+            return null;
+          }
+          md.update(NODE);
+          if ((index & 1) == 0) {
+            md.update(node);
+            md.update(proof[p++]);
+          }
+          else {
+            md.update(proof[p++]);
+            md.update(node);
+          }
+          node = md.digest();
+        }
+        index >>= 1;
+        count = (count + 1) / 2;
+      }
+      return (p == proof.length) ? node : null;
+    }
+    finally {
+      CryptoPrimitives.release(md);
+    }
+  }
+
+  /** @return the link of a window following the given link */
+  static byte[] link(String algorithm, byte[] previous, byte[] windowRoot)
+    throws NoSuchAlgorithmException {
+    MessageDigest md = CryptoPrimitives.getMessageDigest(algorithm);
+    try {
+      md.update(LINK);
+      md.update(previous);
+      md.update(windowRoot);
+      return md.digest();
+    }
+    finally {
+      CryptoPrimitives.release(md);
+    }
+  }
+
+  /** @return the encoded stream header */
+  static byte[] header(String algorithm, int chunkSize, int windowChunks) {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(32);
+    DataOutputStream out = new DataOutputStream(bos);
+    try {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeUTF(algorithm);
+      out.writeInt(chunkSize);
+      out.writeInt(windowChunks);
+      out.flush();
+    }
+    catch (IOException e) {
+      // a ByteArrayOutputStream does not throw
+      throw new RuntimeException(e.toString());
+    }
+    return bos.toByteArray();
+  }
+
+  /** @return the link the window chain starts from */
+  static byte[] headerLink(String algorithm, byte[] header)
+    throws NoSuchAlgorithmException {
+    MessageDigest md = CryptoPrimitives.getMessageDigest(algorithm);
+    try {
+      md.update(HEADER);
+      md.update(header);
+      return md.digest();
+    }
+    finally {
+      CryptoPrimitives.release(md);
+    }
+  }
+
+  /** Hashes a range of chunks, splitting it across workers. */
+  private static class HashTask extends FJTask {
+    private String _algorithm;
+    private byte[][] _chunks;
+    private int[] _lengths;
+    private byte[][] _hashes;
+    private int _from;
+    private int _to;
+    private Exception _error;
+
+    HashTask(String algorithm, byte[][] chunks, int[] lengths,
+             byte[][] hashes, int from, int to) {
+      _algorithm = algorithm;
+      _chunks = chunks;
+      _lengths = lengths;
+      _hashes = hashes;
+      _from = from;
+      _to = to;
+    }
+
+    Exception getError() {
+      return _error;
+    }
+
+    public void run() {
+      if (_to - _from > 1) {
+        int mid = (_from + _to) >>> 1;
+        HashTask left = new HashTask(_algorithm, _chunks, _lengths,
+                                     _hashes, _from, mid);
+        HashTask right = new HashTask(_algorithm, _chunks, _lengths,
+                                      _hashes, mid, _to);
+        coInvoke(left, right);
+        _error = (left._error != null) ? left._error : right._error;
+        return;
+      }
+      try {
+        MessageDigest md = CryptoPrimitives.getMessageDigest(_algorithm);
+        md.update(LEAF);
+        md.update(_chunks[_from], 0, _lengths[_from]);
+        _hashes[_from] = md.digest();
+        CryptoPrimitives.release(md);
+      }
+      catch (Exception e) {
+        _error = e;
+      }
+    }
+  }
+}
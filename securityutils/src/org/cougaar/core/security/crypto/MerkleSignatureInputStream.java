@@ -0,0 +1,320 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a stream written by <code>MerkleSignatureOutputStream</code>.
+ * <p>
+ * Each window is read completely, its chunks are hashed in parallel
+ * and its signature is checked before any of its data is returned, so
+ * tampered data is rejected with an <code>IOException</code> at the
+ * window where it occurs. Once all data has been read,
+ * <code>verifySignature</code> checks the signature over the root of
+ * all chunks, which also guards against truncation.
+ */
+public class MerkleSignatureInputStream
+  extends InputStream
+  implements SignedDigestInputStream
+{
+  private DataInputStream _in;
+  private Signature _signature;
+  private String _digestAlgorithm;
+  private boolean _headerRead;
+
+  /** chunks of the window, allocated as data arrives */
+  private byte[][] _chunks;
+  private int[] _lengths;
+  private int _chunkSize;
+  /** number of chunks in the current window */
+  private int _count;
+  /** chunk being read and position in it */
+  private int _current;
+  private int _pos;
+
+  private byte[] _headerLink;
+  private byte[] _link;
+  private List _leaves = new ArrayList();
+  private boolean _eof;
+  /** set once reading or verifying fails; all later reads fail */
+  private IOException _error;
+
+  public MerkleSignatureInputStream(InputStream is, String algorithm,
+                                    PublicKey pubKey)
+    throws NoSuchAlgorithmException, InvalidKeyException {
+    _in = new DataInputStream(is);
+    _signature = CryptoPrimitives.getVerifier(algorithm);
+    boolean ok = false;
+    try {
+      _signature.initVerify(pubKey);
+      ok = true;
+    }
+    finally {
+      if (!ok) {
+        release();
+      }
+    }
+  }
+
+  /**
+   * @return true if the stream was written by
+   * <code>MerkleSignatureOutputStream</code> rather than
+   * <code>SignatureOutputStream</code>. The stream must support
+   * mark/reset and is left where it was.
+   */
+  public static boolean isChunked(InputStream in) throws IOException {
+    return MerkleDigest.startsWithMagic(in);
+  }
+
+  public int read() throws IOException {
+    if (!ensureData()) {
+      return -1;
+    }
+    return _chunks[_current][_pos++] & 0xFF;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureData()) {
+      return -1;
+    }
+    int n = 0;
+    do {
+      int avail = Math.min(len - n, _lengths[_current] - _pos);
+      System.arraycopy(_chunks[_current], _pos, b, off + n, avail);
+      _pos += avail;
+      n += avail;
+    } while (n < len && hasBufferedData());
+    return n;
+  }
+
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while (skipped < n && ensureData()) {
+      int avail = (int) Math.min(n - skipped, _lengths[_current] - _pos);
+      _pos += avail;
+      skipped += avail;
+    }
+    return skipped;
+  }
+
+  /** @return the number of verified bytes available without blocking */
+  public int available() throws IOException {
+    if (_chunks == null) {
+      return 0;
+    }
+    int n = 0;
+    if (_current < _count) {
+      n = _lengths[_current] - _pos;
+      for (int i = _current + 1 ; i < _count ; i++) {
+        n += _lengths[i];
+      }
+    }
+    return n;
+  }
+
+  public void verifySignature()
+    throws IOException, SignatureException {
+    if (!_eof) {
+      throw new SignatureException("Signed data has not been read completely");
+    }
+    int len;
+    byte[] sig;
+    try {
+      len = _in.readUnsignedShort();
+      sig = new byte[len];
+      _in.readFully(sig);
+    }
+    catch (EOFException e) {
+      throw new SignatureException("No signature available");
+    }
+    try {
+      _signature.update(MerkleDigest.link(_digestAlgorithm, _headerLink,
+                                          MerkleDigest.root(_digestAlgorithm,
+                                                            _leaves)));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new SignatureException("Digest unavailable: " + e.toString());
+    }
+    if (!_signature.verify(sig)) {
+      throw new SignatureException("Signature verification failed");
+    }
+  }
+
+  /**
+   * Closes the underlying stream and returns the signature engine to
+   * <code>CryptoPrimitives</code>.
+   */
+  public void close() throws IOException {
+    try {
+      _in.close();
+    }
+    finally {
+      release();
+    }
+  }
+
+  /**
+   * Returns the pooled verifier without closing the underlying
+   * stream. Used when the caller abandons the stream before handing
+   * it out; later reads fail.
+   */
+  void release() {
+    if (_signature != null) {
+      CryptoPrimitives.releaseVerifier(_signature);
+      _signature = null;
+    }
+  }
+
+  private boolean hasBufferedData() {
+    while (_current < _count && _pos == _lengths[_current]) {
+      _current++;
+      _pos = 0;
+    }
+    return _current < _count;
+  }
+
+  private boolean ensureData() throws IOException {
+    if (_error != null) {
+      throw _error;
+    }
+    while (!hasBufferedData()) {
+      if (_eof) {
+        return false;
+      }
+      try {
+        readWindow();
+      }
+      catch (IOException e) {
+        // the chain has moved on, so the stream cannot be resumed
+        throw _error = e;
+      }
+    }
+    return true;
+  }
+
+  private void readHeader() throws IOException {
+    if (_in.readInt() != MerkleDigest.MAGIC) {
+      throw new IOException("Not a chunked signed stream");
+    }
+    int version = _in.readUnsignedByte();
+    if (version != MerkleDigest.VERSION) {
+      throw new IOException("Unsupported chunked stream version: " + version);
+    }
+    _digestAlgorithm = _in.readUTF();
+    int chunkSize = _in.readInt();
+    int windowChunks = _in.readInt();
+    if (!MerkleDigest.isValidWindow(chunkSize, windowChunks)) {
+      throw new IOException("Bad chunk size " + chunkSize
+                            + " or window size " + windowChunks);
+    }
+    try {
+      _headerLink = MerkleDigest.headerLink(_digestAlgorithm,
+                                            MerkleDigest.header(_digestAlgorithm,
+                                                                chunkSize,
+                                                                windowChunks));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IOException("Unsupported digest: " + _digestAlgorithm);
+    }
+    _link = _headerLink;
+    _chunkSize = chunkSize;
+    _chunks = new byte[windowChunks][];
+    _lengths = new int[windowChunks];
+    _headerRead = true;
+  }
+
+  private void readWindow() throws IOException {
+    if (!_headerRead) {
+      readHeader();
+    }
+    _current = 0;
+    _pos = 0;
+    _count = 0;
+    int count = _in.readInt();
+    if (count == 0) {
+      _eof = true;
+      return;
+    }
+    if (count < 0 || count > _chunks.length) {
+      throw new IOException("Bad chunk count: " + count);
+    }
+    for (int i = 0 ; i < count ; i++) {
+      int len = _in.readInt();
+      if (len <= 0 || len > _chunkSize) {
+        throw new IOException("Bad chunk length: " + len);
+      }
+      if (_chunks[i] == null || _chunks[i].length < len) {
+        _chunks[i] = new byte[len];
+      }
+      _in.readFully(_chunks[i], 0, len);
+      _lengths[i] = len;
+    }
+    byte[] sig = new byte[_in.readUnsignedShort()];
+    _in.readFully(sig);
+
+    byte[][] hashes =
+      MerkleDigest.hashChunks(_digestAlgorithm, _chunks, _lengths, count);
+    try {
+      _link = MerkleDigest.link(_digestAlgorithm, _link,
+                                MerkleDigest.root(_digestAlgorithm,
+                                                  hashes, count));
+      _signature.update(_link);
+      if (!_signature.verify(sig)) {
+        throw _error = new IOException("Signature check failed for chunks "
+                              + _leaves.size() + " to "
+                              + (_leaves.size() + count - 1));
+      }
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw _error = new IOException("Unable to verify chunks: " + e.toString());
+    }
+    catch (SignatureException e) {
+      throw _error = new IOException("Unable to verify chunks: " + e.toString());
+    }
+    for (int i = 0 ; i < count ; i++) {
+      _leaves.add(hashes[i]);
+    }
+    _count = count;
+  }
+}
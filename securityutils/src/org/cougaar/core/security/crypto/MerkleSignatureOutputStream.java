@@ -0,0 +1,235 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Signs a stream as a tree of fixed-size chunks.
+ * <p>
+ * Data is collected into a window of chunks; when the window is full,
+ * its chunks are hashed in parallel on the shared fork-join group and
+ * the window is written with a signature chained to the previous
+ * windows, so that <code>MerkleSignatureInputStream</code> can check
+ * each window as soon as it arrives. <code>writeSignature</code> signs
+ * the root over all chunks and appends it in the same form as
+ * <code>SignatureOutputStream</code>. See <code>MerkleDigest</code> for
+ * the stream format.
+ * <p>
+ * <code>flush</code> does not end the current window; only
+ * <code>writeSignature</code> does.
+ */
+public class MerkleSignatureOutputStream
+  extends OutputStream
+  implements SignedDigestOutputStream
+{
+  private DataOutputStream _out;
+  private Signature _signature;
+  private String _digestAlgorithm;
+
+  private byte[][] _chunks;
+  private int[] _lengths;
+  /** index of the chunk being filled */
+  private int _current;
+
+  private byte[] _headerLink;
+  private byte[] _link;
+  private List _leaves = new ArrayList();
+  private boolean _finished;
+
+  public MerkleSignatureOutputStream(OutputStream os, String algorithm,
+                                     PrivateKey signKey)
+    throws NoSuchAlgorithmException, InvalidKeyException, IOException {
+    this(os, algorithm, signKey, "SHA", MerkleDigest.DEFAULT_CHUNK_SIZE,
+         MerkleDigest.getDefaultWindow());
+  }
+
+  /**
+   * @param digestAlgorithm the algorithm used to hash chunks
+   * @param chunkSize       the number of bytes in a chunk
+   * @param windowChunks    the number of chunks hashed together and
+   *                        covered by one window signature
+   */
+  public MerkleSignatureOutputStream(OutputStream os, String algorithm,
+                                     PrivateKey signKey,
+                                     String digestAlgorithm,
+                                     int chunkSize, int windowChunks)
+    throws NoSuchAlgorithmException, InvalidKeyException, IOException {
+    if (!MerkleDigest.isValidWindow(chunkSize, windowChunks)) {
+      throw new IllegalArgumentException("Bad chunk size " + chunkSize
+                                         + " or window size " + windowChunks);
+    }
+    // fail now rather than on the first window
+    CryptoPrimitives.release(CryptoPrimitives.getMessageDigest(digestAlgorithm));
+    _digestAlgorithm = digestAlgorithm;
+    _signature = CryptoPrimitives.getSignature(algorithm);
+    _signature.initSign(signKey);
+    _chunks = new byte[windowChunks][chunkSize];
+    _lengths = new int[windowChunks];
+
+    byte[] header = MerkleDigest.header(digestAlgorithm, chunkSize,
+                                        windowChunks);
+    _headerLink = MerkleDigest.headerLink(digestAlgorithm, header);
+    _link = _headerLink;
+    _out = new DataOutputStream(os);
+    _out.write(header);
+  }
+
+  public void write(int b) throws IOException {
+    ensureOpen();
+    int chunkSize = _chunks[0].length;
+    if (_lengths[_current] == chunkSize) {
+      nextChunk();
+    }
+    _chunks[_current][_lengths[_current]++] = (byte) b;
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    }
+    ensureOpen();
+    int chunkSize = _chunks[0].length;
+    while (len > 0) {
+      if (_lengths[_current] == chunkSize) {
+        nextChunk();
+      }
+      int n = Math.min(len, chunkSize - _lengths[_current]);
+      System.arraycopy(b, off, _chunks[_current], _lengths[_current], n);
+      _lengths[_current] += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  public void flush() throws IOException {
+    _out.flush();
+  }
+
+  /**
+   * Writes the pending window, the end marker and the signature of the
+   * root over all chunks. No data can be written afterwards.
+   */
+  public byte[] writeSignature() throws IOException {
+    ensureOpen();
+    writeWindow();
+    _finished = true;
+    _out.writeInt(0);
+    try {
+      _signature.update(MerkleDigest.link(_digestAlgorithm, _headerLink,
+                                          MerkleDigest.root(_digestAlgorithm,
+                                                            _leaves)));
+      byte[] sig = _signature.sign();
+      _out.writeShort(sig.length);
+      _out.write(sig);
+      _out.flush();
+      return sig;
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IOException("Failed to get signature: " + e.toString());
+    }
+    catch (SignatureException e) {
+      throw new IOException("Failed to get signature: " + e.toString());
+    }
+  }
+
+  /**
+   * Closes the underlying stream and returns the signature engine to
+   * <code>CryptoPrimitives</code>.
+   */
+  public void close() throws IOException {
+    try {
+      _out.close();
+    }
+    finally {
+      if (_signature != null) {
+        CryptoPrimitives.release(_signature);
+        _signature = null;
+        _finished = true;
+      }
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (_finished) {
+      throw new IOException("Signature already written");
+    }
+  }
+
+  private void nextChunk() throws IOException {
+    if (_current + 1 == _chunks.length) {
+      writeWindow();
+    }
+    else {
+      _current++;
+    }
+  }
+
+  private void writeWindow() throws IOException {
+    int count = (_lengths[_current] == 0) ? _current : _current + 1;
+    if (count == 0) {
+      return;
+    }
+    byte[][] hashes =
+      MerkleDigest.hashChunks(_digestAlgorithm, _chunks, _lengths, count);
+    try {
+      for (int i = 0 ; i < count ; i++) {
+        _leaves.add(hashes[i]);
+      }
+      _link = MerkleDigest.link(_digestAlgorithm, _link,
+                                MerkleDigest.root(_digestAlgorithm,
+                                                  hashes, count));
+      _signature.update(_link);
+      byte[] sig = _signature.sign();
+
+      _out.writeInt(count);
+      for (int i = 0 ; i < count ; i++) {
+        _out.writeInt(_lengths[i]);
+        _out.write(_chunks[i], 0, _lengths[i]);
+        _lengths[i] = 0;
+      }
+      _out.writeShort(sig.length);
+      _out.write(sig);
+      _current = 0;
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IOException("Failed to sign window: " + e.toString());
+    }
+    catch (SignatureException e) {
+      throw new IOException("Failed to sign window: " + e.toString());
+    }
+  }
+}
@@ -0,0 +1,312 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import sun.security.x509.X500Name;
+
+/**
+ * A distinguished name split into its relative distinguished names.
+ * <p>
+ * Attribute types are trimmed and lower case; values are kept as
+ * written, including escapes and quotes. Each attribute of a
+ * multi-valued RDN is listed separately. The canonical form joins the lower case
+ * <tt>type=value</tt> pairs with commas, and equality and hash code
+ * are based on it, so a <code>ParsedDN</code> is a cheaper map key
+ * than an <code>X500Name</code>.
+ * <p>
+ * <code>getInstance</code> interns parsed names in a bounded cache
+ * keyed by the raw string, so repeated lookups of the same DN are not
+ * tokenized again. The cache size defaults to 1024 and can be set with
+ * the <tt>org.cougaar.core.security.crypto.dnCacheSize</tt> system
+ * property.
+ */
+public final class ParsedDN
+{
+  public static final String CACHE_SIZE_PROP =
+    "org.cougaar.core.security.crypto.dnCacheSize";
+
+  private static final int CACHE_SIZE =
+    Integer.getInteger(CACHE_SIZE_PROP, 1024).intValue();
+
+  /** raw DN string to ParsedDN, least recently used first */
+  private static final Map _cache = new LinkedHashMap(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+
+  private String _name;
+  private String[] _types;
+  private String[] _values;
+  /** trimmed, lower case values */
+  private String[] _lowerValues;
+  private String _canonical;
+  private int _hashCode;
+
+  private X500Name _x500Name;
+  private IOException _x500Error;
+  private String _filter;
+
+  private ParsedDN(String name) {
+    _name = name;
+    List types = new ArrayList();
+    List values = new ArrayList();
+    // whether an entry continues the RDN of the previous one
+    List continued = new ArrayList();
+    boolean plus = false;
+    int len = name.length();
+    int start = 0;
+    int eq = -1;
+    boolean quoted = false;
+    for (int i = 0 ; i <= len ; i++) {
+      char c = (i < len) ? name.charAt(i) : ',';
+      if (c == '\\' && i + 1 < len) {
+        // escaped character, e.g. "cn=Smith\, John"
+        i++;
+      }
+      else if (c == '"') {
+        quoted = !quoted;
+      }
+      else if (quoted && i < len) {
+        // separators are literal inside a quoted value
+      }
+      else if (c == '=' && eq == -1) {
+        eq = i;
+      }
+      else if (c == ',' || c == ';' || c == '+') {
+        // each attribute of a multi-valued RDN ("cn=a+ou=b") is kept
+        // as an entry of its own; text without a type is ignored, as
+        // X500Name is the authority on whether the DN is well formed
+        if (eq != -1) {
+          types.add(name.substring(start, eq).trim().toLowerCase());
+          values.add(name.substring(eq + 1, i));
+          continued.add(Boolean.valueOf(plus));
+        }
+        plus = (c == '+');
+        start = i + 1;
+        eq = -1;
+        quoted = false;
+      }
+    }
+    _types = (String[]) types.toArray(new String[types.size()]);
+    _values = (String[]) values.toArray(new String[values.size()]);
+    _lowerValues = new String[_values.length];
+
+    StringBuffer sb = new StringBuffer(len);
+    for (int i = 0 ; i < _types.length ; i++) {
+      _lowerValues[i] = _values[i].trim().toLowerCase();
+      if (i > 0) {
+        sb.append(((Boolean) continued.get(i)).booleanValue() ? '+' : ',');
+      }
+      sb.append(_types[i]).append('=').append(_lowerValues[i]);
+    }
+    _canonical = sb.toString();
+    _hashCode = _canonical.hashCode();
+  }
+
+  /**
+   * Returns the parsed form of a distinguished name. Separators that
+   * are escaped with a backslash or inside a quoted value do not split
+   * the name. Malformed names are not rejected here; they fail in
+   * <code>getX500Name</code>, exactly as <code>new X500Name(name)</code>
+   * does.
+   */
+  public static ParsedDN getInstance(String name) {
+    ParsedDN dn;
+    synchronized (_cache) {
+      dn = (ParsedDN) _cache.get(name);
+    }
+    if (dn == null) {
+      dn = new ParsedDN(name);
+      synchronized (_cache) {
+        _cache.put(name, dn);
+      }
+    }
+    return dn;
+  }
+
+  /**
+   * Returns the parsed form of an X500Name, which is then also returned
+   * by <code>getX500Name</code>.
+   */
+  public static ParsedDN getInstance(X500Name name) {
+    ParsedDN dn = getInstance(name.getName());
+    synchronized (dn) {
+      if (dn._x500Name == null) {
+        dn._x500Name = name;
+        dn._x500Error = null;
+      }
+    }
+    return dn;
+  }
+
+  /** Removes all interned names. */
+  public static void clearCache() {
+    synchronized (_cache) {
+      _cache.clear();
+    }
+  }
+
+  /** @return the DN as it was given to <code>getInstance</code> */
+  public String getName() {
+    return _name;
+  }
+
+  public String getCanonicalName() {
+    return _canonical;
+  }
+
+  public int getRDNCount() {
+    return _types.length;
+  }
+
+  /** @return the trimmed, lower case attribute type of an RDN */
+  public String getType(int i) {
+    return _types[i];
+  }
+
+  /** @return the value of an RDN as written */
+  public String getValue(int i) {
+    return _values[i];
+  }
+
+  /**
+   * @param type a lower case attribute type, e.g. "cn"
+   * @return the trimmed, lower case value of the first RDN of that
+   * type, or null
+   */
+  public String getAttribute(String type) {
+    for (int i = 0 ; i < _types.length ; i++) {
+      if (_types[i].equals(type)) {
+        return _lowerValues[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the X500Name for this DN, created once
+   * @throws IOException if the name cannot be parsed as an X500Name
+   */
+  public synchronized X500Name getX500Name() throws IOException {
+    if (_x500Name == null && _x500Error == null) {
+      try {
+        _x500Name = new X500Name(_name);
+      }
+      catch (IOException e) {
+        _x500Error = e;
+      }
+    }
+    if (_x500Error != null) {
+      throw _x500Error;
+    }
+    return _x500Name;
+  }
+
+  /**
+   * @return an LDAP filter matching every RDN, e.g.
+   * <tt>(&amp;(cn=foo)(title=bar))</tt>; "t" is written as "title".
+   */
+  public String getLdapFilter() {
+    String filter = _filter;
+    if (filter == null) {
+      StringBuffer sb = new StringBuffer(_name.length() + 4 * _types.length + 8);
+      sb.append("(&");
+      for (int i = 0 ; i < _types.length ; i++) {
+        sb.append('(');
+        sb.append(_types[i].equals("t") ? "title" : _types[i]);
+        sb.append('=').append(_values[i]).append(')');
+      }
+      sb.append(')');
+      filter = sb.toString();
+      _filter = filter;
+    }
+    return filter;
+  }
+
+  /**
+   * Joins the domain components (dc) of the DN.
+   * @param setType  prefix each component with "dc="
+   * @param separator the character between components
+   * @param keepOrder keep the DN order rather than reversing it
+   */
+  public String getDomain(boolean setType, char separator,
+                          boolean keepOrder) {
+    StringBuffer domain = new StringBuffer();
+    for (int i = 0 ; i < _types.length ; i++) {
+      if (!_types[i].equals("dc")) {
+        continue;
+      }
+      if (keepOrder) {
+        if (domain.length() > 0) {
+          domain.append(separator);
+        }
+        if (setType) {
+          domain.append("dc=");
+        }
+        domain.append(_values[i]);
+      }
+      else {
+        if (domain.length() > 0) {
+          domain.insert(0, separator);
+        }
+        if (setType) {
+          domain.append("dc=").append(_values[i]);
+        }
+        else {
+          domain.insert(0, _values[i]);
+        }
+      }
+    }
+    return domain.toString();
+  }
+
+  public int hashCode() {
+    return _hashCode;
+  }
+
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof ParsedDN)) {
+      return false;
+    }
+    ParsedDN dn = (ParsedDN) o;
+    return _hashCode == dn._hashCode && _canonical.equals(dn._canonical);
+  }
+
+  public String toString() {
+    return _name;
+  }
+}
@@ -0,0 +1,313 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the PEM blocks (<tt>-----BEGIN label-----</tt> ... 
+ * <tt>-----END label-----</tt>) contained in a byte stream.
+ *
+ * The stream is scanned once through a fixed buffer and the base64 body
+ * of each block is decoded as it is read, without building a
+ * <code>String</code> per line and without relying on mark/reset of the
+ * underlying stream. Text outside the blocks is ignored, so trust
+ * bundles holding hundreds of concatenated certificates can be read
+ * block by block with <code>readBlock()</code> or <code>iterator()</code>.
+ * <p>
+ * By default the reader fills its buffer as far as the stream allows,
+ * so it may consume bytes past the last block it returns. A reader
+ * created without read-ahead only reads the bytes it examines and
+ * stops at the end of the END line; it reads byte by byte, so give it
+ * a buffered stream when the stream is not already in memory.
+ */
+public class PemReader
+{
+  private static final byte[] BEGIN = toAscii("-----BEGIN");
+  private static final byte[] END = toAscii("-----END");
+  private static final byte[] DASHES = toAscii("-----");
+
+  /** Longest label accepted in a BEGIN line. */
+  private static final int MAX_LABEL = 256;
+
+  private static final int BUFFER_SIZE = 8192;
+
+  /** A decoded PEM block. */
+  public static final class Block {
+    private String _label;
+    private byte[] _der;
+
+    Block(String label, byte[] der) {
+      _label = label;
+      _der = der;
+    }
+
+    /** The label of the block, e.g. "CERTIFICATE" or "PKCS7". */
+    public String getLabel() {
+      return _label;
+    }
+
+    /** The decoded content of the block. */
+    public byte[] getEncoded() {
+      return _der;
+    }
+
+    public String toString() {
+      return _label + " (" + _der.length + " bytes)";
+    }
+  }
+
+  private InputStream _in;
+  private byte[] _buf = new byte[BUFFER_SIZE];
+  private int _pos;
+  private int _limit;
+  private boolean _eof;
+  private boolean _readAhead;
+
+  /** Decoded bytes of the block being read. */
+  private byte[] _out = new byte[2048];
+  private int _outCount;
+
+  public PemReader(InputStream in) {
+    this(in, true);
+  }
+
+  /**
+   * @param readAhead false to leave the stream just after the END line
+   * of each block returned by <code>readBlock()</code>.
+   */
+  public PemReader(InputStream in, boolean readAhead) {
+    _in = in;
+    _readAhead = readAhead;
+  }
+
+  /**
+   * Checks whether the stream starts with a PEM BEGIN line. The stream
+   * must support mark/reset; it is left at its original position.
+   */
+  public static boolean isPem(InputStream in)
+    throws IOException {
+    if (!in.markSupported()) {
+      throw new IOException("Cannot determine encoding format");
+    }
+    in.mark(BEGIN.length);
+    int i = 0;
+    try {
+      while (i < BEGIN.length && in.read() == BEGIN[i]) {
+        i++;
+      }
+    }
+    finally {
+      in.reset();
+    }
+    return i == BEGIN.length;
+  }
+
+  /**
+   * Reads and decodes the next block.
+   * @return the next block, or null if the stream holds no more blocks.
+   * @throws IOException if the stream ends before the END line.
+   */
+  public Block readBlock()
+    throws IOException {
+    String label = findBegin();
+    if (label == null) {
+      return null;
+    }
+    _outCount = 0;
+    int accum = 0;
+    int shift = 0;
+    boolean lineStart = true;
+    while (true) {
+      if (_pos == _limit && !fill(1)) {
+        throw new IOException("No trailer for " + label);
+      }
+      byte c = _buf[_pos];
+      if (lineStart && c == '-' && matches(END)) {
+        skipLine();
+        byte[] der = new byte[_outCount];
+        System.arraycopy(_out, 0, der, 0, _outCount);
+        return new Block(label, der);
+      }
+      _pos++;
+      lineStart = (c == '\n' || c == '\r');
+      int value = Base64.codes[c & 0xFF];
+      if (value >= 0) {
+        accum = (accum << 6) | value;
+        shift += 6;
+        if (shift >= 8) {
+          shift -= 8;
+          if (_outCount == _out.length) {
+            byte[] grown = new byte[_out.length * 2];
+            System.arraycopy(_out, 0, grown, 0, _outCount);
+            _out = grown;
+          }
+          _out[_outCount++] = (byte) (accum >> shift);
+        }
+      }
+      else if (c == Base64.PAD) {
+        accum = 0;
+        shift = 0;
+      }
+    }
+  }
+
+  /**
+   * Returns the blocks lazily. I/O errors are reported as a
+   * RuntimeException whose cause is the IOException.
+   */
+  public Iterator iterator() {
+    return new Iterator() {
+        private Block _next;
+
+        public boolean hasNext() {
+          if (_next == null) {
+            try {
+              _next = readBlock();
+            }
+            catch (IOException e) {
+              throw new RuntimeException("Unable to read PEM block", e);
+            }
+          }
+          return _next != null;
+        }
+
+        public Object next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          Block b = _next;
+          _next = null;
+          return b;
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+  }
+
+  /**
+   * Skips lines until a BEGIN line is found.
+   * @return the label of the BEGIN line, or null at end of stream.
+   */
+  private String findBegin()
+    throws IOException {
+    while (fill(1)) {
+      if (matches(BEGIN)) {
+        _pos += BEGIN.length;
+        StringBuffer label = new StringBuffer();
+        while ((_pos < _limit || fill(1)) && label.length() < MAX_LABEL) {
+          byte c = _buf[_pos];
+          if (c == '\n' || c == '\r' || (c == '-' && matches(DASHES))) {
+            break;
+          }
+          label.append((char) (c & 0xFF));
+          _pos++;
+        }
+        skipLine();
+        return label.toString().trim();
+      }
+      skipLine();
+    }
+    return null;
+  }
+
+  /**
+   * Consumes the rest of the current line and its line terminator.
+   * Without read-ahead, the LF of a CR LF pair is only consumed if it
+   * is already buffered; it is then skipped as an empty line.
+   */
+  private void skipLine()
+    throws IOException {
+    while (_pos < _limit || fill(1)) {
+      byte c = _buf[_pos++];
+      if (c == '\n') {
+        return;
+      }
+      if (c == '\r') {
+        if ((_pos < _limit || (_readAhead && fill(1)))
+            && _buf[_pos] == '\n') {
+          _pos++;
+        }
+        return;
+      }
+    }
+  }
+
+  /** Checks whether the buffered input starts with the given bytes. */
+  private boolean matches(byte[] prefix)
+    throws IOException {
+    if (!fill(prefix.length)) {
+      return false;
+    }
+    for (int i = 0 ; i < prefix.length ; i++) {
+      if (_buf[_pos + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Makes sure at least n bytes are buffered, unless the stream ends.
+   * @return false if fewer than n bytes are left in the stream.
+   */
+  private boolean fill(int n)
+    throws IOException {
+    if (_limit - _pos >= n) {
+      return true;
+    }
+    if (_pos > 0) {
+      System.arraycopy(_buf, _pos, _buf, 0, _limit - _pos);
+      _limit -= _pos;
+      _pos = 0;
+    }
+    while (_limit < n && !_eof) {
+      int r = _in.read(_buf, _limit,
+                       (_readAhead ? _buf.length : n) - _limit);
+      if (r == -1) {
+        _eof = true;
+      }
+      else {
+        _limit += r;
+      }
+    }
+    return _limit - _pos >= n;
+  }
+
+  private static byte[] toAscii(String s) {
+    byte[] b = new byte[s.length()];
+    for (int i = 0 ; i < b.length ; i++) {
+      b[i] = (byte) s.charAt(i);
+    }
+    return b;
+  }
+}
@@ -0,0 +1,218 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Writes PEM blocks (armor lines and 64-column base64 body) to an
+ * <code>OutputStream</code> or a <code>WritableByteChannel</code>.
+ *
+ * Everything is encoded straight into one fixed buffer which is drained
+ * to the output when full, so no intermediate <code>String</code> or
+ * <code>byte[]</code> is created per block. A writer is not thread-safe
+ * but may be reused for several outputs with <code>reset()</code>.
+ * Output is only guaranteed to reach the underlying stream or channel
+ * after <code>flush()</code>.
+ */
+public class PemWriter
+{
+  /** Number of base64 characters per line. */
+  public static final int LINE_LENGTH = 64;
+
+  /** Number of bytes encoded on a full line. */
+  private static final int LINE_BYTES = (LINE_LENGTH / 4) * 3;
+
+  private static final int BUFFER_SIZE = 4096;
+
+  private OutputStream _out;
+  private WritableByteChannel _channel;
+  private ByteBuffer _wrapped;
+
+  private byte[] _buf;
+  private int _count;
+
+  public PemWriter(OutputStream out) {
+    this(new byte[BUFFER_SIZE]);
+    reset(out);
+  }
+
+  public PemWriter(WritableByteChannel channel) {
+    this(new byte[BUFFER_SIZE]);
+    reset(channel);
+  }
+
+  private PemWriter(byte[] buf) {
+    _buf = buf;
+  }
+
+  /**
+   * Directs further output to another stream. Data still buffered for
+   * the previous output is discarded.
+   */
+  public void reset(OutputStream out) {
+    _out = out;
+    _channel = null;
+    _count = 0;
+  }
+
+  /**
+   * Directs further output to another channel. Data still buffered for
+   * the previous output is discarded.
+   */
+  public void reset(WritableByteChannel channel) {
+    _out = null;
+    _channel = channel;
+    if (_wrapped == null) {
+      _wrapped = ByteBuffer.wrap(_buf);
+    }
+    _count = 0;
+  }
+
+  /**
+   * Writes one block. The header and trailer are complete armor lines,
+   * e.g. <tt>-----BEGIN CERTIFICATE-----</tt>; they must be US-ASCII.
+   */
+  public void write(byte[] der, String header, String trailer)
+    throws IOException {
+    writeLine(header);
+    for (int off = 0 ; off < der.length ; off += LINE_BYTES) {
+      int len = Math.min(LINE_BYTES, der.length - off);
+      ensure(FastBase64.encodedLength(len) + 1);
+      _count += FastBase64.encodeInto(der, off, len, _buf, _count);
+      _buf[_count++] = '\n';
+    }
+    writeLine(trailer);
+  }
+
+  /** Writes a certificate as a CERTIFICATE block. */
+  public void writeCertificate(X509Certificate cert)
+    throws CertificateEncodingException, IOException {
+    write(cert.getEncoded(), CertificateUtility.PKCS7HEADER,
+          CertificateUtility.PKCS7TRAILER);
+  }
+
+  /**
+   * Writes a whole certificate chain, one CERTIFICATE block per
+   * certificate, and flushes the output once at the end.
+   */
+  public void writeCertificates(X509Certificate[] certs)
+    throws CertificateEncodingException, IOException {
+    for (int i = 0 ; i < certs.length ; i++) {
+      writeCertificate(certs[i]);
+    }
+    flush();
+  }
+
+  /** Writes the buffered data and flushes the underlying stream. */
+  public void flush()
+    throws IOException {
+    drain();
+    if (_out != null) {
+      _out.flush();
+    }
+  }
+
+  /**
+   * @return the number of bytes of a block, armor lines included.
+   */
+  public static int encodedLength(int derLength, String header,
+                                  String trailer) {
+    int lines = (derLength + LINE_BYTES - 1) / LINE_BYTES;
+    return header.length() + 1 + FastBase64.encodedLength(derLength) + lines
+      + trailer.length() + 1;
+  }
+
+  /**
+   * Encodes one block as a String.
+   */
+  public static String toString(byte[] der, String header, String trailer) {
+    PemWriter w =
+      new PemWriter(new byte[encodedLength(der.length, header, trailer)]);
+    try {
+      w.write(der, header, trailer);
+      return new String(w._buf, 0, w._count, "US-ASCII");
+    }
+    catch (UnsupportedEncodingException e) {
+      // US-ASCII is always supported
+      throw new RuntimeException(e.toString());
+    }
+    catch (IOException e) {
+      // cannot happen, the buffer is large enough
+      throw new RuntimeException(e.toString());
+    }
+  }
+
+  private void writeLine(String line)
+    throws IOException {
+    int len = line.length();
+    int i = 0;
+    while (i < len) {
+      ensure(1);
+      int n = Math.min(len - i, _buf.length - _count);
+      for (int end = i + n ; i < end ; i++) {
+        _buf[_count++] = (byte) line.charAt(i);
+      }
+    }
+    ensure(1);
+    _buf[_count++] = '\n';
+  }
+
+  private void ensure(int n)
+    throws IOException {
+    if (_count + n > _buf.length) {
+      drain();
+    }
+  }
+
+  private void drain()
+    throws IOException {
+    if (_count == 0) {
+      return;
+    }
+    if (_out != null) {
+      _out.write(_buf, 0, _count);
+    }
+    else if (_channel != null) {
+      _wrapped.clear();
+      _wrapped.limit(_count);
+      while (_wrapped.hasRemaining()) {
+        _channel.write(_wrapped);
+      }
+    }
+    else {
+      throw new IOException("PEM buffer overflow");
+    }
+    _count = 0;
+  }
+}
@@ -26,13 +26,28 @@
 
 package org.cougaar.core.security.crypto;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
 import org.cougaar.core.security.crypto.SecureMethodParam;
 
+/**
+ * A protected message body and the method used to protect it.
+ * <p>
+ * The wire form is a version byte, the <code>SecureMethodParam</code>
+ * in its binary form (preceded by a presence flag) and the protected
+ * object, so no class descriptor is written for the envelope or the
+ * parameter.
+ */
 public class ProtectedObject
-  implements Serializable
+  implements Externalizable
 {
+  private static final long serialVersionUID = 2L;
+
+  private static final int VERSION = 1;
+
   private SecureMethodParam secureMethod;
 
   /** The protected object
@@ -40,6 +55,10 @@ public class ProtectedObject
    */
   private Object theObject;
 
+  /** For Externalizable only */
+  public ProtectedObject() {
+  }
+
   public ProtectedObject(SecureMethodParam smp, Object o) {
     secureMethod = smp;
     theObject = o;
@@ -52,4 +71,27 @@ public class ProtectedObject
   public Object getObject() {
     return theObject;
   }
+
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeByte(VERSION);
+    out.writeBoolean(secureMethod != null);
+    if (secureMethod != null) {
+      secureMethod.writeTo(out);
+    }
+    out.writeObject(theObject);
+  }
+
+  public void readExternal(ObjectInput in)
+    throws IOException, ClassNotFoundException {
+    int version = in.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported ProtectedObject version: "
+                            + version);
+    }
+    if (in.readBoolean()) {
+      secureMethod = new SecureMethodParam();
+      secureMethod.readFrom(in);
+    }
+    theObject = in.readObject();
+  }
 }
@@ -26,20 +26,43 @@
 
 package org.cougaar.core.security.crypto;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 
+/**
+ * The secure method and algorithm specs used to protect a message.
+ * <p>
+ * The wire form is a version byte, the secure method as a byte and the
+ * three specs encoded by <code>SpecRegistry</code>; see
+ * <code>writeTo</code>.
+ */
 public final class SecureMethodParam
-  implements Serializable
+  implements Externalizable
 {
+  private static final long serialVersionUID = 2L;
+
+  /** Version of the layout written by writeTo */
+  private static final int VERSION = 1;
 
   public static final int PLAIN = 1;
   public static final int SIGN = 2;
   public static final int ENCRYPT = 3;
   public static final int SIGNENCRYPT = 4;
   public static final int INVALID = 5;
+  /**
+   * A single authenticated-encryption pass (e.g. AES/GCM) with a
+   * pairwise session key, for traffic inside a community. Provides
+   * confidentiality and integrity but, unlike SIGNENCRYPT, no
+   * non-repudiation. See <code>AeadProtector</code>.
+   */
+  public static final int AEAD = 6;
 
   public static final String SECURE_METHODS[] = {
-    "INVALID", "PLAIN", "SIGN", "ENCRYPT", "SIGNENCRYPT" };
+    "INVALID", "PLAIN", "SIGN", "ENCRYPT", "SIGNENCRYPT", "INVALID", "AEAD" };
 
   public int secureMethod;
   public String symmSpec;
@@ -79,7 +102,8 @@ public final class SecureMethodParam
      * stuff?) 
      */
     boolean enc = (secureMethod == SecureMethodParam.ENCRYPT ||
-                   secureMethod == SecureMethodParam.SIGNENCRYPT);
+                   secureMethod == SecureMethodParam.SIGNENCRYPT ||
+                   secureMethod == SecureMethodParam.AEAD);
     boolean sign = (secureMethod == SecureMethodParam.SIGN ||
                    secureMethod == SecureMethodParam.SIGNENCRYPT);
     String out = "SecureMethodParam: " + getSecureMethodToString();
@@ -94,8 +118,36 @@ public final class SecureMethodParam
     return out;
   }
 
-  /*
-   * Maybe there should be readObject and writeObject routines here.  Look at 
-   * ProtectedMessageHeader.java.
+  public void writeExternal(ObjectOutput out) throws IOException {
+    writeTo(out);
+  }
+
+  public void readExternal(ObjectInput in) throws IOException {
+    readFrom(in);
+  }
+
+  /**
+   * Writes the binary form of this parameter. Also used to embed it in
+   * other envelopes without an object stream.
    */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeByte(VERSION);
+    out.writeByte(secureMethod);
+    SpecRegistry.writeSpec(out, symmSpec);
+    SpecRegistry.writeSpec(out, asymmSpec);
+    SpecRegistry.writeSpec(out, signSpec);
+  }
+
+  /** Reads the form written by <code>writeTo</code>. */
+  public void readFrom(DataInput in) throws IOException {
+    int version = in.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported SecureMethodParam version: "
+                            + version);
+    }
+    secureMethod = in.readUnsignedByte();
+    symmSpec = SpecRegistry.readSpec(in);
+    asymmSpec = SpecRegistry.readSpec(in);
+    signSpec = SpecRegistry.readSpec(in);
+  }
 }
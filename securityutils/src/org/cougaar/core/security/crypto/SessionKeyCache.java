@@ -0,0 +1,473 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+
+import org.cougaar.core.component.ServiceBroker;
+import org.cougaar.core.security.services.crypto.CertValidityService;
+import org.cougaar.core.security.services.crypto.EncryptionService;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.LoggerFactory;
+
+/**
+ * Reuses secret keys and their public-key wrapping across messages.
+ * <p>
+ * On the sending side, <code>getSessionKey</code> returns a secret key
+ * together with its encryption under the target's certificate, keyed
+ * by source, target, target certificate, symmetric spec and asymmetric
+ * spec. A session key is used for at most
+ * <tt>org.cougaar.core.security.crypto.sessionKey.maxUses</tt> messages
+ * (default 1000) and for at most
+ * <tt>org.cougaar.core.security.crypto.sessionKey.maxAge</tt> seconds
+ * (default 300), after which a new one is created and wrapped. At most
+ * <tt>org.cougaar.core.security.crypto.sessionKey.sendCacheSize</tt>
+ * session keys (default 1024) are kept; the least recently used one is
+ * dropped first, and expired ones whenever a key is added.
+ * <p>
+ * On the receiving side, <code>decryptSecretKey</code> remembers the
+ * result of unwrapping each distinct wrapped key, so only the first
+ * message of a session pays for the private-key operation. A key can
+ * also be bound to the source that vouched for it, after which it is
+ * only accepted from that source. At most
+ * <tt>org.cougaar.core.security.crypto.sessionKey.unwrapCacheSize</tt>
+ * keys (default 1024) are kept, for no longer than the maximum age.
+ * <p>
+ * When a <code>ServiceBroker</code> is given, the cache registers an
+ * invalidate listener with the <code>CertValidityService</code> for
+ * every agent it caches keys for, and drops all keys of an agent whose
+ * certificate is invalidated.
+ */
+public class SessionKeyCache
+{
+  public static final String MAX_USES_PROP =
+    "org.cougaar.core.security.crypto.sessionKey.maxUses";
+  public static final String MAX_AGE_PROP =
+    "org.cougaar.core.security.crypto.sessionKey.maxAge";
+  public static final String UNWRAP_CACHE_SIZE_PROP =
+    "org.cougaar.core.security.crypto.sessionKey.unwrapCacheSize";
+  public static final String SEND_CACHE_SIZE_PROP =
+    "org.cougaar.core.security.crypto.sessionKey.sendCacheSize";
+
+  private static final Logger _log =
+    LoggerFactory.getInstance().createLogger(SessionKeyCache.class);
+
+  private EncryptionService _encryptService;
+  private ServiceBroker _serviceBroker;
+  private int _maxUses;
+  private long _maxAge;
+  private int _unwrapCacheSize;
+  private int _sendCacheSize;
+
+  /** SendKey to SessionKey, least recently used first */
+  private Map _sessionKeys;
+  /** UnwrapKey to UnwrapEntry, least recently used first */
+  private Map _unwrapped;
+  /** names for which an invalidate listener is registered */
+  private Set _listening = new HashSet();
+
+  public SessionKeyCache(EncryptionService encryptService,
+                         ServiceBroker sb) {
+    this(encryptService, sb,
+         Integer.getInteger(MAX_USES_PROP, 1000).intValue(),
+         Integer.getInteger(MAX_AGE_PROP, 300).intValue() * 1000L,
+         Integer.getInteger(UNWRAP_CACHE_SIZE_PROP, 1024).intValue());
+  }
+
+  public SessionKeyCache(EncryptionService encryptService,
+                         ServiceBroker sb, int maxUses, long maxAge,
+                         int unwrapCacheSize) {
+    this(encryptService, sb, maxUses, maxAge, unwrapCacheSize,
+         Integer.getInteger(SEND_CACHE_SIZE_PROP, 1024).intValue());
+  }
+
+  /**
+   * @param sb            used to find the CertValidityService; may be
+   *                      null, in which case only explicit
+   *                      <code>invalidate</code> calls drop keys.
+   * @param maxUses       messages per session key
+   * @param maxAge        lifetime of a session key in milliseconds
+   * @param unwrapCacheSize number of unwrapped keys kept by a receiver
+   * @param sendCacheSize number of session keys kept by a sender
+   */
+  public SessionKeyCache(EncryptionService encryptService,
+                         ServiceBroker sb, int maxUses, long maxAge,
+                         int unwrapCacheSize, int sendCacheSize) {
+    _encryptService = encryptService;
+    _serviceBroker = sb;
+    _maxUses = maxUses;
+    _maxAge = maxAge;
+    _unwrapCacheSize = unwrapCacheSize;
+    _sendCacheSize = sendCacheSize;
+    _sessionKeys = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+          return size() > _sendCacheSize;
+        }
+      };
+    _unwrapped = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+          return size() > _unwrapCacheSize;
+        }
+      };
+  }
+
+  /**
+   * Returns the session key to use for one message from source to
+   * target, creating and wrapping a new one with
+   * <code>createSecretKey</code> and <code>encryptSecretKey</code> when
+   * there is none or the current one is used up.
+   */
+  public SessionKey getSessionKey(String source, String target,
+                                  X509Certificate targetCert,
+                                  String symmSpec, String asymmSpec)
+    throws GeneralSecurityException {
+    SendKey key = new SendKey(source, target,
+                              CertificateFingerprint.getInstance(targetCert),
+                              symmSpec, asymmSpec);
+    long now = System.currentTimeMillis();
+    synchronized (_sessionKeys) {
+      SessionKey sk = (SessionKey) _sessionKeys.get(key);
+      if (sk != null) {
+        if (sk._uses < _maxUses && now < sk._expires) {
+          sk._uses++;
+          return sk;
+        }
+        _sessionKeys.remove(key);
+      }
+    }
+
+    SecretKey secretKey = _encryptService.createSecretKey(symmSpec);
+    byte[] wrapped = _encryptService.encryptSecretKey(asymmSpec, secretKey,
+                                                      targetCert);
+    SessionKey sk = new SessionKey(secretKey, wrapped, now + _maxAge);
+    synchronized (_sessionKeys) {
+      // keys of pairs that stopped talking, or of a certificate that
+      // was replaced, are never looked up again
+      for (Iterator it = _sessionKeys.values().iterator() ; it.hasNext() ; ) {
+        if (now >= ((SessionKey) it.next())._expires) {
+          it.remove();
+        }
+      }
+      _sessionKeys.put(key, sk);
+    }
+    listenFor(source);
+    listenFor(target);
+    return sk;
+  }
+
+  /**
+   * Unwraps a secret key with <code>decryptSecretKey</code>, or returns
+   * the key already unwrapped from the same bytes.
+   */
+  public SecretKey decryptSecretKey(String publicKeyAlg, byte[] sKeyBytes,
+                                    String secretKeyAlg,
+                                    X509Certificate cert)
+    throws GeneralSecurityException {
+    UnwrapKey key = new UnwrapKey(sKeyBytes, publicKeyAlg, secretKeyAlg,
+                                  CertificateFingerprint.getInstance(cert));
+    long now = System.currentTimeMillis();
+    UnwrapEntry e = lookup(key, now);
+    if (e != null) {
+      return e._secretKey;
+    }
+    return unwrap(key, sKeyBytes, cert, null, now);
+  }
+
+  /**
+   * Unwraps a secret key that the named source vouches for. The first
+   * time a wrapped key is seen, <code>binding.verify()</code> must
+   * succeed, after which the key is remembered as bound to that source;
+   * a key that is bound to another source is rejected.
+   */
+  public SecretKey decryptSecretKey(String publicKeyAlg, byte[] sKeyBytes,
+                                    String secretKeyAlg,
+                                    X509Certificate cert, String source,
+                                    KeyBinding binding)
+    throws GeneralSecurityException {
+    UnwrapKey key = new UnwrapKey(sKeyBytes, publicKeyAlg, secretKeyAlg,
+                                  CertificateFingerprint.getInstance(cert));
+    long now = System.currentTimeMillis();
+    UnwrapEntry e = lookup(key, now);
+    if (e != null && e._source != null) {
+      if (!e._source.equals(source)) {
+        throw new GeneralSecurityException("Session key of " + e._source
+                                           + " used by " + source);
+      }
+      return e._secretKey;
+    }
+    binding.verify();
+    return unwrap(key, sKeyBytes, cert, source, now);
+  }
+
+  private UnwrapEntry lookup(UnwrapKey key, long now) {
+    synchronized (_unwrapped) {
+      UnwrapEntry e = (UnwrapEntry) _unwrapped.get(key);
+      if (e != null && now >= e._expires) {
+        _unwrapped.remove(key);
+        e = null;
+      }
+      return e;
+    }
+  }
+
+  private SecretKey unwrap(UnwrapKey key, byte[] sKeyBytes,
+                           X509Certificate cert, String source, long now)
+    throws GeneralSecurityException {
+    SecretKey secretKey = _encryptService.decryptSecretKey(key._publicKeyAlg,
+                                                           sKeyBytes,
+                                                           key._secretKeyAlg,
+                                                           cert);
+    if (secretKey != null) {
+      String owner = ParsedDN.getInstance(cert.getSubjectDN().getName())
+        .getAttribute("cn");
+      synchronized (_unwrapped) {
+        _unwrapped.put(key, new UnwrapEntry(secretKey, owner, source,
+                                            now + _maxAge));
+      }
+      listenFor(owner);
+      listenFor(source);
+    }
+    return secretKey;
+  }
+
+  /**
+   * Drops all session keys sent from or to the named agent, and all
+   * unwrapped keys that were wrapped for it or bound to it.
+   */
+  public void invalidate(String cname) {
+    if (_log.isDebugEnabled()) {
+      _log.debug("Invalidating session keys of " + cname);
+    }
+    synchronized (_sessionKeys) {
+      for (Iterator it = _sessionKeys.keySet().iterator() ; it.hasNext() ; ) {
+        SendKey key = (SendKey) it.next();
+        if (key._source.equals(cname) || key._target.equals(cname)) {
+          it.remove();
+        }
+      }
+    }
+    synchronized (_unwrapped) {
+      for (Iterator it = _unwrapped.values().iterator() ; it.hasNext() ; ) {
+        UnwrapEntry e = (UnwrapEntry) it.next();
+        if (cname.equalsIgnoreCase(e._owner) || cname.equals(e._source)) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /** Drops all cached keys. */
+  public void clear() {
+    synchronized (_sessionKeys) {
+      _sessionKeys.clear();
+    }
+    synchronized (_unwrapped) {
+      _unwrapped.clear();
+    }
+  }
+
+  private void listenFor(String name) {
+    if (_serviceBroker == null || name == null) {
+      return;
+    }
+    synchronized (_listening) {
+      if (!_listening.add(name)) {
+        return;
+      }
+    }
+    CertValidityService cvs = (CertValidityService)
+      _serviceBroker.getService(this, CertValidityService.class, null);
+    if (cvs == null) {
+      if (_log.isWarnEnabled()) {
+        _log.warn("No CertValidityService; session keys of " + name
+                  + " will not be invalidated");
+      }
+      synchronized (_listening) {
+        _listening.remove(name);
+      }
+      return;
+    }
+    cvs.addInvalidateListener(new InvalidateListener(name));
+    _serviceBroker.releaseService(this, CertValidityService.class, cvs);
+  }
+
+  /** A secret key and its encryption under the target's public key. */
+  public static class SessionKey {
+    private SecretKey _secretKey;
+    private byte[] _wrappedKey;
+    private long _expires;
+    private int _uses = 1;
+    private volatile Object _keyProof;
+
+    SessionKey(SecretKey secretKey, byte[] wrappedKey, long expires) {
+      _secretKey = secretKey;
+      _wrappedKey = wrappedKey;
+      _expires = expires;
+    }
+
+    public SecretKey getSecretKey() {
+      return _secretKey;
+    }
+
+    /** @return the wrapped key; shared, so it must not be modified */
+    public byte[] getWrappedKey() {
+      return _wrappedKey;
+    }
+
+    /**
+     * @return what the sender attached with <code>setKeyProof</code> to
+     * prove that the key comes from it (e.g. a signature over the key
+     * exchange), or null. It is dropped together with the key.
+     */
+    public Object getKeyProof() {
+      return _keyProof;
+    }
+
+    public void setKeyProof(Object proof) {
+      _keyProof = proof;
+    }
+  }
+
+  /** Checks, once per wrapped key, who the key comes from. */
+  public interface KeyBinding {
+    void verify() throws GeneralSecurityException;
+  }
+
+  private static class SendKey {
+    private String _source;
+    private String _target;
+    private CertificateFingerprint _cert;
+    private String _symmSpec;
+    private String _asymmSpec;
+    private int _hash;
+
+    SendKey(String source, String target, CertificateFingerprint cert,
+            String symmSpec, String asymmSpec) {
+      _source = source;
+      _target = target;
+      _cert = cert;
+      _symmSpec = symmSpec;
+      _asymmSpec = asymmSpec;
+      _hash = (((source.hashCode() * 31 + target.hashCode()) * 31
+                + cert.hashCode()) * 31 + symmSpec.hashCode()) * 31
+        + asymmSpec.hashCode();
+    }
+
+    public int hashCode() {
+      return _hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof SendKey)) {
+        return false;
+      }
+      SendKey k = (SendKey) o;
+      return _hash == k._hash && _source.equals(k._source)
+        && _target.equals(k._target) && _cert.equals(k._cert)
+        && _symmSpec.equals(k._symmSpec) && _asymmSpec.equals(k._asymmSpec);
+    }
+  }
+
+  private static class UnwrapKey {
+    private byte[] _wrapped;
+    private String _publicKeyAlg;
+    private String _secretKeyAlg;
+    private CertificateFingerprint _cert;
+    private int _hash;
+
+    UnwrapKey(byte[] wrapped, String publicKeyAlg, String secretKeyAlg,
+              CertificateFingerprint cert) {
+      _wrapped = (byte[]) wrapped.clone();
+      _publicKeyAlg = publicKeyAlg;
+      _secretKeyAlg = secretKeyAlg;
+      _cert = cert;
+      int h = cert.hashCode();
+      for (int i = 0 ; i < _wrapped.length ; i++) {
+        h = 31 * h + _wrapped[i];
+      }
+      _hash = h;
+    }
+
+    public int hashCode() {
+      return _hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof UnwrapKey)) {
+        return false;
+      }
+      UnwrapKey k = (UnwrapKey) o;
+      return _hash == k._hash && Arrays.equals(_wrapped, k._wrapped)
+        && _publicKeyAlg.equals(k._publicKeyAlg)
+        && _secretKeyAlg.equals(k._secretKeyAlg) && _cert.equals(k._cert);
+    }
+  }
+
+  private static class UnwrapEntry {
+    private SecretKey _secretKey;
+    private String _owner;
+    /** the verified sender of the key, or null */
+    private String _source;
+    private long _expires;
+
+    UnwrapEntry(SecretKey secretKey, String owner, String source,
+                long expires) {
+      _secretKey = secretKey;
+      _owner = owner;
+      _source = source;
+      _expires = expires;
+    }
+  }
+
+  private class InvalidateListener implements CertValidityListener {
+    private String _name;
+
+    InvalidateListener(String name) {
+      _name = name;
+    }
+
+    public String getName() {
+      return _name;
+    }
+
+    public void updateCertificate() {
+    }
+
+    public void invalidate(String cname) {
+      SessionKeyCache.this.invalidate(cname);
+    }
+  }
+}
@@ -30,7 +30,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.DigestInputStream;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -46,11 +45,28 @@ public class SignatureInputStream
   public SignatureInputStream(InputStream is, String algorithm, 
                               PublicKey pubKey) 
     throws NoSuchAlgorithmException, InvalidKeyException {
-    super(is, MessageDigest.getInstance("SHA"));
-    _signature = Signature.getInstance(algorithm);
+    super(is, CryptoPrimitives.getMessageDigest("SHA"));
+    _signature = CryptoPrimitives.getVerifier(algorithm);
     _signature.initVerify(pubKey);
   }
 
+  /**
+   * Closes the stream and returns the digest and signature engines to
+   * <code>CryptoPrimitives</code>.
+   */
+  public void close() throws IOException {
+    try {
+      super.close();
+    }
+    finally {
+      if (_signature != null) {
+        CryptoPrimitives.release(getMessageDigest());
+        CryptoPrimitives.releaseVerifier(_signature);
+        _signature = null;
+      }
+    }
+  }
+
   public void verifySignature()
     throws IOException, SignatureException {
 
@@ -30,7 +30,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.security.DigestOutputStream;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Signature;
@@ -46,11 +45,28 @@ public class SignatureOutputStream
   public SignatureOutputStream(OutputStream os, String algorithm, 
                                PrivateKey signKey) 
     throws NoSuchAlgorithmException, InvalidKeyException {
-    super(os, MessageDigest.getInstance("SHA"));
-    _signature = Signature.getInstance(algorithm);
+    super(os, CryptoPrimitives.getMessageDigest("SHA"));
+    _signature = CryptoPrimitives.getSignature(algorithm);
     _signature.initSign(signKey);
   }
 
+  /**
+   * Closes the stream and returns the digest and signature engines to
+   * <code>CryptoPrimitives</code>.
+   */
+  public void close() throws IOException {
+    try {
+      super.close();
+    }
+    finally {
+      if (_signature != null) {
+        CryptoPrimitives.release(getMessageDigest());
+        CryptoPrimitives.release(_signature);
+        _signature = null;
+      }
+    }
+  }
+
   public byte[] writeSignature() throws IOException {
     try {
       byte[] digest = getMessageDigest().digest();
@@ -0,0 +1,223 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.DSAPublicKey;
+import java.security.interfaces.RSAPublicKey;
+
+/**
+ * Channel counterpart of <code>SignatureInputStream</code>. Every byte
+ * read is digested with SHA; once the caller has read the signed data,
+ * <code>verifySignature</code> reads the length-prefixed signature
+ * trailer and checks it. As with the stream, the caller must not read
+ * past the signed data. The channel should be in blocking mode.
+ */
+public class SignatureReadableByteChannel
+  implements ReadableByteChannel, SignedDigestInputStream
+{
+  private ReadableByteChannel _channel;
+  private MessageDigest _digest;
+  private Signature _signature;
+
+  public SignatureReadableByteChannel(ReadableByteChannel channel,
+                                      String algorithm,
+                                      PublicKey pubKey)
+    throws NoSuchAlgorithmException, InvalidKeyException {
+    _channel = channel;
+    _digest = CryptoPrimitives.getMessageDigest("SHA");
+    _signature = CryptoPrimitives.getVerifier(algorithm);
+    _signature.initVerify(pubKey);
+  }
+
+  public int read(ByteBuffer dst) throws IOException {
+    int start = dst.position();
+    int n = _channel.read(dst);
+    if (n > 0) {
+      ByteBuffer read = dst.duplicate();
+      read.position(start);
+      read.limit(start + n);
+      CryptoPrimitives.update(_digest, read);
+    }
+    return n;
+  }
+
+  public void verifySignature()
+    throws IOException, SignatureException {
+    _signature.update(_digest.digest());
+
+    ByteBuffer len = ByteBuffer.allocate(2);
+    if (!readFully(_channel, len)) {
+      throw new SignatureException("No signature available");
+    }
+    len.flip();
+    ByteBuffer sig = ByteBuffer.allocate(len.getShort() & 0xFFFF);
+    if (!readFully(_channel, sig)) {
+      throw new SignatureException("No signature available");
+    }
+    if (!_signature.verify(sig.array())) {
+      throw new SignatureException("Signature verification failed");
+    }
+  }
+
+  public boolean isOpen() {
+    return _channel.isOpen();
+  }
+
+  /**
+   * Closes the channel and returns the digest and signature engines to
+   * <code>CryptoPrimitives</code>.
+   */
+  public void close() throws IOException {
+    try {
+      _channel.close();
+    }
+    finally {
+      if (_signature != null) {
+        CryptoPrimitives.release(_digest);
+        CryptoPrimitives.releaseVerifier(_signature);
+        _signature = null;
+      }
+    }
+  }
+
+  /**
+   * Verifies a file ending with a signature trailer, as written by
+   * <code>SignatureOutputStream</code> or
+   * <code>SignatureWritableByteChannel.signFile</code>. The signed
+   * contents are digested through memory mapped segments.
+   * <p>
+   * The trailer is located from the end of the file: a length L is a
+   * candidate if the two bytes L + 2 from the end encode L and a
+   * signature of that length is possible for the key. An RSA signature
+   * is exactly as long as the modulus, so there is one candidate; a DSA
+   * signature is bounded by the size of q. The file is digested once up
+   * to the shortest candidate content, and only the remaining bytes are
+   * digested again for each candidate.
+   *
+   * @return the length of the signed contents
+   * @throws InvalidKeyException if the key is not an RSA or DSA key,
+   * as the signature length cannot be bounded for other keys
+   * @throws SignatureException if no trailer verifies
+   */
+  public static long verifyFile(File file, String algorithm,
+                                PublicKey pubKey)
+    throws IOException, NoSuchAlgorithmException, InvalidKeyException,
+    SignatureException {
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      FileChannel fc = fis.getChannel();
+      long size = fc.size();
+      int minLength = 1;
+      int maxLength;
+      if (pubKey instanceof RSAPublicKey) {
+        minLength = (((RSAPublicKey) pubKey).getModulus().bitLength() + 7) / 8;
+        maxLength = minLength;
+      }
+      else if (pubKey instanceof DSAPublicKey) {
+        // DER SEQUENCE of two INTEGERs no longer than q plus a sign byte
+        int q = (((DSAPublicKey) pubKey).getParams().getQ().bitLength() + 7) / 8;
+        maxLength = 2 * (q + 1) + 6;
+      }
+      else {
+        throw new InvalidKeyException("Unsupported key type for "
+                                      + "signed files: "
+                                      + pubKey.getAlgorithm());
+      }
+      int max = (int) Math.min(maxLength + 2, size);
+      ByteBuffer tail = ByteBuffer.allocate(max);
+      fc.position(size - max);
+      if (!readFully(fc, tail)) {
+        throw new EOFException("File truncated: " + file);
+      }
+      byte[] t = tail.array();
+
+      // contents up to size - max are common to every candidate
+      MessageDigest prefix =
+        SignatureWritableByteChannel.digest(fc, 0, size - max);
+      Signature signature = CryptoPrimitives.getVerifier(algorithm);
+      try {
+        signature.initVerify(pubKey);
+        for (int l = minLength ; l + 2 <= max ; l++) {
+          int at = max - l - 2;
+          int encoded = ((t[at] & 0xFF) << 8) | (t[at + 1] & 0xFF);
+          if (encoded != l) {
+            continue;
+          }
+          MessageDigest md = (MessageDigest) prefix.clone();
+          md.update(t, 0, at);
+          signature.update(md.digest());
+          byte[] sig = new byte[l];
+          System.arraycopy(t, at + 2, sig, 0, l);
+          try {
+            if (signature.verify(sig)) {
+              return size - l - 2;
+            }
+          }
+          catch (SignatureException e) {
+            // not a signature of this length; try the next candidate
+          }
+        }
+      }
+      catch (CloneNotSupportedException e) {
+        throw new NoSuchAlgorithmException("SHA digest cannot be cloned");
+      }
+      finally {
+        CryptoPrimitives.releaseVerifier(signature);
+        CryptoPrimitives.release(prefix);
+      }
+      throw new SignatureException("Signature verification failed: " + file);
+    }
+    finally {
+      fis.close();
+    }
+  }
+
+  /** @return false if the channel ended before the buffer was full */
+  private static boolean readFully(ReadableByteChannel channel,
+                                   ByteBuffer buf)
+    throws IOException {
+    while (buf.hasRemaining()) {
+      if (channel.read(buf) == -1) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,376 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.security.cert.X509Certificate;
+import java.util.Map;
+
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
+
+/**
+ * The state behind <code>EncryptionService.sendNeedsSignature</code>,
+ * <code>receiveNeedsSignature</code>,
+ * <code>getReceiveSignatureValid</code> and the methods that set them,
+ * for use by implementations of that service. Each of the three is kept
+ * separately.
+ * <p>
+ * Agent names are mapped once to small integer ids, and the state of a
+ * source/target pair is kept under a single long packing both ids.
+ * Lookups never lock: they read an immutable open-addressing table
+ * that updates replace as a whole. Updates only happen when SSL
+ * connections are set up or certificates change, so copying the table
+ * is cheaper than making every message synchronize.
+ * <p>
+ * An entry created with a certificate expires with that certificate.
+ * <p>
+ * Lookups are counted in striped counters, so that threads counting at
+ * the same time seldom write the same one.
+ */
+public class SignatureRequirementTable
+{
+  /** value of an entry that does not expire */
+  private static final long NO_EXPIRY = Long.MAX_VALUE;
+
+  /** agent name to Integer id; ids start at 1 so no key is 0 */
+  private Map _ids = new ConcurrentReaderHashMap();
+  private int _nextId = 1;
+
+  /** source/target pairs that do not need a signature */
+  private volatile LongTable _sendUnsigned = LongTable.EMPTY;
+  /** sources whose messages arrive over SSL with a valid certificate */
+  private volatile LongTable _receiveValid = LongTable.EMPTY;
+  /** sources whose messages need not be signed */
+  private volatile LongTable _receiveUnsigned = LongTable.EMPTY;
+
+  private final StripedCounter _lookups = new StripedCounter();
+  private final StripedCounter _hits = new StripedCounter();
+
+  /**
+   * Returns whether a message from source to target must be signed.
+   * This is true unless <code>removeSendNeedsSignature</code> was
+   * called for the pair and its certificate has not expired.
+   */
+  public boolean sendNeedsSignature(String source, String target) {
+    int s = getId(source);
+    int t = getId(target);
+    boolean unsigned =
+      (s != 0 && t != 0 && isValid(_sendUnsigned.get(pack(s, t))));
+    count(unsigned);
+    return !unsigned;
+  }
+
+  /** Messages from source to target must be signed again. */
+  public void setSendNeedsSignature(String source, String target) {
+    int s = getId(source);
+    int t = getId(target);
+    if (s != 0 && t != 0) {
+      synchronized (this) {
+        _sendUnsigned = _sendUnsigned.remove(pack(s, t));
+      }
+    }
+  }
+
+  /**
+   * Messages from source to target need not be signed until the target
+   * certificate expires.
+   *
+   * @param targetCert the certificate the SSL connection was made with;
+   * may be null, in which case the entry does not expire.
+   */
+  public void removeSendNeedsSignature(String source, String target,
+                                       X509Certificate targetCert) {
+    long key = pack(intern(source), intern(target));
+    long expiry = getExpiry(targetCert);
+    synchronized (this) {
+      _sendUnsigned = _sendUnsigned.put(key, expiry);
+    }
+  }
+
+  /**
+   * Returns whether a message received from source over SSL must be
+   * signed. This is true unless <code>removeReceiveNeedsSignature</code>
+   * was called for the source and its certificate has not expired.
+   */
+  public boolean receiveNeedsSignature(String source) {
+    int s = getId(source);
+    boolean unsigned = (s != 0 && isValid(_receiveUnsigned.get(s)));
+    count(unsigned);
+    return !unsigned;
+  }
+
+  /** Messages received from source must be signed again. */
+  public void setReceiveNeedsSignature(String source) {
+    int s = getId(source);
+    if (s != 0) {
+      synchronized (this) {
+        _receiveUnsigned = _receiveUnsigned.remove(s);
+      }
+    }
+  }
+
+  /**
+   * Messages received from source need not be signed until its
+   * certificate expires.
+   *
+   * @param cert may be null, in which case the entry does not expire.
+   */
+  public void removeReceiveNeedsSignature(String source, X509Certificate cert) {
+    long key = intern(source);
+    long expiry = getExpiry(cert);
+    synchronized (this) {
+      _receiveUnsigned = _receiveUnsigned.put(key, expiry);
+    }
+  }
+
+  /**
+   * Returns whether the SSL connection from source was made with a
+   * certificate that has not expired.
+   */
+  public boolean getReceiveSignatureValid(String source) {
+    int s = getId(source);
+    boolean valid = (s != 0 && isValid(_receiveValid.get(s)));
+    count(valid);
+    return valid;
+  }
+
+  /**
+   * Records that messages from source arrive over SSL with the given
+   * certificate, until the certificate expires.
+   *
+   * @param cert may be null, in which case the entry does not expire.
+   */
+  public void setReceiveSignatureValid(String source, X509Certificate cert) {
+    long key = intern(source);
+    long expiry = getExpiry(cert);
+    synchronized (this) {
+      _receiveValid = _receiveValid.put(key, expiry);
+    }
+  }
+
+  /**
+   * Forgets that messages from source arrive over SSL with a valid
+   * certificate, e.g. when the connection is closed.
+   */
+  public void removeReceiveSignatureValid(String source) {
+    int s = getId(source);
+    if (s != 0) {
+      synchronized (this) {
+        _receiveValid = _receiveValid.remove(s);
+      }
+    }
+  }
+
+  /**
+   * Drops every entry involving the given agent, e.g. when its
+   * certificate is revoked.
+   */
+  public void invalidate(String name) {
+    int id = getId(name);
+    if (id != 0) {
+      synchronized (this) {
+        _sendUnsigned = _sendUnsigned.removeAgent(id);
+        _receiveValid = _receiveValid.remove(id);
+        _receiveUnsigned = _receiveUnsigned.remove(id);
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    _sendUnsigned = LongTable.EMPTY;
+    _receiveValid = LongTable.EMPTY;
+    _receiveUnsigned = LongTable.EMPTY;
+  }
+
+  /** Number of lookups since the last <code>resetStatistics</code> */
+  public long getLookups() {
+    return _lookups.get();
+  }
+
+  /**
+   * Lookups that found a signature was not needed, or a valid SSL
+   * certificate (the SSL fast path), since the last
+   * <code>resetStatistics</code>.
+   */
+  public long getHits() {
+    return _hits.get();
+  }
+
+  /** The fraction of lookups that took the fast path, or 0 */
+  public double getHitRate() {
+    long lookups = _lookups.get();
+    return (lookups == 0) ? 0 : ((double) _hits.get()) / lookups;
+  }
+
+  public void resetStatistics() {
+    _lookups.reset();
+    _hits.reset();
+  }
+
+  public String toString() {
+    return "SignatureRequirementTable[unsignedPairs=" + _sendUnsigned.size() +
+      ", validSources=" + _receiveValid.size() + ", unsignedSources=" +
+      _receiveUnsigned.size() + ", lookups=" + getLookups() +
+      ", hitRate=" + getHitRate() + "]";
+  }
+
+  private void count(boolean hit) {
+    _lookups.increment();
+    if (hit) {
+      _hits.increment();
+    }
+  }
+
+  /** @return the id of an agent, or 0 if it has none yet */
+  private int getId(String name) {
+    Integer id = (Integer) _ids.get(name);
+    return (id == null) ? 0 : id.intValue();
+  }
+
+  private int intern(String name) {
+    Integer id = (Integer) _ids.get(name);
+    if (id == null) {
+      synchronized (_ids) {
+        id = (Integer) _ids.get(name);
+        if (id == null) {
+          id = new Integer(_nextId++);
+          _ids.put(name, id);
+        }
+      }
+    }
+    return id.intValue();
+  }
+
+  private static long pack(int source, int target) {
+    return (((long) source) << 32) | (target & 0xFFFFFFFFL);
+  }
+
+  private static long getExpiry(X509Certificate cert) {
+    return (cert == null) ? NO_EXPIRY : cert.getNotAfter().getTime();
+  }
+
+  private static boolean isValid(long expiry) {
+    return expiry == NO_EXPIRY ||
+      (expiry >= 0 && expiry > System.currentTimeMillis());
+  }
+
+  /**
+   * An immutable open-addressing map from non-zero long keys to
+   * non-negative long values.
+   */
+  private static final class LongTable
+  {
+    static final LongTable EMPTY = new LongTable(new long[8], new long[8], 0);
+
+    private final long[] _keys;
+    private final long[] _values;
+    /** only changes while the table is built, before it is shared */
+    private int _size;
+
+    private LongTable(long[] keys, long[] values, int size) {
+      _keys = keys;
+      _values = values;
+      _size = size;
+    }
+
+    int size() {
+      return _size;
+    }
+
+    /** @return the value of the key, or -1 */
+    long get(long key) {
+      int mask = _keys.length - 1;
+      for (int i = index(key, mask) ; ; i = (i + 1) & mask) {
+        long k = _keys[i];
+        if (k == key) {
+          return _values[i];
+        }
+        if (k == 0) {
+          return -1;
+        }
+      }
+    }
+
+    LongTable put(long key, long value) {
+      int capacity = _keys.length;
+      // keep the load factor at or below one half
+      while ((_size + 1) * 2 > capacity) {
+        capacity *= 2;
+      }
+      LongTable t = new LongTable(new long[capacity], new long[capacity],
+                                  0);
+      for (int i = 0 ; i < _keys.length ; i++) {
+        if (_keys[i] != 0 && _keys[i] != key) {
+          t.insert(_keys[i], _values[i]);
+        }
+      }
+      t.insert(key, value);
+      return t;
+    }
+
+    LongTable remove(long key) {
+      if (get(key) == -1) {
+        return this;
+      }
+      return copyWithout(key, 0);
+    }
+
+    /** removes every pair whose source or target is the given id */
+    LongTable removeAgent(int id) {
+      return copyWithout(0, id);
+    }
+
+    private LongTable copyWithout(long key, int id) {
+      LongTable t = new LongTable(new long[_keys.length],
+                                  new long[_keys.length], 0);
+      for (int i = 0 ; i < _keys.length ; i++) {
+        long k = _keys[i];
+        if (k != 0 && k != key
+            && (id == 0 || ((int) (k >>> 32) != id && (int) k != id))) {
+          t.insert(k, _values[i]);
+        }
+      }
+      return t;
+    }
+
+    /** only used while building a new table */
+    private void insert(long key, long value) {
+      int mask = _keys.length - 1;
+      int i = index(key, mask);
+      while (_keys[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      _keys[i] = key;
+      _values[i] = value;
+      _size++;
+    }
+
+    private static int index(long key, int mask) {
+      long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h >>> 32) & mask;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Channel counterpart of <code>SignatureOutputStream</code>: the data
+ * written is digested with SHA and <code>writeSignature</code> appends
+ * the 2-byte length and the signature of the digest. The output can be
+ * read by either <code>SignatureInputStream</code> or
+ * <code>SignatureReadableByteChannel</code>.
+ */
+public class SignatureWritableByteChannel
+  implements WritableByteChannel, SignedDigestOutputStream
+{
+  /** Files are mapped and digested this many bytes at a time. */
+  static final long MAP_SEGMENT = 64L * 1024 * 1024;
+
+  private WritableByteChannel _channel;
+  private MessageDigest _digest;
+  private Signature _signature;
+
+  public SignatureWritableByteChannel(WritableByteChannel channel,
+                                      String algorithm,
+                                      PrivateKey signKey)
+    throws NoSuchAlgorithmException, InvalidKeyException {
+    _channel = channel;
+    _digest = CryptoPrimitives.getMessageDigest("SHA");
+    _signature = CryptoPrimitives.getSignature(algorithm);
+    _signature.initSign(signKey);
+  }
+
+  /**
+   * Writes to the underlying channel and digests the bytes it accepted.
+   */
+  public int write(ByteBuffer src) throws IOException {
+    int start = src.position();
+    int n = _channel.write(src);
+    if (n > 0) {
+      ByteBuffer written = src.duplicate();
+      written.position(start);
+      written.limit(start + n);
+      CryptoPrimitives.update(_digest, written);
+    }
+    return n;
+  }
+
+  public byte[] writeSignature() throws IOException {
+    try {
+      _signature.update(_digest.digest());
+      byte[] sig = _signature.sign();
+      writeFully(_channel, trailer(sig));
+      return sig;
+    } catch (SignatureException e) {
+      throw new IOException("Failed to get signature: " + e.toString());
+    }
+  }
+
+  public boolean isOpen() {
+    return _channel.isOpen();
+  }
+
+  /**
+   * Closes the channel and returns the digest and signature engines to
+   * <code>CryptoPrimitives</code>.
+   */
+  public void close() throws IOException {
+    try {
+      _channel.close();
+    }
+    finally {
+      if (_signature != null) {
+        CryptoPrimitives.release(_digest);
+        CryptoPrimitives.release(_signature);
+        _signature = null;
+      }
+    }
+  }
+
+  /**
+   * Signs a file in place: its contents are digested through memory
+   * mapped segments, and the signature trailer is appended, so the
+   * file reads as if it had been written through a
+   * <code>SignatureOutputStream</code>.
+   *
+   * @return the signature
+   */
+  public static byte[] signFile(File file, String algorithm,
+                                PrivateKey signKey)
+    throws IOException, NoSuchAlgorithmException, InvalidKeyException,
+    SignatureException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel fc = raf.getChannel();
+      long size = fc.size();
+      byte[] digest = digest(fc, size);
+      Signature signature = CryptoPrimitives.getSignature(algorithm);
+      try {
+        signature.initSign(signKey);
+        signature.update(digest);
+        byte[] sig = signature.sign();
+        fc.position(size);
+        writeFully(fc, trailer(sig));
+        fc.force(false);
+        return sig;
+      }
+      finally {
+        CryptoPrimitives.release(signature);
+      }
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /** @return the SHA digest of the first size bytes of a file */
+  static byte[] digest(FileChannel fc, long size)
+    throws IOException, NoSuchAlgorithmException {
+    MessageDigest md = digest(fc, 0, size);
+    try {
+      return md.digest();
+    }
+    finally {
+      CryptoPrimitives.release(md);
+    }
+  }
+
+  /**
+   * @return a SHA digest, from <code>CryptoPrimitives</code>, updated
+   * with the bytes of a file from <code>from</code> to <code>to</code>
+   */
+  static MessageDigest digest(FileChannel fc, long from, long to)
+    throws IOException, NoSuchAlgorithmException {
+    MessageDigest md = CryptoPrimitives.getMessageDigest("SHA");
+    try {
+      for (long pos = from ; pos < to ; pos += MAP_SEGMENT) {
+        long len = Math.min(MAP_SEGMENT, to - pos);
+        MappedByteBuffer map = fc.map(FileChannel.MapMode.READ_ONLY, pos, len);
+        CryptoPrimitives.update(md, map);
+      }
+      return md;
+    }
+    catch (IOException e) {
+      CryptoPrimitives.release(md);
+      throw e;
+    }
+  }
+
+  private static ByteBuffer trailer(byte[] sig) {
+    ByteBuffer buf = ByteBuffer.allocate(2 + sig.length);
+    buf.putShort((short) sig.length);
+    buf.put(sig);
+    buf.flip();
+    return buf;
+  }
+
+  private static void writeFully(WritableByteChannel channel, ByteBuffer buf)
+    throws IOException {
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+  }
+}
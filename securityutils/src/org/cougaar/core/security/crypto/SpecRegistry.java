@@ -0,0 +1,125 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact codes for the algorithm specs carried in every message.
+ * <p>
+ * A spec is written as one byte: 0 for null, the 1-based position of
+ * the spec in <code>SPECS</code>, or <code>STRING</code> followed by
+ * the spec itself for specs that are not listed. Both ends of a
+ * connection must agree on the table, so entries may only ever be
+ * appended, never removed or reordered.
+ */
+public final class SpecRegistry
+{
+  private static final int NULL = 0;
+  private static final int STRING = 0xFF;
+
+  /** Registered specs; the code of a spec is its index plus one. */
+  private static final String[] SPECS = {
+    // symmetric
+    "DES", "DESede", "AES", "Blowfish", "RC4", "RC2",
+    "DES/CBC/PKCS5Padding", "DESede/CBC/PKCS5Padding",
+    "AES/CBC/PKCS5Padding", "Blowfish/CBC/PKCS5Padding",
+    "DES/ECB/PKCS5Padding", "DESede/ECB/PKCS5Padding",
+    "AES/ECB/PKCS5Padding",
+    "AES#128", "AES#192", "AES#256",
+    "AES#128/CBC/PKCS5Padding", "AES#192/CBC/PKCS5Padding",
+    "AES#256/CBC/PKCS5Padding",
+    // asymmetric
+    "RSA", "RSA/ECB/PKCS1Padding", "RSA/ECB/OAEPPadding",
+    // signature
+    "SHA1withRSA", "MD5withRSA", "MD2withRSA", "SHA1withDSA",
+    "SHA256withRSA", "SHA384withRSA", "SHA512withRSA",
+    // authenticated encryption
+    "AES/GCM/NoPadding", "AES#128/GCM/NoPadding", "AES#256/GCM/NoPadding",
+  };
+
+  private static final Map CODES = new HashMap();
+
+  static {
+    for (int i = 0 ; i < SPECS.length ; i++) {
+      CODES.put(SPECS[i], new Integer(i + 1));
+    }
+  }
+
+  private SpecRegistry() {
+  }
+
+  /** @return the code of a spec, or 0 if it is not registered */
+  public static int getCode(String spec) {
+    Integer code = (Integer) CODES.get(spec);
+    return (code == null) ? 0 : code.intValue();
+  }
+
+  /** @return the spec registered under a code, or null */
+  public static String getSpec(int code) {
+    return (code > 0 && code <= SPECS.length) ? SPECS[code - 1] : null;
+  }
+
+  public static void writeSpec(DataOutput out, String spec)
+    throws IOException {
+    if (spec == null) {
+      out.writeByte(NULL);
+      return;
+    }
+    int code = getCode(spec);
+    if (code != 0) {
+      out.writeByte(code);
+    }
+    else {
+      out.writeByte(STRING);
+      out.writeUTF(spec);
+    }
+  }
+
+  /**
+   * @return the spec; registered specs are returned as the shared
+   * instance from the table.
+   */
+  public static String readSpec(DataInput in) throws IOException {
+    int code = in.readUnsignedByte();
+    if (code == NULL) {
+      return null;
+    }
+    if (code == STRING) {
+      return in.readUTF();
+    }
+    String spec = getSpec(code);
+    if (spec == null) {
+      throw new IOException("Unknown algorithm spec code: " + code);
+    }
+    return spec;
+  }
+}
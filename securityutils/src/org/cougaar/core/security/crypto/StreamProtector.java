@@ -0,0 +1,482 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.cougaar.core.mts.MessageAddress;
+import org.cougaar.core.security.services.crypto.EncryptionService;
+import org.cougaar.core.security.services.crypto.KeyRingService;
+
+/**
+ * Protects a stream of data instead of a single serialized object, so
+ * large payloads never have to be held in memory.
+ * <p>
+ * <code>protectStream</code> writes a small clear-text header with the
+ * <code>SecureMethodParam</code>, the wrapped secret key and the
+ * certificates used, and returns a stream that signs with a
+ * <code>MerkleSignatureOutputStream</code> and encrypts with a
+ * <code>CipherOutputStream</code>, as the policy requires. Wrap it in
+ * an <code>ObjectOutputStream</code> to protect objects. Closing it
+ * writes the signature, finishes the cipher and closes the underlying
+ * stream.
+ * <p>
+ * <code>unprotectStream</code> reads the header and returns a stream
+ * that decrypts and verifies as it goes. Memory use on both sides is
+ * bounded by the chunk window of the Merkle streams.
+ * <p>
+ * The header is also written as the first bytes of the signed data, so
+ * when the stream is signed, any change to it (for instance to the
+ * secure method) fails the verification of the first window, before
+ * any data is returned. The receiver must give the policy it expects,
+ * and a stream using a weaker method is rejected.
+ * <p>
+ * Data is returned one verified window at a time, but whether the
+ * stream was truncated at a window boundary is only known once the end
+ * of the data is reached: the final signature is then checked, and an
+ * <code>IOException</code> is thrown if it is not valid. Callers must
+ * read to the end before acting on the data. A stream that is only
+ * encrypted has no integrity protection at all.
+ */
+public class StreamProtector
+{
+  private static final int MAGIC = 0x43505331; // "CPS1"
+  private static final int VERSION = 3;
+
+  private EncryptionService _encryptService;
+  private KeyRingService _keyRing;
+  private SessionKeyCache _sessionKeys;
+
+  /**
+   * @param sessionKeys used to obtain and unwrap secret keys; may be
+   * null, in which case each stream gets a fresh key.
+   */
+  public StreamProtector(EncryptionService encryptService,
+                         KeyRingService keyRing,
+                         SessionKeyCache sessionKeys) {
+    _encryptService = encryptService;
+    _keyRing = keyRing;
+    _sessionKeys = sessionKeys;
+  }
+
+  public OutputStream protectStream(OutputStream out, MessageAddress source,
+                                    MessageAddress target,
+                                    SecureMethodParam policy)
+    throws GeneralSecurityException, IOException {
+    int method = policy.secureMethod;
+    boolean sign = (method == SecureMethodParam.SIGN
+                    || method == SecureMethodParam.SIGNENCRYPT);
+    boolean encrypt = (method == SecureMethodParam.ENCRYPT
+                       || method == SecureMethodParam.SIGNENCRYPT);
+    if (!sign && !encrypt && method != SecureMethodParam.PLAIN) {
+      throw new GeneralSecurityException("Unsupported secure method: "
+                                         + policy);
+    }
+
+    PrivateKey signKey = null;
+    CertificateFingerprint signerCert = null;
+    if (sign) {
+      List keys = _keyRing.findPrivateKey(source.toAddress());
+      if (keys == null || keys.isEmpty()) {
+        throw new GeneralSecurityException("No private key for "
+                                           + source.toAddress());
+      }
+      PrivateKeyCert pkc = (PrivateKeyCert) keys.get(0);
+      signKey = pkc.getPrivateKey();
+      signerCert = CertificateFingerprint.getInstance(
+        pkc.getCertificateStatus().getCertificate());
+    }
+
+    SecretKey secretKey = null;
+    byte[] wrappedKey = null;
+    CertificateFingerprint targetCert = null;
+    if (encrypt) {
+      X509Certificate cert =
+        BatchProtector.findCertificate(_keyRing, target.toAddress(), null);
+      targetCert = CertificateFingerprint.getInstance(cert);
+      if (_sessionKeys != null) {
+        SessionKeyCache.SessionKey sk =
+          _sessionKeys.getSessionKey(source.toAddress(), target.toAddress(),
+                                     cert, policy.symmSpec, policy.asymmSpec);
+        secretKey = sk.getSecretKey();
+        wrappedKey = sk.getWrappedKey();
+      }
+      else {
+        secretKey = _encryptService.createSecretKey(policy.symmSpec);
+        wrappedKey = _encryptService.encryptSecretKey(policy.asymmSpec,
+                                                      secretKey, cert);
+      }
+    }
+
+    Cipher cipher = null;
+    boolean ok = false;
+    try {
+      if (encrypt) {
+        cipher = _encryptService.getCipher(policy.symmSpec);
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+      }
+
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+      DataOutputStream header = new DataOutputStream(bos);
+      policy.writeTo(header);
+      writeFingerprint(header, signerCert);
+      writeFingerprint(header, targetCert);
+      writeBytes(header, wrappedKey);
+      writeBytes(header, (cipher == null) ? null : cipher.getIV());
+      header.flush();
+      byte[] headerBytes = bos.toByteArray();
+
+      DataOutputStream dos = new DataOutputStream(out);
+      dos.writeInt(MAGIC);
+      dos.writeByte(VERSION);
+      writeBytes(dos, headerBytes);
+      dos.flush();
+
+      OutputStream encrypted = out;
+      if (encrypt) {
+        encrypted = new CipherOutputStream(out, cipher);
+      }
+      MerkleSignatureOutputStream signer = null;
+      if (sign) {
+        signer = new MerkleSignatureOutputStream(encrypted, policy.signSpec,
+                                                 signKey);
+        // sign the clear-text header along with the data
+        signer.write(headerBytes);
+      }
+      ok = true;
+      return new ProtectedOutputStream((signer == null) ? encrypted : signer,
+                                       signer, policy.symmSpec, cipher);
+    }
+    finally {
+      if (!ok && cipher != null) {
+        // the caller never sees the stream, so nothing else returns it
+        _encryptService.returnCipher(policy.symmSpec, cipher);
+      }
+    }
+  }
+
+  /**
+   * @param policy the policy expected for this source and target. The
+   * stream is rejected if its method does not sign or encrypt where
+   * this policy does, or if it uses other specs for those operations.
+   */
+  public InputStream unprotectStream(InputStream in, MessageAddress source,
+                                     MessageAddress target,
+                                     SecureMethodParam policy)
+    throws GeneralSecurityException, IOException {
+    if (policy == null) {
+      throw new GeneralSecurityException("No expected policy for "
+                                         + source + " to " + target);
+    }
+    DataInputStream dis = new DataInputStream(in);
+    if (dis.readInt() != MAGIC) {
+      throw new IOException("Not a protected stream");
+    }
+    int version = dis.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported protected stream version: "
+                            + version);
+    }
+    byte[] headerBytes = readBytes(dis);
+    if (headerBytes == null) {
+      throw new IOException("No protected stream header");
+    }
+    DataInputStream header =
+      new DataInputStream(new ByteArrayInputStream(headerBytes));
+    SecureMethodParam smp = new SecureMethodParam();
+    smp.readFrom(header);
+    CertificateFingerprint signerCert = readFingerprint(header);
+    CertificateFingerprint targetCert = readFingerprint(header);
+    byte[] wrappedKey = readBytes(header);
+    byte[] iv = readBytes(header);
+
+    int method = smp.secureMethod;
+    boolean sign = (method == SecureMethodParam.SIGN
+                    || method == SecureMethodParam.SIGNENCRYPT);
+    boolean encrypt = (method == SecureMethodParam.ENCRYPT
+                       || method == SecureMethodParam.SIGNENCRYPT);
+    if (!sign && !encrypt && method != SecureMethodParam.PLAIN) {
+      throw new GeneralSecurityException("Unsupported secure method: " + smp);
+    }
+    int expected = policy.secureMethod;
+    boolean mustSign = (expected == SecureMethodParam.SIGN
+                        || expected == SecureMethodParam.SIGNENCRYPT);
+    boolean mustEncrypt = (expected == SecureMethodParam.ENCRYPT
+                           || expected == SecureMethodParam.SIGNENCRYPT);
+    if ((mustSign && (!sign || !sameSpec(policy.signSpec, smp.signSpec)))
+        || (mustEncrypt && (!encrypt
+                            || !sameSpec(policy.symmSpec, smp.symmSpec)
+                            || !sameSpec(policy.asymmSpec, smp.asymmSpec)))) {
+      throw new GeneralSecurityException("Stream policy " + smp
+                                         + " is weaker than " + policy);
+    }
+
+    InputStream decrypted = in;
+    SecretKey secretKey = null;
+    if (encrypt) {
+      if (wrappedKey == null) {
+        throw new GeneralSecurityException("No key in protected stream");
+      }
+      X509Certificate cert = BatchProtector.findCertificate(
+        _keyRing, target.toAddress(), targetCert);
+      String keyAlg = BatchProtector.getKeyAlgorithm(smp.symmSpec);
+      secretKey = (_sessionKeys != null)
+        ? _sessionKeys.decryptSecretKey(smp.asymmSpec, wrappedKey, keyAlg,
+                                        cert)
+        : _encryptService.decryptSecretKey(smp.asymmSpec, wrappedKey,
+                                           keyAlg, cert);
+      if (secretKey == null) {
+        throw new GeneralSecurityException("Unable to unwrap key for "
+                                           + target.toAddress());
+      }
+    }
+    Cipher cipher = null;
+    MerkleSignatureInputStream verifier = null;
+    boolean ok = false;
+    try {
+      if (encrypt) {
+        cipher = _encryptService.getCipher(smp.symmSpec);
+        if (iv == null) {
+          cipher.init(Cipher.DECRYPT_MODE, secretKey);
+        }
+        else {
+          cipher.init(Cipher.DECRYPT_MODE, secretKey,
+                      new IvParameterSpec(iv));
+        }
+        decrypted = new CipherInputStream(in, cipher);
+      }
+      if (sign) {
+        X509Certificate cert = BatchProtector.findCertificate(
+          _keyRing, source.toAddress(), signerCert);
+        verifier = new MerkleSignatureInputStream(decrypted, smp.signSpec,
+                                                  cert.getPublicKey());
+        // reading the signed copy verifies the first window
+        byte[] signedHeader = new byte[headerBytes.length];
+        new DataInputStream(verifier).readFully(signedHeader);
+        if (!MessageDigest.isEqual(signedHeader, headerBytes)) {
+          throw new GeneralSecurityException(
+            "Protected stream header was modified");
+        }
+      }
+      ok = true;
+    }
+    finally {
+      if (!ok) {
+        // the caller never sees the stream, so nothing else returns these
+        if (verifier != null) {
+          verifier.release();
+        }
+        if (cipher != null) {
+          _encryptService.returnCipher(smp.symmSpec, cipher);
+        }
+      }
+    }
+    return new ProtectedInputStream((verifier == null) ? decrypted : verifier,
+                                    verifier, smp.symmSpec, cipher);
+  }
+
+  /** @return true if the expected spec is unset or equal to the actual */
+  private static boolean sameSpec(String expected, String actual) {
+    return expected == null || expected.equals(actual);
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+    throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] b)
+    throws IOException {
+    if (b == null) {
+      out.writeShort(0xFFFF);
+    }
+    else {
+      out.writeShort(b.length);
+      out.write(b);
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int len = in.readUnsignedShort();
+    if (len == 0xFFFF) {
+      return null;
+    }
+    byte[] b = new byte[len];
+    in.readFully(b);
+    return b;
+  }
+
+  private static void writeFingerprint(DataOutputStream out,
+                                       CertificateFingerprint fp)
+    throws IOException {
+    writeString(out, (fp == null) ? null : fp.getAlgorithm());
+    writeBytes(out, (fp == null) ? null : fp.getDigest());
+  }
+
+  private static CertificateFingerprint readFingerprint(DataInputStream in)
+    throws IOException {
+    String alg = readString(in);
+    byte[] digest = readBytes(in);
+    return (alg == null || digest == null)
+      ? null : new CertificateFingerprint(alg, digest);
+  }
+
+  /** Signs on close and returns the cipher to the encryption service. */
+  private class ProtectedOutputStream extends FilterOutputStream {
+    private MerkleSignatureOutputStream _signer;
+    private String _symmSpec;
+    private Cipher _cipher;
+    private boolean _closed;
+
+    ProtectedOutputStream(OutputStream out,
+                          MerkleSignatureOutputStream signer,
+                          String symmSpec, Cipher cipher) {
+      super(out);
+      _signer = signer;
+      _symmSpec = symmSpec;
+      _cipher = cipher;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    public void close() throws IOException {
+      if (_closed) {
+        return;
+      }
+      _closed = true;
+      try {
+        if (_signer != null) {
+          _signer.writeSignature();
+        }
+        out.close();
+      }
+      finally {
+        if (_cipher != null) {
+          _encryptService.returnCipher(_symmSpec, _cipher);
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks the final signature when the end of the data is reached,
+   * and returns the cipher to the encryption service on close.
+   */
+  private class ProtectedInputStream extends FilterInputStream {
+    private MerkleSignatureInputStream _verifier;
+    private String _symmSpec;
+    private Cipher _cipher;
+    private boolean _verified;
+    private boolean _closed;
+
+    ProtectedInputStream(InputStream in,
+                         MerkleSignatureInputStream verifier,
+                         String symmSpec, Cipher cipher) {
+      super(in);
+      _verifier = verifier;
+      _symmSpec = symmSpec;
+      _cipher = cipher;
+    }
+
+    public int read() throws IOException {
+      int b = in.read();
+      if (b == -1) {
+        endOfData();
+      }
+      return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      if (n == -1) {
+        endOfData();
+      }
+      return n;
+    }
+
+    public boolean markSupported() {
+      return false;
+    }
+
+    public void close() throws IOException {
+      if (_closed) {
+        return;
+      }
+      _closed = true;
+      try {
+        in.close();
+      }
+      finally {
+        if (_cipher != null) {
+          _encryptService.returnCipher(_symmSpec, _cipher);
+        }
+      }
+    }
+
+    private void endOfData() throws IOException {
+      if (_verifier != null && !_verified) {
+        try {
+          _verifier.verifySignature();
+        }
+        catch (SignatureException e) {
+          throw new IOException("Protected stream signature is not valid: "
+                                + e.getMessage());
+        }
+        _verified = true;
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedLong;
+
+/**
+ * A counter split into stripes picked by the hash of the current
+ * thread, so that threads counting at the same time seldom contend for
+ * the same lock. Reads add up the stripes and so always include every
+ * increment that has returned.
+ */
+final class StripedCounter
+{
+  private final SynchronizedLong[] _stripes;
+  private final int _mask;
+
+  StripedCounter() {
+    int n = 1;
+    while (n < 2 * Runtime.getRuntime().availableProcessors()) {
+      n <<= 1;
+    }
+    _stripes = new SynchronizedLong[n];
+    for (int i = 0 ; i < n ; i++) {
+      _stripes[i] = new SynchronizedLong(0);
+    }
+    _mask = n - 1;
+  }
+
+  void increment() {
+    stripe().increment();
+  }
+
+  void add(long amount) {
+    stripe().add(amount);
+  }
+
+  long get() {
+    long sum = 0;
+    for (int i = 0 ; i < _stripes.length ; i++) {
+      sum += _stripes[i].get();
+    }
+    return sum;
+  }
+
+  void reset() {
+    for (int i = 0 ; i < _stripes.length ; i++) {
+      _stripes[i].set(0);
+    }
+  }
+
+  private SynchronizedLong stripe() {
+    int h = System.identityHashCode(Thread.currentThread());
+    return _stripes[(h ^ (h >>> 16)) & _mask];
+  }
+}
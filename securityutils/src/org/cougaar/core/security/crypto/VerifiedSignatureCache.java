@@ -0,0 +1,473 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.crypto;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignedObject;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cougaar.core.component.ServiceBroker;
+import org.cougaar.core.security.services.crypto.CertValidityService;
+import org.cougaar.core.security.services.crypto.EncryptionService;
+import org.cougaar.core.security.services.crypto.KeyRingService;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.LoggerFactory;
+
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedLong;
+
+/**
+ * Remembers signed objects whose signature has been verified, so that
+ * copies received again (retransmissions, or the same bundle fanned out
+ * to many agents) are not verified again.
+ * <p>
+ * An entry is found by signer name, signature algorithm, a SHA-256
+ * hash of the signature bytes and a SHA-256 hash of the content. A hit
+ * skips the public-key operation, so the hashes must be collision
+ * resistant. <code>SignedObject</code> does not expose its content
+ * bytes, so the content hash is taken over the serialized
+ * <code>SignedObject</code>, which holds them. Each entry
+ * records the fingerprint of the signer certificate that verifies the
+ * signature and expires with that certificate, or after
+ * <tt>org.cougaar.core.security.crypto.verifyCache.ttl</tt> seconds
+ * (default 300), whichever comes first. At most
+ * <tt>org.cougaar.core.security.crypto.verifyCache.size</tt> entries
+ * (default 1024) are kept, least recently used first out.
+ * <p>
+ * On a miss the cache verifies the signature itself with the keys of
+ * the signer's valid certificates from the <code>KeyRingService</code>,
+ * once per certificate, and caches the one that verifies. Only if none
+ * does, or if the object was signed with another algorithm than
+ * <code>signAlgSpec</code>, is the call handed to
+ * <code>EncryptionService.verify</code>, and the result of that call is
+ * not cached. Signatures made with an expired certificate (accepted
+ * with <code>expiredOk</code>) are therefore never cached.
+ * <p>
+ * When a <code>ServiceBroker</code> is given, the cache registers a
+ * single invalidate listener with the <code>CertValidityService</code>,
+ * without a name, and drops the entries of any revoked signer it holds.
+ * An entry whose verification raced with an invalidation, or whose
+ * certificate is no longer valid when it would be stored, is not stored.
+ * <p>
+ * Implementations of <code>unprotectObject</code> should verify
+ * through this cache as well.
+ */
+public class VerifiedSignatureCache
+{
+  public static final String SIZE_PROP =
+    "org.cougaar.core.security.crypto.verifyCache.size";
+  public static final String TTL_PROP =
+    "org.cougaar.core.security.crypto.verifyCache.ttl";
+
+  private static final Logger _log =
+    LoggerFactory.getInstance().createLogger(VerifiedSignatureCache.class);
+
+  /** digest of the signature bytes and of the content */
+  private static final String DIGEST = "SHA-256";
+
+  private EncryptionService _encryptService;
+  private KeyRingService _keyRing;
+  private ServiceBroker _serviceBroker;
+  private int _size;
+  private long _ttl;
+
+  /** VerifyKey to Entry, least recently used first */
+  private Map _entries;
+  /** lower case names of the signers that may have entries */
+  private Set _signers = new HashSet();
+  /** bumped by every invalidation, guarded by _entries */
+  private long _generation;
+
+  /** guards _listening and _warned */
+  private Object _listenerLock = new Object();
+  private boolean _listening;
+  private boolean _warned;
+
+  private SynchronizedLong _hits = new SynchronizedLong(0);
+  private SynchronizedLong _misses = new SynchronizedLong(0);
+
+  public VerifiedSignatureCache(EncryptionService encryptService,
+                                KeyRingService keyRing,
+                                ServiceBroker sb) {
+    this(encryptService, keyRing, sb,
+         Integer.getInteger(SIZE_PROP, 1024).intValue(),
+         Integer.getInteger(TTL_PROP, 300).intValue() * 1000L);
+  }
+
+  /**
+   * @param sb   used to find the CertValidityService; may be null, in
+   *             which case only explicit <code>invalidate</code> calls
+   *             and expiry drop entries.
+   * @param size maximum number of entries
+   * @param ttl  lifetime of an entry in milliseconds
+   */
+  public VerifiedSignatureCache(EncryptionService encryptService,
+                                KeyRingService keyRing,
+                                ServiceBroker sb, int size, long ttl) {
+    _encryptService = encryptService;
+    _keyRing = keyRing;
+    _serviceBroker = sb;
+    _size = size;
+    _ttl = ttl;
+    _entries = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+          return size() > _size;
+        }
+      };
+  }
+
+  /** Same as <code>verify(signerName, signAlgSpec, signedObject, false)</code> */
+  public Object verify(String signerName, String signAlgSpec,
+                       SignedObject signedObject)
+    throws CertificateException {
+    return verify(signerName, signAlgSpec, signedObject, false);
+  }
+
+  /**
+   * Returns the content of a signed object if its signature is valid,
+   * as <code>EncryptionService.verify</code> does, without a public-key
+   * operation if an identical object was verified before.
+   */
+  public Object verify(String signerName, String signAlgSpec,
+                       SignedObject signedObject, boolean expiredOk)
+    throws CertificateException {
+    VerifyKey key;
+    try {
+      key = new VerifyKey(signerName, signedObject);
+    }
+    catch (IOException e) {
+      // not cacheable; let the service deal with it
+      _misses.increment();
+      return _encryptService.verify(signerName, signAlgSpec, signedObject,
+                                    expiredOk);
+    }
+
+    Entry entry;
+    synchronized (_entries) {
+      entry = (Entry) _entries.get(key);
+      if (entry != null && entry._expires <= System.currentTimeMillis()) {
+        _entries.remove(key);
+        entry = null;
+      }
+    }
+    if (entry != null) {
+      try {
+        Object o = signedObject.getObject();
+        _hits.increment();
+        return o;
+      }
+      catch (Exception e) {
+        // fall through to a full verification
+      }
+    }
+
+    _misses.increment();
+    if (!expiredOk && (signAlgSpec == null ||
+                       signAlgSpec.equalsIgnoreCase(signedObject.getAlgorithm()))) {
+      long generation;
+      synchronized (_entries) {
+        generation = _generation;
+      }
+      CertificateStatus status = findSigner(signerName, signedObject);
+      if (status != null) {
+        Object o;
+        try {
+          o = signedObject.getObject();
+        }
+        catch (Exception e) {
+          throw new CertificateException("Unable to read signed object: " + e);
+        }
+        cache(key, status, generation);
+        return o;
+      }
+    }
+    return _encryptService.verify(signerName, signAlgSpec, signedObject,
+                                  expiredOk);
+  }
+
+  /** Drops all entries of the named signer. */
+  public void invalidate(String cname) {
+    if (cname == null) {
+      return;
+    }
+    synchronized (_entries) {
+      _generation++;
+      if (!_signers.remove(cname.toLowerCase())) {
+        return;
+      }
+      if (_log.isDebugEnabled()) {
+        _log.debug("Invalidating verified signatures of " + cname);
+      }
+      for (Iterator it = _entries.keySet().iterator() ; it.hasNext() ; ) {
+        VerifyKey key = (VerifyKey) it.next();
+        if (key._signer.equalsIgnoreCase(cname)) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /** Drops all entries verified with the given certificate. */
+  public void invalidate(CertificateFingerprint fp) {
+    synchronized (_entries) {
+      _generation++;
+      for (Iterator it = _entries.values().iterator() ; it.hasNext() ; ) {
+        if (fp.equals(((Entry) it.next())._signerCert)) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  public void clear() {
+    synchronized (_entries) {
+      _generation++;
+      _entries.clear();
+      _signers.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (_entries) {
+      return _entries.size();
+    }
+  }
+
+  public long getHits() {
+    return _hits.get();
+  }
+
+  public long getMisses() {
+    return _misses.get();
+  }
+
+  /**
+   * Stores an entry unless an invalidation happened since
+   * <code>generation</code> was read or the certificate is no longer
+   * valid.
+   */
+  private void cache(VerifyKey key, CertificateStatus status,
+                     long generation) {
+    X509Certificate cert = status.getCertificate();
+    long now = System.currentTimeMillis();
+    long expires = Math.min(now + _ttl, cert.getNotAfter().getTime());
+    if (expires <= now) {
+      return;
+    }
+    Entry entry;
+    try {
+      entry = new Entry(CertificateFingerprint.getInstance(cert), expires);
+    }
+    catch (GeneralSecurityException e) {
+      // no fingerprint; just don't cache it
+      return;
+    }
+    synchronized (_entries) {
+      if (generation != _generation || !status.isValid()) {
+        return;
+      }
+      _entries.put(key, entry);
+      _signers.add(key._signer.toLowerCase());
+    }
+    listen();
+  }
+
+  /**
+   * @return the valid certificate of the signer whose key verifies
+   * the signature, or null if none does
+   */
+  private CertificateStatus findSigner(String signerName,
+                                       SignedObject signedObject) {
+    List certs = _keyRing.findCert(signerName);
+    if (certs == null) {
+      return null;
+    }
+    for (Iterator it = certs.iterator() ; it.hasNext() ; ) {
+      CertificateStatus status = (CertificateStatus) it.next();
+      Signature sig = null;
+      try {
+        status.checkCertificateValidity();
+        sig = CryptoPrimitives.getVerifier(signedObject.getAlgorithm());
+        if (signedObject.verify(status.getCertificate().getPublicKey(), sig)) {
+          return status;
+        }
+      }
+      catch (GeneralSecurityException e) {
+        // not usable or does not verify; try the next one
+      }
+      finally {
+        if (sig != null) {
+          CryptoPrimitives.releaseVerifier(sig);
+        }
+      }
+    }
+    return null;
+  }
+
+  private static MessageDigest getDigest() throws IOException {
+    try {
+      return CryptoPrimitives.getMessageDigest(DIGEST);
+    }
+    catch (GeneralSecurityException e) {
+      throw new IOException("No " + DIGEST + " digest: " + e);
+    }
+  }
+
+  private static byte[] signatureHash(SignedObject signedObject)
+    throws IOException {
+    MessageDigest md = getDigest();
+    try {
+      return md.digest(signedObject.getSignature());
+    }
+    finally {
+      CryptoPrimitives.release(md);
+    }
+  }
+
+  private static byte[] contentHash(SignedObject signedObject)
+    throws IOException {
+    MessageDigest md = getDigest();
+    try {
+      ObjectOutputStream oos =
+        new ObjectOutputStream(new DigestOutputStream(NullOutputStream.INSTANCE,
+                                                      md));
+      oos.writeObject(signedObject);
+      oos.close();
+      return md.digest();
+    }
+    finally {
+      CryptoPrimitives.release(md);
+    }
+  }
+
+  /** Registers the invalidate listener if it is not registered yet. */
+  private void listen() {
+    if (_serviceBroker == null) {
+      return;
+    }
+    synchronized (_listenerLock) {
+      if (_listening) {
+        return;
+      }
+      CertValidityService cvs = (CertValidityService)
+        _serviceBroker.getService(this, CertValidityService.class, null);
+      if (cvs == null) {
+        if (!_warned && _log.isWarnEnabled()) {
+          _log.warn("No CertValidityService; verified signatures will "
+                    + "only expire");
+        }
+        _warned = true;
+        return;
+      }
+      cvs.addInvalidateListener(new InvalidateListener());
+      _serviceBroker.releaseService(this, CertValidityService.class, cvs);
+      _listening = true;
+    }
+  }
+
+  private static class VerifyKey {
+    private String _signer;
+    private String _algorithm;
+    private byte[] _signatureHash;
+    private byte[] _contentHash;
+    private int _hashCode;
+
+    VerifyKey(String signer, SignedObject signedObject) throws IOException {
+      _signer = signer;
+      _algorithm = signedObject.getAlgorithm();
+      _signatureHash = signatureHash(signedObject);
+      _contentHash = contentHash(signedObject);
+      // the hashes are already well mixed
+      byte[] h = _signatureHash;
+      _hashCode = signer.hashCode() ^ ((h[0] & 0xFF) << 24 |
+                                       (h[1] & 0xFF) << 16 |
+                                       (h[2] & 0xFF) << 8 |
+                                       (h[3] & 0xFF));
+    }
+
+    public int hashCode() {
+      return _hashCode;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof VerifyKey)) {
+        return false;
+      }
+      VerifyKey k = (VerifyKey) o;
+      return _signer.equals(k._signer) && _algorithm.equals(k._algorithm)
+        && Arrays.equals(_signatureHash, k._signatureHash)
+        && Arrays.equals(_contentHash, k._contentHash);
+    }
+  }
+
+  private static class Entry {
+    private CertificateFingerprint _signerCert;
+    private long _expires;
+
+    Entry(CertificateFingerprint signerCert, long expires) {
+      _signerCert = signerCert;
+      _expires = expires;
+    }
+  }
+
+  private static class NullOutputStream extends OutputStream {
+    static final NullOutputStream INSTANCE = new NullOutputStream();
+
+    public void write(int b) {
+    }
+
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+
+  /** Told of every revocation; the cache filters by signer name. */
+  private class InvalidateListener implements CertValidityListener {
+    public String getName() {
+      return null;
+    }
+
+    public void updateCertificate() {
+    }
+
+    public void invalidate(String cname) {
+      VerifiedSignatureCache.this.invalidate(cname);
+    }
+  }
+}
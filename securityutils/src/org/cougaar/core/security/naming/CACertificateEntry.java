@@ -36,6 +36,7 @@ import java.security.cert.X509Certificate;
 
 import org.cougaar.core.security.crypto.CertificateRevocationStatus;
 import org.cougaar.core.security.crypto.CertificateType;
+import org.cougaar.core.security.crypto.CryptoPrimitives;
 import org.cougaar.core.security.util.DateUtil;
 
 public class CACertificateEntry extends CertificateEntry
@@ -63,9 +64,14 @@ public class CACertificateEntry extends CertificateEntry
     if(derEncodedCRL!=null) {
       try {
 	InputStream inStream = new ByteArrayInputStream(derEncodedCRL);
-	CertificateFactory cf = CertificateFactory.getInstance("X.509");
-	crl = (X509CRL)cf.generateCRL(inStream);
-	inStream.close();
+	CertificateFactory cf = CryptoPrimitives.getCertificateFactory("X.509");
+	try {
+	  crl = (X509CRL)cf.generateCRL(inStream);
+	}
+	finally {
+	  CryptoPrimitives.release(cf);
+	  inStream.close();
+	}
       }
       catch (Exception exp){
         return crl;
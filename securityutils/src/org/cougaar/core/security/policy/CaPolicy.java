@@ -26,10 +26,16 @@
 
 package org.cougaar.core.security.policy;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import sun.security.util.DerOutputStream;
+import sun.security.util.DerValue;
 import sun.security.x509.AlgorithmId;
 import sun.security.x509.X500Name;
 
@@ -52,7 +58,7 @@ public class CaPolicy
 
   /** The algorithm ID used to sign an X509 certificate.
    */
-  public AlgorithmId algorithmId;
+  public transient AlgorithmId algorithmId;
   public String algIdString;
   
   /** The key size used to sign an X509 certificate.
@@ -79,7 +85,7 @@ public class CaPolicy
 
   /** The distinguished name of the CA.
    */
-  public X500Name caDnName;
+  public transient X500Name caDnName;
   public String caDN;
   
   /** The URL of the LDAP directory where all certificates are
@@ -136,7 +142,7 @@ public class CaPolicy
 
   /** The algorithm ID used to sign CRLs
    */
-  public AlgorithmId CRLalgorithmId;
+  public transient AlgorithmId CRLalgorithmId;
   public String crlAlgIdString;
    
   /**
@@ -245,4 +251,36 @@ public class CaPolicy
     caPolicyNode.appendChild(node); 
     return caPolicyNode;
   }
+
+  /* X500Name and AlgorithmId are not serializable; their DER encodings
+   * are written instead.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeObject((caDnName == null) ? null : caDnName.getEncoded());
+    out.writeObject(encode(algorithmId));
+    out.writeObject(encode(CRLalgorithmId));
+  }
+
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    byte[] der = (byte[])in.readObject();
+    caDnName = (der == null) ? null : new X500Name(der);
+    algorithmId = decode((byte[])in.readObject());
+    CRLalgorithmId = decode((byte[])in.readObject());
+  }
+
+  private static byte[] encode(AlgorithmId id) throws IOException {
+    if(id == null) {
+      return null;
+    }
+    DerOutputStream der = new DerOutputStream();
+    id.encode(der);
+    return der.toByteArray();
+  }
+
+  private static AlgorithmId decode(byte[] der) throws IOException {
+    return (der == null) ? null : AlgorithmId.parse(new DerValue(der));
+  }
 };
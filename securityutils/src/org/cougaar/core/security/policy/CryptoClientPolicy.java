@@ -26,8 +26,10 @@
 
 package org.cougaar.core.security.policy;
 
-import java.util.Iterator;
-import java.util.Vector;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -56,9 +58,10 @@ public class CryptoClientPolicy
    */
   private String trustedCaKeystorePassword;
 
-  /** An array of trusted certificate authorities (TrustedCaPolicy).
+  /** The trusted certificate authorities. Replaced as a whole when one
+   * is added, so readers need neither a lock nor a copy.
    */
-  private Vector trustedCAs;
+  private volatile TrustedCas trustedCAs;
 
   /** Flag to indicate whether the smart card is to be used
    * in conjunction with keystore.
@@ -77,7 +80,7 @@ public class CryptoClientPolicy
   private CertificateAttributesPolicy certificateAttributesPolicy;
 
   public CryptoClientPolicy() {
-    trustedCAs = new Vector();
+    trustedCAs = new TrustedCas(new TrustedCaPolicy[0]);
   }
 
   // Get methods
@@ -109,8 +112,9 @@ public class CryptoClientPolicy
     // return the cert attrib policy from the first trusted ca policy if there is one
     // the default one will be the choice if the first one uses it
     // this implies there must be a default cert attribute policy
-    if (trustedCAs.size() != 0) {
-      TrustedCaPolicy tc = (TrustedCaPolicy)trustedCAs.get(0);
+    TrustedCaPolicy[] all = trustedCAs.all;
+    if (all.length != 0) {
+      TrustedCaPolicy tc = all[0];
       if (tc.getCertificateAttributesPolicy() != null) {
         return tc.getCertificateAttributesPolicy();
       }
@@ -125,23 +129,31 @@ public class CryptoClientPolicy
     return certificateAttributesPolicy;
   }
 
+  /** Returns a copy of the trusted CAs. */
   public TrustedCaPolicy[] getTrustedCaPolicy() {
-    TrustedCaPolicy[] tc = new TrustedCaPolicy[trustedCAs.size()];
-    trustedCAs.toArray(tc);
-    return tc;
+    return (TrustedCaPolicy[]) trustedCAs.all.clone();
   }
 
+  /** Returns a copy of the trusted CAs that have a caURL. */
   public TrustedCaPolicy[] getIssuerPolicy() {
-    Vector issuers = new Vector();
-    for (int i = 0; i < trustedCAs.size(); i++) {
-      TrustedCaPolicy trustedCaPolicy = (TrustedCaPolicy)trustedCAs.get(i);
-      if (trustedCaPolicy.caURL != null) {
-        issuers.addElement(trustedCaPolicy);
-      }
-    }
-    TrustedCaPolicy[] tc = new TrustedCaPolicy[issuers.size()];
-    issuers.toArray(tc);
-    return tc;
+    List issuers = trustedCAs.getIssuers();
+    return (TrustedCaPolicy[]) issuers.toArray(new TrustedCaPolicy[issuers.size()]);
+  }
+
+  /**
+   * The trusted CAs as an unmodifiable List, shared by all callers
+   * until the CAs change.
+   */
+  public List getTrustedCaPolicyList() {
+    return trustedCAs.getAll();
+  }
+
+  /**
+   * The trusted CAs that have a caURL as an unmodifiable List, shared
+   * by all callers until the CAs change.
+   */
+  public List getIssuerPolicyList() {
+    return trustedCAs.getIssuers();
   }
 
   // Set methods
@@ -173,8 +185,12 @@ public class CryptoClientPolicy
   public void setCertificateAttributesPolicy(CertificateAttributesPolicy cap) {
     this.certificateAttributesPolicy = cap;
   }
-  public void addTrustedCaPolicy(TrustedCaPolicy tc) {
-    trustedCAs.addElement(tc);
+  public synchronized void addTrustedCaPolicy(TrustedCaPolicy tc) {
+    TrustedCaPolicy[] all = trustedCAs.all;
+    TrustedCaPolicy[] added = new TrustedCaPolicy[all.length + 1];
+    System.arraycopy(all, 0, added, 0, all.length);
+    added[all.length] = tc;
+    trustedCAs = new TrustedCas(added);
   }
 
   public String getInfoURL() {
@@ -194,10 +210,9 @@ public class CryptoClientPolicy
     String s = "isCA=" + isCertificateAuthority
       + " - keystoreName=" + keystoreName
       + " - trustedCaKeystoreName=" + trustedCaKeystoreName;
-    if (trustedCAs != null) {
-      for (int i = 0 ; i < trustedCAs.size() ; i++) {
-	s = s + "\nTrusted CA[" + i + "]:" + trustedCAs.get(i).toString();
-      }
+    TrustedCaPolicy[] all = trustedCAs.all;
+    for (int i = 0 ; i < all.length ; i++) {
+      s = s + "\nTrusted CA[" + i + "]:" + all[i].toString();
     }
     if (certificateAttributesPolicy != null) {
       s = s + "\nCertificate Attributes:" +  certificateAttributesPolicy.toString();
@@ -266,10 +281,9 @@ public class CryptoClientPolicy
     }
     
     // iterator through the trusted CAs
-    Iterator i = trustedCAs.iterator();
-    while(i.hasNext()) {
-      TrustedCaPolicy tcp = (TrustedCaPolicy)i.next();
-      node.appendChild(tcp.convertToXML(parent));
+    TrustedCaPolicy[] all = trustedCAs.all;
+    for (int i = 0; i < all.length; i++) {
+      node.appendChild(all[i].convertToXML(parent));
     }
     ccPolicyNode.appendChild(node);
     // end trustedCAs
@@ -281,4 +295,65 @@ public class CryptoClientPolicy
     
     return ccPolicyNode;
   }
+
+  /** An immutable list of trusted CAs. */
+  private static final class TrustedCas implements Serializable {
+    private final TrustedCaPolicy[] all;
+    /** Unmodifiable view of all, built on first use. */
+    private transient volatile List allList;
+    /** The ones with a caURL, as an unmodifiable List. Derived on
+     * demand, and checked against all on every use, since a caURL may
+     * be set after the CA is added.
+     */
+    private transient volatile List issuers;
+
+    TrustedCas(TrustedCaPolicy[] all) {
+      this.all = all;
+    }
+
+    List getAll() {
+      List l = allList;
+      if (l == null) {
+        l = Collections.unmodifiableList(Arrays.asList(all));
+        allList = l;
+      }
+      return l;
+    }
+
+    List getIssuers() {
+      List l = issuers;
+      if (l == null || !isCurrent(l)) {
+        int n = 0;
+        for (int i = 0; i < all.length; i++) {
+          if (all[i].caURL != null) {
+            n++;
+          }
+        }
+        TrustedCaPolicy[] tc = new TrustedCaPolicy[n];
+        n = 0;
+        for (int i = 0; i < all.length; i++) {
+          if (all[i].caURL != null) {
+            tc[n++] = all[i];
+          }
+        }
+        l = Collections.unmodifiableList(Arrays.asList(tc));
+        issuers = l;
+      }
+      return l;
+    }
+
+    private boolean isCurrent(List l) {
+      int n = 0;
+      int size = l.size();
+      for (int i = 0; i < all.length; i++) {
+        if (all[i].caURL != null) {
+          if (n >= size || l.get(n) != all[i]) {
+            return false;
+          }
+          n++;
+        }
+      }
+      return n == size;
+    }
+  }
 };
@@ -28,16 +28,31 @@ package org.cougaar.core.security.policy;
 
 import org.cougaar.core.security.crypto.SecureMethodParam;
 import org.cougaar.core.service.community.Community;
+import org.cougaar.core.service.community.CommunityChangeEvent;
+import org.cougaar.core.service.community.CommunityChangeListener;
 import org.cougaar.core.service.community.CommunityResponse;
 import org.cougaar.core.service.community.CommunityResponseListener;
 import org.cougaar.core.service.community.CommunityService;
+import org.cougaar.core.service.community.Entity;
+import org.cougaar.util.log.Logger;
+import org.cougaar.util.log.LoggerFactory;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
-import EDU.oswego.cs.dl.util.concurrent.Semaphore;
+import EDU.oswego.cs.dl.util.concurrent.ConcurrentReaderHashMap;
 
 public class CryptoPolicy extends SecurityPolicy {
   /**
@@ -55,270 +70,289 @@ public class CryptoPolicy extends SecurityPolicy {
   public static final int BOTH = 3;
   public static final int DATAPROTECTION = 4;
   public int Direction = BOTH;
-  private HashMap commList = new HashMap();
 
-  private HashMap secuMethod = new HashMap();
+  // attributes of the rules
+  private static final int SECU_METHOD = 0;
+  private static final int SYMM_SPEC = 1;
+  private static final int ASYMM_SPEC = 2;
+  private static final int SIGN_SPEC = 3;
+  // keys (agents, communities or "DEFAULT") whose messages must be
+  // signed, so the cheaper AEAD method may not be used for them.
+  private static final int NON_REPUDIATION = 4;
+  private static final int ATTRIBUTES = 5;
 
-  // for PersistenceManager, both MessageProtection and DataProtection
-  // needs to encrypt secret key with persistence manager so that
-  // data can be recovered even though all private keys are lost.
-  private Vector pmPolicies = new Vector();
+  // All rules of this policy. A published Rules is never modified:
+  // setters build a new one and swap it in, so readers need no lock.
+  private volatile Rules rules = new Rules();
+
+  // agent to EffectivePolicy; replaced by a new map whenever the
+  // policy changes
+  private transient volatile Map effective;
+
+  // communities for which a change listener is registered
+  private transient Set listening;
+
+  // changes to the rules of any crypto policy
+  private static volatile long generation;
+
+  private static final Logger log =
+    LoggerFactory.getInstance().createLogger(CryptoPolicy.class);
 
   public void setSecuMethod(String key, String method){
-    Object o = secuMethod.get(key);
-    if(o==null){
-      Vector sm = new Vector();
-      sm.add(method);
-      secuMethod.put(key, sm);
-    }else{
-      Vector sm = (Vector)o;
-      if(!sm.contains(method))
-        sm.add(method);
-    }
+    addValue(SECU_METHOD, false, key, method);
   }
-  private HashMap secuMethodCom = new HashMap();
   public void setComSecuMethod(String key, String method){
-    Object o = secuMethodCom.get(key);
-    if(o==null){
-      Vector sm = new Vector();
-      sm.add(method);
-      secuMethodCom.put(key, sm);
-      commList.put(key,null); //put in null for now, fill in setCommunityService.
-    }else{
-      Vector sm = (Vector)o;
-      if(!sm.contains(method))
-        sm.add(method);
-    }
+    addValue(SECU_METHOD, true, key, method);
   }
 
-  private HashMap symmSpec = new HashMap();
   public void setSymmSpec(String key, String spec){
-    Object o = symmSpec.get(key);
-    if(o==null){
-      Vector sp = new Vector();
-      sp.add(spec);
-      symmSpec.put(key, sp);
-    }else{
-      Vector sp = (Vector)o;
-      if(!sp.contains(spec))
-        sp.add(spec);
-    }
+    addValue(SYMM_SPEC, false, key, spec);
   }
-  private HashMap symmSpecCom = new HashMap();
   public void setComSymmSpec(String key, String spec){
-    Object o = symmSpecCom.get(key);
-    if(o==null){
-      Vector sp = new Vector();
-      sp.add(spec);
-      symmSpecCom.put(key, sp);
-      commList.put(key,null); //put in null for now, fill in setCommunityService.
-    }else{
-      Vector sp = (Vector)o;
-      if(!sp.contains(spec))
-        sp.add(spec);
-    }
+    addValue(SYMM_SPEC, true, key, spec);
   }
 
-  private HashMap signSpec = new HashMap();
   public void setSignSpec(String key, String spec){
-    Object o = signSpec.get(key);
-    if(o==null){
-      Vector sp = new Vector();
-      sp.add(spec);
-      signSpec.put(key, sp);
-    }else{
-      Vector sp = (Vector)o;
-      if(!sp.contains(spec))
-        sp.add(spec);
-    }
+    addValue(SIGN_SPEC, false, key, spec);
   }
-  private HashMap signSpecCom = new HashMap();
   public void setComSignSpec(String key, String spec){
-    Object o = signSpecCom.get(key);
-    if(o==null){
-      Vector sp = new Vector();
-      sp.add(spec);
-      signSpecCom.put(key, sp);
-      commList.put(key,null); //put in null for now, fill in setCommunityService.
-    }else{
-      Vector sp = (Vector)o;
-      if(!sp.contains(spec))
-        sp.add(spec);
-    }
+    addValue(SIGN_SPEC, true, key, spec);
   }
 
-  private HashMap asymmSpec = new HashMap();
   public void setAsymmSpec(String key, String spec){
-    Object o = asymmSpec.get(key);
-    if(o==null){
-      Vector sp = new Vector();
-      sp.add(spec);
-      asymmSpec.put(key, sp);
-    }else{
-      Vector sp = (Vector)o;
-      if(!sp.contains(spec))
-        sp.add(spec);
-    }
+    addValue(ASYMM_SPEC, false, key, spec);
   }
-  private HashMap asymmSpecCom = new HashMap();
   public void setComAsymmSpec(String key, String spec){
-    Object o = asymmSpecCom.get(key);
-    if(o==null){
-      Vector sp = new Vector();
-      sp.add(spec);
-      asymmSpecCom.put(key, sp);
-      commList.put(key,null); //put in null for now, fill in setCommunityService.
-    }else{
-      Vector sp = (Vector)o;
-      if(!sp.contains(spec))
-        sp.add(spec);
-    }
+    addValue(ASYMM_SPEC, true, key, spec);
+  }
+
+  public void setNonRepudiation(String key, boolean required){
+    setValue(NON_REPUDIATION, false, key, Boolean.valueOf(required));
+  }
+  public void setComNonRepudiation(String key, boolean required){
+    setValue(NON_REPUDIATION, true, key, Boolean.valueOf(required));
   }
 
+  // adds a value to the Vector of a key, as a new Vector
+  private synchronized void addValue(int attr, boolean com, String key,
+                                     String value){
+    Vector old = (Vector)rules.get(attr, com).get(key);
+    if(old!=null && old.contains(value)) return;
+    Vector v = (old==null) ? new Vector() : new Vector(old);
+    v.add(value);
+    setValue(attr, com, key, v);
+  }
+
+  private synchronized void setValue(int attr, boolean com, String key,
+                                     Object value){
+    rules = rules.with(attr, com, key, value);
+    clearEffectivePolicies();
+  }
+
+  /*
+   * The Vector getters return copies. getEffectivePolicy(key) has the
+   * same values as shared unmodifiable Lists.
+   */
   public Vector getSecuMethod(String key){
-    Vector v = (Vector)secuMethod.get(key);
-    //try community policy if null
-    if(v==null && secuMethodCom.size()>0){
-      //find which community the agent belongs to and get the policy
-      String c = commLookup(key);
-      if(c!=null){
-        v = (Vector)secuMethodCom.get(c);
-      }
-    }
-    //last try
-    if(v==null) v = (Vector)secuMethod.get("DEFAULT");
-    return v;
+    return copy(getEffectivePolicy(key).getSecuMethod());
   }
   public Vector getSymmSpec(String key) {
-    Vector v = (Vector)symmSpec.get(key);
-    //try community policy if null
-    if(v==null && symmSpecCom.size()>0){
-      //find which community the agent belongs to and get the policy
-      String c = commLookup(key);
-      if(c!=null){
-        v = (Vector)symmSpecCom.get(c);
-      }
-    }
-    //last try
-    if(v==null) v = (Vector)symmSpec.get("DEFAULT");
-    return v;
+    return copy(getEffectivePolicy(key).getSymmSpec());
   }
   public Vector getAsymmSpec(String key) {
-    Vector v = (Vector)asymmSpec.get(key);
-    //try community policy if null
-    if(v==null && asymmSpecCom.size()>0){
-      //find which community the agent belongs to and get the policy
-      String c = commLookup(key);
-      if(c!=null){
-        v = (Vector)asymmSpecCom.get(c);
-      }
-    }
-    //last try
-    if(v==null) v = (Vector)asymmSpec.get("DEFAULT");
-    return v;
+    return copy(getEffectivePolicy(key).getAsymmSpec());
   }
   public Vector getSignSpec(String key) {
-    Vector v = (Vector)signSpec.get(key);
-    //try community policy if null
-    if(v==null && signSpecCom.size()>0){
-      //find which community the agent belongs to and get the policy
-      String c = commLookup(key);
-      if(c!=null){
-        v = (Vector)signSpecCom.get(c);
-      }
-    }
-    //last try
-    if(v==null) v = (Vector)signSpec.get("DEFAULT");
-    return v;
+    return copy(getEffectivePolicy(key).getSignSpec());
+  }
+  public boolean requiresNonRepudiation(String key){
+    return getEffectivePolicy(key).requiresNonRepudiation();
   }
 
-  //for backward compatiblity
-  public SecureMethodParam getSecureMethodParam(String key){
-    SecureMethodParam smp = new SecureMethodParam();
-
-    Vector v = (Vector)secuMethod.get(key);
-    //if not found use "DEFAULT"
-    if(v==null) v=(Vector)secuMethod.get("DEFAULT");
-    String method = "invalid";
-    if(v!=null) method = (String)(v.firstElement());
-
-    if(method.equalsIgnoreCase("plain")){
-      smp.secureMethod = SecureMethodParam.PLAIN;
-    }else if(method.equalsIgnoreCase("sign")){
-      smp.secureMethod = SecureMethodParam.SIGN;
-    }else if(method.equalsIgnoreCase("encrypt")){
-      smp.secureMethod = SecureMethodParam.ENCRYPT;
-    }else if(method.equalsIgnoreCase("signAndEncrypt")){
-      smp.secureMethod = SecureMethodParam.SIGNENCRYPT;
-    }else{
-      smp.secureMethod = SecureMethodParam.INVALID;
+  /**
+   * Whether two agents are known members of the same community of
+   * this policy.
+   */
+  public boolean isSameCommunity(String agent1, String agent2){
+    Rules r = rules;
+    String c = r.commLookup(agent1);
+    if(c==null) return false;
+    Collection v = (Collection)r.communities.get(c);
+    return v != null && v.contains(agent2);
+  }
+
+  /**
+   * Returns everything this policy resolves for an agent. The result
+   * is computed on first use and kept until a setter or
+   * setCommunityService changes the policy; lookups do not lock.
+   */
+  public EffectivePolicy getEffectivePolicy(String key){
+    // read the cache before the rules, so a policy built from old
+    // rules can only go to a map that has already been discarded
+    Map m = effective;
+    if(key==null) return buildEffectivePolicy(rules, key);
+    if(m==null){
+      m = new ConcurrentReaderHashMap();
+      effective = m;
     }
+    EffectivePolicy ep = (EffectivePolicy)m.get(key);
+    if(ep==null){
+      ep = buildEffectivePolicy(rules, key);
+      m.put(key, ep);
+    }
+    return ep;
+  }
 
-    v = (Vector)symmSpec.get(key);
-    if(v==null) v=(Vector)symmSpec.get("DEFAULT");
-    if(v!=null) smp.symmSpec = (String)(v.firstElement());
+  private static EffectivePolicy buildEffectivePolicy(Rules r, String key){
+    Boolean b = (Boolean)r.resolve(NON_REPUDIATION, key);
+    return new EffectivePolicy(key,
+                               (Vector)r.resolve(SECU_METHOD, key),
+                               (Vector)r.resolve(SYMM_SPEC, key),
+                               (Vector)r.resolve(ASYMM_SPEC, key),
+                               (Vector)r.resolve(SIGN_SPEC, key),
+                               r.getSecureMethodParam(key),
+                               b != null && b.booleanValue());
+  }
 
-    v = (Vector)asymmSpec.get(key);
-    if(v==null) v=(Vector)asymmSpec.get("DEFAULT");
-    if(v!=null) smp.asymmSpec = (String)(v.firstElement());
+  private static Vector copy(List l){
+    return (l==null) ? null : new Vector(l);
+  }
 
-    v = (Vector)signSpec.get(key);
-    if(v==null) v=(Vector)signSpec.get("DEFAULT");
-    if(v!=null) smp.signSpec = (String)(v.firstElement());
+  private void clearEffectivePolicies(){
+    effective = null;
+    synchronized(CryptoPolicy.class){
+      generation++;
+    }
+  }
 
-    return smp;
+  /**
+   * Counts the changes to the rules of every crypto policy, including
+   * policies built or deserialized since startup, and community
+   * membership changes. Caches of decisions derived from crypto
+   * policies compare it to tell when to drop them.
+   */
+  public static long getGeneration(){
+    return generation;
+  }
+
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    clearEffectivePolicies();
   }
 
-  private class Status {
-    public Object value;
+  //for backward compatiblity
+  public SecureMethodParam getSecureMethodParam(String key){
+    return getEffectivePolicy(key).getSecureMethodParam();
   }
 
+  /**
+   * Like getSecureMethodParam(target), but an AEAD method is only kept
+   * when source and target are in the same community of this policy and
+   * neither requires non-repudiation; otherwise SIGNENCRYPT is used.
+   */
+  public SecureMethodParam getSecureMethodParam(String source, String target){
+    SecureMethodParam smp = getSecureMethodParam(target);
+    if(smp.secureMethod == SecureMethodParam.AEAD
+       && (!isSameCommunity(source, target)
+           || requiresNonRepudiation(source)
+           || requiresNonRepudiation(target))){
+      smp.secureMethod = SecureMethodParam.SIGNENCRYPT;
+    }
+    return smp;
+  }
+
+  /**
+   * Requests the members of every community named in this policy at
+   * once, without waiting for the answers. Until a community is
+   * resolved, lookups for its members use the agent and DEFAULT rules.
+   * Membership changes reported by the community service are applied
+   * as they arrive.
+   */
   public void setCommunityService(CommunityService cs){
-    //fill community info
-    Iterator iter = commList.keySet().iterator();
+    List names = new ArrayList(rules.communities.keySet());
+    Iterator iter = names.iterator();
     while(iter.hasNext()){
-      String comName = (String)iter.next();
-
-      final Status status = new Status();
-      final Semaphore s = new Semaphore(0);
+      final String comName = (String)iter.next();
       CommunityResponseListener crl = new CommunityResponseListener() {
 	  public void getResponse(CommunityResponse resp) {
 	    Object response = resp.getContent();
 	    if (!(response instanceof Community)) {
-	      String errorString = "Unexpected community response class:"
-		+ response.getClass().getName() + " - Should be a Community";
-	      throw new RuntimeException(errorString);
+	      if (log.isWarnEnabled()) {
+		log.warn("Unexpected community response class for " + comName
+			 + ": " + ((response == null) ? null :
+				   response.getClass().getName())
+			 + " - Should be a Community");
+	      }
+	      return;
 	    }
-	    status.value = (Community) response;
-	    s.release();
+	    setCommunity(comName, (Community) response);
 	  }
 	};
-      // TODO: do this truly asynchronously.
-      cs.getCommunity(comName, crl);
-      try {
-	s.acquire();
-      } catch (InterruptedException ie) {
-	throw new RuntimeException("Error in searchByCommunity:", ie);
+      synchronized(this){
+        if(listening==null) listening = new HashSet();
+        if(listening.add(comName)){
+          cs.addListener(new MembershipListener(comName));
+        }
+      }
+      Community community = cs.getCommunity(comName, crl);
+      if(community!=null){
+        setCommunity(comName, community);
       }
-      Community community = (Community) status.value;
-      Collection c = community.getEntities();
-      commList.put(comName, c);
     }
   }
-  //lookup community name
-  private String commLookup(String agent){
-    Iterator iter = commList.keySet().iterator();
-    while(iter.hasNext()){
-      String comName = (String)iter.next();
-      Collection v = (Collection)commList.get(comName);
-      if (v != null){
-        if(v.contains(agent)){
-          return comName;
+
+  /** Whether the members of a community of this policy are known */
+  public boolean isCommunityResolved(String comName){
+    return rules.communities.get(comName) != null;
+  }
+
+  private void setCommunity(String comName, Community community){
+    Set members = new HashSet();
+    Collection c = community.getEntities();
+    if(c!=null){
+      Iterator iter = c.iterator();
+      while(iter.hasNext()){
+        Object o = iter.next();
+        members.add((o instanceof Entity) ? ((Entity)o).getName() : o);
+      }
+    }
+    setMembers(comName, Collections.unmodifiableSet(members));
+  }
+
+  private synchronized void setMembers(String comName, Set members){
+    rules = rules.withCommunity(comName, members, false);
+    clearEffectivePolicies();
+  }
+
+  private class MembershipListener implements CommunityChangeListener {
+    private String comName;
+
+    MembershipListener(String comName){
+      this.comName = comName;
+    }
+
+    public String getCommunityName(){
+      return comName;
+    }
+
+    public void communityChanged(CommunityChangeEvent event){
+      if(!comName.equals(event.getCommunityName())) return;
+      switch(event.getType()){
+      case CommunityChangeEvent.ADD_COMMUNITY:
+      case CommunityChangeEvent.ADD_ENTITY:
+      case CommunityChangeEvent.REMOVE_ENTITY:
+        if(event.getCommunity()!=null){
+          setCommunity(comName, event.getCommunity());
         }
+        break;
+      case CommunityChangeEvent.REMOVE_COMMUNITY:
+        setMembers(comName, null);
+        break;
+      default:
+        break;
       }
     }
-    //fall through
-    return null;
   }
 
   public String toString() {
@@ -328,13 +362,163 @@ public class CryptoPolicy extends SecurityPolicy {
   ;
   }
 
+  /** Returns a copy of the persistence manager policies. */
   public PersistenceManagerPolicy [] getPersistenceManagerPolicies() {
-    PersistenceManagerPolicy [] pm = new PersistenceManagerPolicy[pmPolicies.size()];
-    pmPolicies.toArray(pm);
-    return pm;
+    return (PersistenceManagerPolicy []) rules.pmPolicies.clone();
+  }
+
+  /**
+   * The persistence manager policies as an unmodifiable List, shared
+   * by all callers until the policies change.
+   */
+  public List getPersistenceManagerPolicyList() {
+    return rules.getPmList();
   }
 
-  public void addPersistenceManagerPolicy(PersistenceManagerPolicy pm) {
-    pmPolicies.addElement(pm);
+  public synchronized void addPersistenceManagerPolicy(PersistenceManagerPolicy pm) {
+    rules = rules.withPersistenceManagerPolicy(pm);
+  }
+
+  /**
+   * An immutable set of rules. Every with... method returns a modified
+   * copy.
+   */
+  private static final class Rules implements Serializable {
+    // per attribute, agent or "DEFAULT" to value
+    private final Map[] agent;
+    // per attribute, community to value
+    private final Map[] community;
+    // community name to the Set of its members, or null until known
+    private final Map communities;
+    // for PersistenceManager, both MessageProtection and DataProtection
+    // needs to encrypt secret key with persistence manager so that
+    // data can be recovered even though all private keys are lost.
+    private final PersistenceManagerPolicy[] pmPolicies;
+    // unmodifiable view of pmPolicies, built on first use
+    private transient volatile List pmList;
+
+    Rules(){
+      agent = new Map[ATTRIBUTES];
+      community = new Map[ATTRIBUTES];
+      for(int i = 0; i < ATTRIBUTES; i++){
+        agent[i] = new HashMap();
+        community[i] = new HashMap();
+      }
+      communities = new HashMap();
+      pmPolicies = new PersistenceManagerPolicy[0];
+    }
+
+    private Rules(Map[] agent, Map[] community, Map communities,
+                  PersistenceManagerPolicy[] pmPolicies){
+      this.agent = agent;
+      this.community = community;
+      this.communities = communities;
+      this.pmPolicies = pmPolicies;
+    }
+
+    List getPmList(){
+      List l = pmList;
+      if(l==null){
+        l = Collections.unmodifiableList(Arrays.asList(pmPolicies));
+        pmList = l;
+      }
+      return l;
+    }
+
+    Map get(int attr, boolean com){
+      return com ? community[attr] : agent[attr];
+    }
+
+    Rules with(int attr, boolean com, String key, Object value){
+      Map[] maps = (Map[])(com ? community : agent).clone();
+      maps[attr] = new HashMap(maps[attr]);
+      maps[attr].put(key, value);
+      if(com){
+        // put in null for now, filled in by setCommunityService.
+        Rules r = new Rules(agent, maps, communities, pmPolicies);
+        return r.withCommunity(key, null, true);
+      }
+      return new Rules(maps, community, communities, pmPolicies);
+    }
+
+    Rules withCommunity(String name, Set members, boolean ifAbsent){
+      if(ifAbsent && communities.containsKey(name)) return this;
+      Map m = new HashMap(communities);
+      m.put(name, members);
+      return new Rules(agent, community, m, pmPolicies);
+    }
+
+    Rules withPersistenceManagerPolicy(PersistenceManagerPolicy pm){
+      PersistenceManagerPolicy[] p =
+        new PersistenceManagerPolicy[pmPolicies.length + 1];
+      System.arraycopy(pmPolicies, 0, p, 0, pmPolicies.length);
+      p[pmPolicies.length] = pm;
+      return new Rules(agent, community, communities, p);
+    }
+
+    Object resolve(int attr, String key){
+      Object v = agent[attr].get(key);
+      //try community policy if null
+      if(v==null && community[attr].size()>0){
+        //find which community the agent belongs to and get the policy
+        String c = commLookup(key);
+        if(c!=null){
+          v = community[attr].get(c);
+        }
+      }
+      //last try
+      if(v==null) v = agent[attr].get("DEFAULT");
+      return v;
+    }
+
+    //lookup community name
+    String commLookup(String agent){
+      Iterator iter = communities.entrySet().iterator();
+      while(iter.hasNext()){
+        Map.Entry e = (Map.Entry)iter.next();
+        Collection v = (Collection)e.getValue();
+        if (v != null){
+          if(v.contains(agent)){
+            return (String)e.getKey();
+          }
+        }
+      }
+      //fall through
+      return null;
+    }
+
+    // ignores community rules, for backward compatibility
+    SecureMethodParam getSecureMethodParam(String key){
+      SecureMethodParam smp = new SecureMethodParam();
+
+      String method = (String)first(SECU_METHOD, key);
+      if(method==null) method = "invalid";
+
+      if(method.equalsIgnoreCase("plain")){
+        smp.secureMethod = SecureMethodParam.PLAIN;
+      }else if(method.equalsIgnoreCase("sign")){
+        smp.secureMethod = SecureMethodParam.SIGN;
+      }else if(method.equalsIgnoreCase("encrypt")){
+        smp.secureMethod = SecureMethodParam.ENCRYPT;
+      }else if(method.equalsIgnoreCase("signAndEncrypt")){
+        smp.secureMethod = SecureMethodParam.SIGNENCRYPT;
+      }else if(method.equalsIgnoreCase("aead")){
+        smp.secureMethod = SecureMethodParam.AEAD;
+      }else{
+        smp.secureMethod = SecureMethodParam.INVALID;
+      }
+
+      smp.symmSpec = (String)first(SYMM_SPEC, key);
+      smp.asymmSpec = (String)first(ASYMM_SPEC, key);
+      smp.signSpec = (String)first(SIGN_SPEC, key);
+      return smp;
+    }
+
+    //first value of the key, or of "DEFAULT" if not found
+    private Object first(int attr, String key){
+      Vector v = (Vector)agent[attr].get(key);
+      if(v==null) v = (Vector)agent[attr].get("DEFAULT");
+      return (v==null) ? null : v.firstElement();
+    }
   }
 }
@@ -0,0 +1,112 @@
+/* 
+ * <copyright> 
+ *  Copyright 1999-2004 Cougaar Software, Inc.
+ *  under sponsorship of the Defense Advanced Research Projects 
+ *  Agency (DARPA). 
+ *  
+ *  You can redistribute this software and/or modify it under the
+ *  terms of the Cougaar Open Source License as published on the
+ *  Cougaar Open Source Website (www.cougaar.org).  
+ *  
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ *  A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ *  OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ * </copyright> 
+ */ 
+
+
+package org.cougaar.core.security.policy;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+import org.cougaar.core.security.crypto.SecureMethodParam;
+
+/**
+ * The attributes a <code>CryptoPolicy</code> resolves for one agent,
+ * after falling back to its community and to "DEFAULT". Built once per
+ * agent by <code>CryptoPolicy.getEffectivePolicy</code> and discarded
+ * whenever the policy changes. The lists are unmodifiable views of the
+ * policy's values, or null if a value is not set.
+ */
+public final class EffectivePolicy
+{
+  private final String _key;
+  private final List _secuMethod;
+  private final List _symmSpec;
+  private final List _asymmSpec;
+  private final List _signSpec;
+  private final SecureMethodParam _secureMethodParam;
+  private final boolean _nonRepudiation;
+
+  EffectivePolicy(String key, Vector secuMethod, Vector symmSpec,
+                  Vector asymmSpec, Vector signSpec,
+                  SecureMethodParam secureMethodParam,
+                  boolean nonRepudiation) {
+    _key = key;
+    _secuMethod = view(secuMethod);
+    _symmSpec = view(symmSpec);
+    _asymmSpec = view(asymmSpec);
+    _signSpec = view(signSpec);
+    _secureMethodParam = secureMethodParam;
+    _nonRepudiation = nonRepudiation;
+  }
+
+  /** The agent (or other key) this applies to */
+  public String getKey() {
+    return _key;
+  }
+
+  public List getSecuMethod() {
+    return _secuMethod;
+  }
+
+  public List getSymmSpec() {
+    return _symmSpec;
+  }
+
+  public List getAsymmSpec() {
+    return _asymmSpec;
+  }
+
+  public List getSignSpec() {
+    return _signSpec;
+  }
+
+  /**
+   * The result of <code>CryptoPolicy.getSecureMethodParam(key)</code>.
+   * Returns a copy, since callers may change it.
+   */
+  public SecureMethodParam getSecureMethodParam() {
+    SecureMethodParam smp =
+      new SecureMethodParam(_secureMethodParam.secureMethod);
+    smp.symmSpec = _secureMethodParam.symmSpec;
+    smp.asymmSpec = _secureMethodParam.asymmSpec;
+    smp.signSpec = _secureMethodParam.signSpec;
+    return smp;
+  }
+
+  public boolean requiresNonRepudiation() {
+    return _nonRepudiation;
+  }
+
+  private static List view(Vector v) {
+    return (v == null) ? null : Collections.unmodifiableList(v);
+  }
+
+  public String toString() {
+    return "EffectivePolicy[" + _key + " method=" + _secuMethod +
+      " symm=" + _symmSpec + " asymm=" + _asymmSpec +
+      " sign=" + _signSpec + "]";
+  }
+}
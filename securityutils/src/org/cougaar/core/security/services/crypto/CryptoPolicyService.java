@@ -38,9 +38,19 @@ public interface CryptoPolicyService
   public static final int CRYPTO_SHOULD_ENCRYPT     = 2;
   public static final int CRYPTO_UNAVAILABLE        = 3;
 
+  /**
+   * A policy may return <code>SecureMethodParam.AEAD</code> only for a
+   * source and target in the same community where no party requires
+   * non-repudiation, and SIGNENCRYPT otherwise; see
+   * <code>CryptoPolicy.getSecureMethodParam(String, String)</code>.
+   */
   SecureMethodParam getSendPolicy(String source, String target);
   public SecureMethodParam getReceivePolicy(String source, String target);
 
+  /**
+   * A message protected with AEAD does not satisfy a policy that
+   * requires a signature, and yields CRYPTO_SHOULD_SIGN.
+   */
   public int isReceivePolicyValid(String source, String target, 
                                   SecureMethodParam policy,
                                   boolean ignoreEncryption,
@@ -54,6 +54,11 @@ public interface ConfigParserService extends Service {
    */
   CaPolicy getCaPolicy(String aDN);
 
+  /**
+   * Implementations reading the policy files at startup may use
+   * <code>config.PolicySnapshot</code> to reuse the policies parsed
+   * on a previous start when the files have not changed.
+   */
   void parsePolicy(InputStream policy);
   SecurityPolicy[] getSecurityPolicies();
   SecurityPolicy[] getSecurityPolicies(Class policyClass);
@@ -67,7 +72,19 @@ public interface ConfigParserService extends Service {
    */
   X500Name[] getCaDNs();
 
+  /**
+   * Implementations must call
+   * <code>CryptoPolicyDecisionCache.policyChanged()</code> once the
+   * policy has been installed, so that cached crypto decisions are
+   * dropped.
+   */
   void addSecurityPolicy(SecurityPolicy policy);
+  /**
+   * Implementations must call
+   * <code>CryptoPolicyDecisionCache.policyChanged()</code> once the
+   * update has been installed, so that cached crypto decisions are
+   * dropped.
+   */
   void updateSecurityPolicy(SecurityPolicy policy) throws PolicyUpdateException;
 
 }
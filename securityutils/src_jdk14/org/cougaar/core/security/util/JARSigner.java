@@ -48,6 +48,8 @@ import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 
+import org.cougaar.core.security.crypto.CryptoPrimitives;
+
 import sun.misc.BASE64Encoder;
 import sun.security.util.ManifestDigester;
 import sun.security.util.SignatureFile;
@@ -235,12 +237,14 @@ public class JARSigner
     // create the message digest and start updating the
     // the attributes in the manifest to contain the SHA1
     // digests
-    MessageDigest messageDigest = MessageDigest.getInstance( "SHA1" );
+    MessageDigest messageDigest = CryptoPrimitives.getMessageDigest( "SHA1" );
     updateManifestEntries( manifest, jarFile, messageDigest, entries );
 
     // construct the signature file object and the
     // signature block objects
     SignatureFile signatureFile = createSignatureFile( manifest, messageDigest );
+    // the signature file has consumed the digest
+    CryptoPrimitives.release( messageDigest );
     SignatureFile.Block block = signatureFile.generateBlock( privateKey, certChain, true );
 
 
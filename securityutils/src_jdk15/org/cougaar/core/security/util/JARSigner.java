@@ -50,6 +50,8 @@ import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 
+import org.cougaar.core.security.crypto.CryptoPrimitives;
+
 import com.sun.jarsigner.ContentSigner;
 import sun.misc.BASE64Encoder;
 import sun.security.util.ManifestDigester;
@@ -237,13 +239,15 @@ public class JARSigner
     // create the message digest and start updating the
     // the attributes in the manifest to contain the SHA1
     // digests
-    MessageDigest messageDigest = MessageDigest.getInstance( "SHA1" );
+    MessageDigest messageDigest = CryptoPrimitives.getMessageDigest( "SHA1" );
     updateManifestEntries( manifest, jarFile, messageDigest, entries );
     
     // construct the signature file object and the
     // signature block objects
     final SignatureFile signatureFile 
         = createSignatureFile( manifest, messageDigest );
+    // the signature file has consumed the digest
+    CryptoPrimitives.release( messageDigest );
     final boolean externalSF = true;
     final String tsaUrl = null;
     final X509Certificate x509certificate = null;